@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * <p>
+ * A connection whose operations return CompletableFutures so that they can
+ * be composed without blocking a thread per outstanding operation.
+ * </p>
+ * <p>
+ * The futures are completed on the connection's dispatch queue.  Dependent
+ * stages which are not added with one of the *Async methods run on the
+ * dispatch queue too, so they must not block.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class AsyncConnection {
+
+    private final CallbackConnection connection;
+
+    private final ArrayDeque<CompletableFuture<StompFrame>> receiveFutures = new ArrayDeque<CompletableFuture<StompFrame>>();
+    private final ArrayDeque<StompFrame> receivedFrames = new ArrayDeque<StompFrame>();
+    private volatile FramePublisher publisher;
+
+    AsyncConnection(CallbackConnection connection) {
+        this.connection = connection;
+        this.connection.receive(new Callback<StompFrame>() {
+            @Override
+            public void onFailure(Throwable value) {
+                failReceives(value);
+            }
+
+            @Override
+            public void onSuccess(StompFrame value) {
+                getDispatchQueue().assertExecuting();
+                CompletableFuture<StompFrame> future = receiveFutures.poll();
+                if( future==null ) {
+                    receivedFrames.add(value);
+                } else {
+                    future.complete(value);
+                }
+            }
+        });
+        this.connection.resume();
+    }
+
+    public StompFrame connectedFrame() {
+        return connection.connectedFrame();
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return this.connection.getDispatchQueue();
+    }
+
+    public AsciiBuffer nextId() {
+        return connection.nextId();
+    }
+
+    public AsciiBuffer nextId(String prefix) {
+        return connection.nextId(prefix);
+    }
+
+    /**
+     * Sends the frame with a receipt request.
+     *
+     * @return a future completed with the RECEIPT frame.
+     */
+    public CompletableFuture<StompFrame> request(final StompFrame frame) {
+        final CompletableFuture<StompFrame> future = new CompletableFuture<StompFrame>();
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                connection.request(frame, complete(future));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return a future completed once the frame has been handed to the transport.
+     */
+    public CompletableFuture<Void> send(final StompFrame frame) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                connection.send(frame, complete(future));
+            }
+        });
+        return future;
+    }
+
+    private void failReceives(Throwable value) {
+        getDispatchQueue().assertExecuting();
+        ArrayList<CompletableFuture<StompFrame>> tmp = new ArrayList<CompletableFuture<StompFrame>>(receiveFutures);
+        receiveFutures.clear();
+        for (CompletableFuture<StompFrame> future : tmp) {
+            future.completeExceptionally(value);
+        }
+    }
+
+    /**
+     * @return a future completed with the next frame received from the server.
+     */
+    public CompletableFuture<StompFrame> receive() {
+        final CompletableFuture<StompFrame> future = new CompletableFuture<StompFrame>();
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                StompFrame frame = receivedFrames.poll();
+                if( frame!=null ) {
+                    future.complete(frame);
+                } else if( connection.getFailure()!=null ) {
+                    future.completeExceptionally(connection.getFailure());
+                } else if( publisher!=null && publisher.isAttached() ) {
+                    future.completeExceptionally(new IllegalStateException(FutureConnection.DETACHED));
+                } else {
+                    receiveFutures.add(future);
+                }
+            }
+        });
+        return future;
+    }
+
+    public CompletableFuture<Void> close() {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                connection.close(new Runnable() {
+                    public void run() {
+                        getDispatchQueue().execute(new Task() {
+                            public void run() {
+                                if( publisher!=null ) {
+                                    publisher.complete();
+                                }
+                            }
+                        });
+                        future.complete(null);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @see FutureConnection#publisher()
+     */
+    public synchronized Flow.Publisher<StompFrame> publisher() {
+        if( publisher==null ) {
+            publisher = new FramePublisher(connection, receivedFrames, new Task() {
+                public void run() {
+                    failReceives(new IllegalStateException(FutureConnection.DETACHED));
+                }
+            });
+        }
+        return publisher;
+    }
+
+    /**
+     * @see CallbackConnection#cork()
+     */
+    public void cork() {
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                connection.cork();
+            }
+        });
+    }
+
+    /**
+     * @see CallbackConnection#uncork()
+     */
+    public void uncork() {
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                connection.uncork();
+            }
+        });
+    }
+
+    public void resume() {
+        connection.resume();
+    }
+
+    public void suspend() {
+        connection.suspend();
+    }
+
+    static <T> Callback<T> complete(final CompletableFuture<T> future) {
+        return new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                future.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable value) {
+                future.completeExceptionally(value);
+            }
+        };
+    }
+}
@@ -80,6 +80,14 @@ public class BlockingConnection {
         return connection.connectedFrame();
     }
 
+    public void cork() {
+        connection.cork();
+    }
+
+    public void uncork() {
+        connection.uncork();
+    }
+
     public void resume() {
         connection.resume();
     }
@@ -13,6 +13,8 @@ import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.fusesource.hawtdispatch.Task;
 import org.fusesource.hawtdispatch.transport.DefaultTransportListener;
+import org.fusesource.hawtdispatch.transport.HeartBeatMonitor;
+import org.fusesource.stomp.codec.StompProtocolCodec;
 import org.fusesource.stomp.codec.StompFrame;
 import org.fusesource.hawtdispatch.transport.Transport;
 import org.fusesource.hawtdispatch.transport.TransportListener;
@@ -20,8 +22,10 @@ import org.fusesource.hawtdispatch.transport.TransportListener;
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static org.fusesource.hawtdispatch.Dispatch.NOOP;
 import static org.fusesource.stomp.client.Constants.*;
 
 /**
@@ -32,26 +36,33 @@ import static org.fusesource.stomp.client.Constants.*;
  */
 public class CallbackConnection {
 
-    private static class OverflowEntry {
-        final StompFrame frame;
-        final Callback<Void> cb;
-
-        OverflowEntry(StompFrame frame, Callback<Void> cb) {
-            this.cb = cb;
-            this.frame = frame;
-        }
-    }
-
-
     private final Transport transport;
     private final StompFrame connectedFrame;
     private Callback<StompFrame> receiver;
     private Runnable refiller;
     private final AtomicLong requestCounter = new AtomicLong();
-    private HashMap<AsciiBuffer, Callback<StompFrame>> requests = new HashMap<AsciiBuffer, Callback<StompFrame>>();
-    private LinkedList<OverflowEntry> overflow = new LinkedList<OverflowEntry>();
+    final ReceiptRing receipts = new ReceiptRing(64);
+    private final ArrayList<Callback<StompFrame>> receipted = new ArrayList<Callback<StompFrame>>();
+    private boolean cumulativeReceipts;
+    private final OverflowQueue overflow = new OverflowQueue(16);
+    private long overflowHighWatermark;
+    private long overflowLowWatermark;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private boolean writable = true;
+    // the frames the overflow policy failed or dropped, those without a
+    // send callback could not be told about it otherwise.
+    private long overflowDiscarded;
 
     private Throwable failure;
+    private HeartBeatMonitor heartBeatMonitor;
+
+    // While corked, sent frames are held in the overflow list.
+    private int corked;
+    private boolean autoCorked;
+    private int corkedSize;
+    private int autoFlushSize;
+    private long autoFlushDelay;
+    private long autoFlushWindow;
 
     CallbackConnection(Transport transport, StompFrame connectedFrame) {
         this.transport = transport;
@@ -77,6 +88,67 @@ public class CallbackConnection {
         return transport;
     }
 
+    /**
+     * Starts sending and checking heart-beats at the intervals negotiated
+     * with the server in the CONNECTED frame.
+     *
+     * @param sendInterval the send interval offered in the CONNECT frame.
+     * @param receiveInterval the receive interval asked for in the CONNECT frame.
+     */
+    void startHeartBeats(long sendInterval, long receiveInterval) {
+        AsciiBuffer value = connectedFrame.getHeader(HEART_BEAT);
+        if( value==null ) {
+            return;
+        }
+        long serverSend;
+        long serverReceive;
+        try {
+            String[] parts = value.toString().split(",");
+            serverSend = Long.parseLong(parts[0].trim());
+            serverReceive = Long.parseLong(parts[1].trim());
+        } catch (RuntimeException e) {
+            return;
+        }
+        final long writeInterval = heartBeatInterval(sendInterval, serverReceive);
+        final long readInterval = heartBeatInterval(receiveInterval, serverSend);
+        if( writeInterval == 0 && readInterval == 0 ) {
+            return;
+        }
+        heartBeatMonitor = new HeartBeatMonitor();
+        heartBeatMonitor.setTransport(transport);
+        // The monitor sends when nothing was written during a whole check
+        // interval, so check twice per interval to stay within the promise.
+        heartBeatMonitor.setWriteInterval(writeInterval / 2);
+        // Allow for some network delay before giving up on the server.
+        heartBeatMonitor.setReadInterval(readInterval + readInterval / 2);
+        heartBeatMonitor.setOnKeepAlive(new Task() {
+            public void run() {
+                if( overflow.isEmpty() && !transport.full() ) {
+                    transport.offer(StompProtocolCodec.KEEP_ALIVE);
+                }
+            }
+        });
+        heartBeatMonitor.setOnDead(new Task() {
+            public void run() {
+                processFailure(new ProtocolException("Stomp heart-beat timeout: nothing received from the server for " + (readInterval + readInterval / 2) + " ms"));
+                transport.stop(NOOP);
+            }
+        });
+        // reads stay suspended until the connection gets resumed.
+        heartBeatMonitor.suspendRead();
+        heartBeatMonitor.start();
+    }
+
+    /**
+     * @return the negotiated interval, 0 if either side does not want heart-beats.
+     */
+    static long heartBeatInterval(long ours, long theirs) {
+        if( ours <= 0 || theirs <= 0 ) {
+            return 0;
+        }
+        return Math.max(ours, theirs);
+    }
+
     public CallbackConnection refiller(Runnable refiller) {
         getDispatchQueue().assertExecuting();
         this.refiller = refiller;
@@ -95,9 +167,21 @@ public class CallbackConnection {
         if (action.equals(RECEIPT)) {
             AsciiBuffer id = frame.getHeader(RECEIPT_ID);
             if (id != null) {
-                Callback<StompFrame> cb = this.requests.remove(id);
-                if (cb != null) {
-                    cb.onSuccess(frame);
+                long sequence = ReceiptRing.sequence(id);
+                if( cumulativeReceipts ) {
+                    receipted.clear();
+                    receipts.removeUpTo(sequence, receipted);
+                } else {
+                    Callback<StompFrame> cb = receipts.remove(sequence);
+                    if( cb!=null ) {
+                        receipted.add(cb);
+                    }
+                }
+                if( !receipted.isEmpty() ) {
+                    for (int i = 0; i < receipted.size(); i++) {
+                        receipted.get(i).onSuccess(frame);
+                    }
+                    receipted.clear();
                 } else {
                     if( !toReceiver(frame) ) {
                         processFailure(new ProtocolException("Stomp Response without a valid receipt id: " + id + " for frame " + frame));
@@ -107,7 +191,7 @@ public class CallbackConnection {
                 processFailure(new ProtocolException("Stomp Response with no receipt id: " + frame));
             }
         } else if (action.startsWith(ERROR)) {
-            processFailure(new ProtocolException("Received an error: " + frame.errorMessage()));
+            processFailure(new ProtocolException("Received an error: " + frame.errorMessage(), true));
         } else {
             toReceiver(frame);
         }
@@ -128,6 +212,9 @@ public class CallbackConnection {
     private void processFailure(Throwable error) {
         if( failure == null ) {
             failure = error;
+            if( heartBeatMonitor!=null ) {
+                heartBeatMonitor.stop();
+            }
             failRequests(failure);
             if( receiver!=null ) {
                 try {
@@ -140,17 +227,15 @@ public class CallbackConnection {
     }
 
     private void failRequests(Throwable failure) {
-        ArrayList<Callback<Void>> values = new ArrayList(requests.values());
-        requests.clear();
-        for (Callback<Void> value : values) {
+        for (Callback<StompFrame> value : receipts.clear()) {
             value.onFailure(failure);
         }
 
-        ArrayList<OverflowEntry> overflowEntries = new ArrayList<OverflowEntry>(overflow);
-        overflow.clear();
-        for (OverflowEntry entry : overflowEntries) {
-            if( entry.cb !=null ) {
-                entry.cb.onFailure(failure);
+        corkedSize = 0;
+        writable = true;
+        for (Callback<Void> cb : overflow.clear()) {
+            if( cb!=null ) {
+                cb.onFailure(failure);
             }
         }
     }
@@ -160,13 +245,22 @@ public class CallbackConnection {
     }
 
     public void resume() {
+        if( heartBeatMonitor!=null ) {
+            heartBeatMonitor.resumeRead();
+        }
         this.transport.resumeRead();
     }
     public void suspend() {
+        if( heartBeatMonitor!=null ) {
+            heartBeatMonitor.suspendRead();
+        }
         this.transport.suspendRead();
     }
 
     public void close(final Runnable onComplete) {
+        if( heartBeatMonitor!=null ) {
+            heartBeatMonitor.stop();
+        }
         failRequests(new ClosedChannelException());
         this.transport.stop(new Task() {
             public void run() {
@@ -209,30 +303,130 @@ public class CallbackConnection {
         if( failure !=null ) {
             cb.onFailure(failure);
         } else {
-            AsciiBuffer id = nextId();
-            this.requests.put(id, cb);
-            frame.addHeader(RECEIPT_REQUESTED, id);
-            send(frame, null);
+            final long sequence = receipts.add(cb);
+            frame.addHeader(RECEIPT_REQUESTED, ReceiptRing.id(sequence));
+            send(frame, new Callback<Void>() {
+                @Override
+                public void onFailure(Throwable value) {
+                    // refused or dropped by the overflow policy, the receipt
+                    // won't come.  Null if a connection failure got it first.
+                    Callback<StompFrame> pending = receipts.remove(sequence);
+                    if( pending!=null ) {
+                        pending.onFailure(value);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * When enabled, a receipt also completes all the requests sent before
+     * the one it acknowledges.  Brokers which process the frames of a
+     * connection in order can then receipt only every so often.
+     */
+    public void setCumulativeReceipts(boolean cumulativeReceipts) {
+        this.cumulativeReceipts = cumulativeReceipts;
+    }
+
+    public boolean isCumulativeReceipts() {
+        return cumulativeReceipts;
+    }
+
+    /**
+     * Holds back the frames sent from now on until {@link #uncork()} is
+     * called, so that they get written out together in as few socket writes
+     * as possible.  Calls can be nested, the frames are written once every
+     * cork() has been matched with an uncork().
+     */
+    public void cork() {
+        getDispatchQueue().assertExecuting();
+        corked++;
+    }
+
+    public void uncork() {
+        getDispatchQueue().assertExecuting();
+        assert corked > 0 : "uncork() called without a matching cork()";
+        if( --corked == 0 ) {
+            flushCorked();
+        }
+    }
+
+    public boolean isCorked() {
+        getDispatchQueue().assertExecuting();
+        return corked > 0 || autoCorked;
+    }
+
+    /**
+     * Enables adaptive write coalescing.  A frame sent while the connection
+     * is idle is written right away, frames sent shortly after it are held
+     * back and written together once maxSize bytes have been held or the
+     * maxDelay has passed, whichever comes first.
+     * <p/>
+     * Delays shorter than the dispatch timer resolution (1 ms) don't start a
+     * timer, the held frames are instead written as soon as the tasks already
+     * queued on the connection's dispatch queue have run, which coalesces the
+     * frames of a burst that is being queued without delaying a lone frame.
+     *
+     * @param maxSize the number of held bytes which triggers a write, 0 disables auto flushing.
+     * @param maxDelay the longest time a frame is held back.
+     */
+    public void autoFlush(int maxSize, long maxDelay, TimeUnit unit) {
+        getDispatchQueue().assertExecuting();
+        this.autoFlushSize = maxSize;
+        this.autoFlushDelay = unit.toMicros(maxDelay);
+        if( maxSize <= 0 && autoCorked ) {
+            flushCorked();
+        }
+    }
+
+    private void flushCorked() {
+        autoCorked = false;
+        autoFlushWindow++;
+        if( corked == 0 ) {
+            corkedSize = 0;
+            drainOverflow();
+        }
+    }
+
+    private void startAutoFlushWindow() {
+        autoCorked = true;
+        final long window = ++autoFlushWindow;
+        Task flush = new Task() {
+            public void run() {
+                if( autoCorked && window == autoFlushWindow ) {
+                    flushCorked();
+                }
+            }
+        };
+        if( autoFlushDelay >= 1000 ) {
+            getDispatchQueue().executeAfter(autoFlushDelay, TimeUnit.MICROSECONDS, flush);
+        } else {
+            getDispatchQueue().execute(flush);
         }
     }
 
     private void drainOverflow() {
         getDispatchQueue().assertExecuting();
-        if( overflow.isEmpty() ){
+        if( overflow.isEmpty() || corked > 0 || autoCorked ){
             return;
         }
-        OverflowEntry entry;
-        while((entry=overflow.peek())!=null) {
-            if( offer(entry.frame) ) {
-                overflow.removeFirst();
-                if( entry.cb!=null ) {
-                    entry.cb.onSuccess(null);
+        StompFrame frame;
+        while((frame=overflow.peek())!=null) {
+            if( offer(frame) ) {
+                Callback<Void> cb = overflow.removeFirst();
+                if( cb!=null ) {
+                    cb.onSuccess(null);
                 }
             } else {
                 break;
             }
         }
-        if( overflow.isEmpty() ) {
+        boolean refill = overflow.isEmpty();
+        if( !writable && overflow.bytes() <= lowWatermark() ) {
+            writable = true;
+            refill = true;
+        }
+        if( refill ) {
             if( refiller!=null ) {
                 try {
                     refiller.run();
@@ -249,15 +443,143 @@ public class CallbackConnection {
             if( cb!=null ) {
                 cb.onFailure(failure);
             }
+        } else if( corked > 0 || autoCorked ) {
+            // corked frames are held whatever the policy, failing part of a
+            // batch would break it up.
+            int size = frame.size();
+            queue(frame, cb, size);
+            corkedSize += size;
+            if( autoCorked && autoFlushSize > 0 && corkedSize >= autoFlushSize ) {
+                flushCorked();
+            }
         } else {
             if( overflow.isEmpty() && offer(frame) ) {
+                if( autoFlushSize > 0 ) {
+                    startAutoFlushWindow();
+                }
                 if( cb!=null ) {
                     cb.onSuccess(null);
                 }
             } else {
-                overflow.addLast(new OverflowEntry(frame, cb));
+                overflow(frame, cb, frame.size());
+            }
+        }
+    }
+
+    /**
+     * Queues a frame the transport can't take yet, applying the overflow
+     * policy once the high watermark has been reached.
+     *
+     * @return true if the frame was queued.
+     */
+    private boolean overflow(StompFrame frame, Callback<Void> cb, int size) {
+        if( overflowHighWatermark > 0 && overflow.bytes() + size > overflowHighWatermark ) {
+            switch (overflowPolicy) {
+                case FAIL:
+                    overflowDiscarded++;
+                    if( cb!=null ) {
+                        cb.onFailure(new IOException("The connection's overflow queue is full"));
+                    }
+                    return false;
+                case DROP_OLDEST:
+                    int position;
+                    while (overflow.bytes() + size > overflowHighWatermark && (position = overflow.indexOfNonPersistent()) >= 0) {
+                        Callback<Void> dropped = overflow.removeAt(position);
+                        overflowDiscarded++;
+                        if( dropped!=null ) {
+                            dropped.onFailure(new IOException("The frame was dropped from the connection's overflow queue"));
+                        }
+                    }
+                    if( overflow.bytes() + size > overflowHighWatermark && OverflowQueue.isNonPersistent(frame) ) {
+                        overflowDiscarded++;
+                        if( cb!=null ) {
+                            cb.onFailure(new IOException("The frame was dropped from the connection's overflow queue"));
+                        }
+                        return false;
+                    }
+                    break;
+                default:
             }
         }
+        queue(frame, cb, size);
+        return true;
+    }
+
+    private void queue(StompFrame frame, Callback<Void> cb, int size) {
+        overflow.add(frame, cb, size);
+        if( overflowHighWatermark > 0 && overflow.bytes() >= overflowHighWatermark ) {
+            writable = false;
+        }
+    }
+
+    private long lowWatermark() {
+        return overflowLowWatermark > 0 ? overflowLowWatermark : overflowHighWatermark / 2;
+    }
+
+    /**
+     * Bounds the size of the frames waiting for the transport.  Once the
+     * high watermark is reached the connection is no longer writable and
+     * the overflow policy applies to the frames sent, once the backlog has
+     * been written down to the low watermark the connection becomes
+     * writable again and the refiller is run.
+     * <p/>
+     * The watermarks only bound the backlog when the policy is not
+     * {@link OverflowPolicy#BLOCK}, or when the senders stop while the
+     * connection is not {@link #isWritable() writable}, since sending never
+     * blocks the dispatch queue.  The frames sent while corked are always
+     * held until uncorked, they count towards the watermarks but the
+     * policy does not apply to them.
+     *
+     * @param high the high watermark in bytes, 0 for no limit.
+     * @param low the low watermark in bytes, 0 for half the high watermark.
+     */
+    public void overflowWatermarks(long high, long low) {
+        getDispatchQueue().assertExecuting();
+        this.overflowHighWatermark = high;
+        this.overflowLowWatermark = low;
+        this.writable = high <= 0 || overflow.bytes() < high;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return false while the frames waiting for the transport are over the
+     * high watermark.
+     */
+    public boolean isWritable() {
+        getDispatchQueue().assertExecuting();
+        return writable;
+    }
+
+    /**
+     * @return the number of frames waiting for the transport.
+     */
+    public int getOverflowSize() {
+        getDispatchQueue().assertExecuting();
+        return overflow.size();
+    }
+
+    /**
+     * @return the total size in bytes of the frames waiting for the transport.
+     */
+    public long getOverflowBytes() {
+        getDispatchQueue().assertExecuting();
+        return overflow.bytes();
+    }
+
+    /**
+     * @return the number of frames the overflow policy failed or dropped,
+     * including the ones sent without a callback.
+     */
+    public long getOverflowDiscarded() {
+        getDispatchQueue().assertExecuting();
+        return overflowDiscarded;
     }
 
 
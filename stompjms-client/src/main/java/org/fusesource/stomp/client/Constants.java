@@ -62,6 +62,7 @@ public interface Constants {
     final AsciiBuffer TRANSACTION = ascii("transaction");
     final AsciiBuffer CONTENT_LENGTH = ascii("content-length");
     final AsciiBuffer CONTENT_TYPE = ascii("content-type");
+    final AsciiBuffer CONTENT_ENCODING = ascii("content-encoding");
     final AsciiBuffer TRANSFORMATION = ascii("transformation");
     final AsciiBuffer TRANSFORMATION_ERROR = ascii("transformation-error");
 
@@ -99,6 +100,7 @@ public interface Constants {
     final AsciiBuffer SESSION = ascii("session");
     final AsciiBuffer RESPONSE_ID = ascii("response-id");
     final AsciiBuffer ACCEPT_VERSION = ascii("accept-version");
+    final AsciiBuffer HEART_BEAT = ascii("heart-beat");
     final AsciiBuffer V1_1 = ascii("1.1");
     final AsciiBuffer V1_0 = ascii("1.0");
     final AsciiBuffer HOST = ascii("host");
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * The brokers and reconnect delays of a failover URI such as
+ * <code>failover:(tcp://a:61613,tcp://b:61613)?maxReconnectDelay=5000</code>.
+ * The brokers are tried in turn and the delay between attempts grows
+ * exponentially up to the maximum.  The supported options are
+ * <code>initialReconnectDelay</code> (ms, default 10),
+ * <code>maxReconnectDelay</code> (ms, default 30000),
+ * <code>backOffMultiplier</code> (default 2) and
+ * <code>maxReconnectAttempts</code> (default -1, retry forever).
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class Failover {
+
+    private final List<URI> uris;
+    private long initialReconnectDelay = 10;
+    private long maxReconnectDelay = 30000;
+    private double backOffMultiplier = 2;
+    private int maxReconnectAttempts = -1;
+
+    public Failover(List<URI> uris) {
+        if( uris.isEmpty() ) {
+            throw new IllegalArgumentException("A failover URI needs at least one broker URI");
+        }
+        this.uris = Collections.unmodifiableList(new ArrayList<URI>(uris));
+    }
+
+    public static boolean isFailover(URI uri) {
+        return uri!=null && "failover".equals(uri.getScheme());
+    }
+
+    public static Failover parse(URI uri) throws URISyntaxException {
+        if( !isFailover(uri) ) {
+            throw new URISyntaxException(uri.toString(), "Not a failover URI");
+        }
+        String ssp = uri.getRawSchemeSpecificPart();
+        String list;
+        String query = null;
+        if( ssp.startsWith("(") ) {
+            int end = ssp.lastIndexOf(')');
+            if( end < 0 ) {
+                throw new URISyntaxException(uri.toString(), "Unbalanced parenthesis");
+            }
+            list = ssp.substring(1, end);
+            if( end + 1 < ssp.length() ) {
+                if( ssp.charAt(end + 1) != '?' ) {
+                    throw new URISyntaxException(uri.toString(), "Expected the options after the broker URIs");
+                }
+                query = ssp.substring(end + 2);
+            }
+        } else {
+            int q = ssp.indexOf('?');
+            list = q < 0 ? ssp : ssp.substring(0, q);
+            query = q < 0 ? null : ssp.substring(q + 1);
+        }
+
+        ArrayList<URI> uris = new ArrayList<URI>();
+        for (String item : list.split(",")) {
+            item = item.trim();
+            if( item.length() > 0 ) {
+                uris.add(new URI(item));
+            }
+        }
+        if( uris.isEmpty() ) {
+            throw new URISyntaxException(uri.toString(), "No broker URIs");
+        }
+
+        Failover rc = new Failover(uris);
+        if( query!=null && query.length() > 0 ) {
+            for (String option : query.split("&")) {
+                int eq = option.indexOf('=');
+                if( eq < 0 ) {
+                    throw new URISyntaxException(uri.toString(), "Invalid option: "+option);
+                }
+                String name = option.substring(0, eq);
+                String value = option.substring(eq + 1);
+                try {
+                    if( "initialReconnectDelay".equals(name) ) {
+                        rc.setInitialReconnectDelay(Long.parseLong(value));
+                    } else if( "maxReconnectDelay".equals(name) ) {
+                        rc.setMaxReconnectDelay(Long.parseLong(value));
+                    } else if( "backOffMultiplier".equals(name) ) {
+                        rc.setBackOffMultiplier(Double.parseDouble(value));
+                    } else if( "maxReconnectAttempts".equals(name) ) {
+                        rc.setMaxReconnectAttempts(Integer.parseInt(value));
+                    } else {
+                        throw new URISyntaxException(uri.toString(), "Unknown option: "+name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new URISyntaxException(uri.toString(), "Invalid value for "+name+": "+value);
+                }
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * @return the broker to use for the given attempt, going round the list.
+     */
+    public URI uri(int attempt) {
+        return uris.get(attempt % uris.size());
+    }
+
+    /**
+     * @return how long to wait before the given attempt.  The first attempt
+     * is made right away.
+     */
+    public long delay(int attempt) {
+        if( attempt <= 0 ) {
+            return 0;
+        }
+        double rc = initialReconnectDelay;
+        for (int i = 1; i < attempt && rc < maxReconnectDelay; i++) {
+            rc *= backOffMultiplier;
+        }
+        return (long) Math.min(rc, maxReconnectDelay);
+    }
+
+    /**
+     * @return true if no more attempts should be made after the given number
+     * of failed ones.
+     */
+    public boolean isExhausted(int attempts) {
+        return maxReconnectAttempts >= 0 && attempts > maxReconnectAttempts;
+    }
+
+    public List<URI> getURIs() {
+        return uris;
+    }
+
+    public long getInitialReconnectDelay() {
+        return initialReconnectDelay;
+    }
+
+    public void setInitialReconnectDelay(long initialReconnectDelay) {
+        this.initialReconnectDelay = initialReconnectDelay;
+    }
+
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    public double getBackOffMultiplier() {
+        return backOffMultiplier;
+    }
+
+    public void setBackOffMultiplier(double backOffMultiplier) {
+        this.backOffMultiplier = backOffMultiplier;
+    }
+
+    public int getMaxReconnectAttempts() {
+        return maxReconnectAttempts;
+    }
+
+    /**
+     * @param maxReconnectAttempts how many times to retry after the first
+     * attempt, -1 to retry forever.
+     */
+    public void setMaxReconnectAttempts(int maxReconnectAttempts) {
+        this.maxReconnectAttempts = maxReconnectAttempts;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Flow;
+
+/**
+ * <p>
+ * Publishes the frames received on a connection to a single subscriber
+ * at a time.  Reading from the transport is suspended whenever the
+ * subscriber has no outstanding demand, so frames stay in the socket
+ * buffers (and the broker's TCP flow control kicks in) instead of
+ * piling up in memory.
+ * </p>
+ * <p>
+ * Since RECEIPT frames are read from the same socket, requests waiting
+ * for a receipt only complete while there is demand.  All the
+ * subscriber callbacks are made from the connection's dispatch queue.
+ * </p>
+ * <p>
+ * The connection gets told when the first subscriber takes over the
+ * received frames, so that it can fail the receives still waiting.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FramePublisher implements Flow.Publisher<StompFrame> {
+
+    private final CallbackConnection connection;
+    private final ArrayDeque<StompFrame> buffered = new ArrayDeque<StompFrame>();
+    private Queue<StompFrame> backlog;
+    private final Task onAttach;
+    private FrameSubscription current;
+    private boolean attached;
+    private boolean suspended;
+    private boolean completed;
+    private Throwable failure;
+
+    FramePublisher(CallbackConnection connection, Queue<StompFrame> backlog, Task onAttach) {
+        this.connection = connection;
+        this.backlog = backlog;
+        this.onAttach = onAttach;
+    }
+
+    public void subscribe(final Flow.Subscriber<? super StompFrame> subscriber) {
+        if( subscriber==null ) {
+            throw new NullPointerException("subscriber");
+        }
+        connection.getDispatchQueue().execute(new Task() {
+            public void run() {
+                FrameSubscription subscription = new FrameSubscription(subscriber);
+                if( current!=null ) {
+                    subscription.cancelled = true;
+                    subscriber.onSubscribe(subscription);
+                    subscriber.onError(new IllegalStateException("The publisher already has a subscriber"));
+                    return;
+                }
+                attach();
+                current = subscription;
+                subscriber.onSubscribe(subscription);
+                drain();
+            }
+        });
+    }
+
+    private void attach() {
+        if( attached ) {
+            return;
+        }
+        attached = true;
+        if( backlog!=null ) {
+            buffered.addAll(backlog);
+            backlog.clear();
+            backlog = null;
+        }
+        connection.receive(new Callback<StompFrame>() {
+            @Override
+            public void onSuccess(StompFrame value) {
+                buffered.add(value);
+                drain();
+            }
+
+            @Override
+            public void onFailure(Throwable value) {
+                failure = value;
+                drain();
+            }
+        });
+        if( connection.getFailure()!=null ) {
+            failure = connection.getFailure();
+        }
+        if( onAttach!=null ) {
+            onAttach.run();
+        }
+    }
+
+    /**
+     * @return true once a subscriber took over the received frames.
+     */
+    boolean isAttached() {
+        connection.getDispatchQueue().assertExecuting();
+        return attached;
+    }
+
+    /**
+     * Completes the current subscriber once the buffered frames have been
+     * delivered.  Called when the connection is closed.
+     */
+    void complete() {
+        connection.getDispatchQueue().assertExecuting();
+        completed = true;
+        drain();
+    }
+
+    private void drain() {
+        FrameSubscription subscription = current;
+        if( subscription!=null ) {
+            while (subscription.requested > 0 && !buffered.isEmpty() && !subscription.cancelled) {
+                if( subscription.requested != Long.MAX_VALUE ) {
+                    subscription.requested--;
+                }
+                subscription.subscriber.onNext(buffered.poll());
+            }
+            if( !subscription.cancelled && buffered.isEmpty() && (failure!=null || completed) ) {
+                current = null;
+                subscription.cancelled = true;
+                if( failure!=null ) {
+                    subscription.subscriber.onError(failure);
+                } else {
+                    subscription.subscriber.onComplete();
+                }
+                return;
+            }
+        }
+        boolean demand = subscription!=null && !subscription.cancelled && subscription.requested > 0;
+        if( demand && suspended ) {
+            suspended = false;
+            connection.resume();
+        } else if( !demand && !suspended && failure==null && !completed ) {
+            suspended = true;
+            connection.suspend();
+        }
+    }
+
+    class FrameSubscription implements Flow.Subscription {
+
+        final Flow.Subscriber<? super StompFrame> subscriber;
+        long requested;
+        boolean cancelled;
+
+        FrameSubscription(Flow.Subscriber<? super StompFrame> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(final long n) {
+            connection.getDispatchQueue().execute(new Task() {
+                public void run() {
+                    if( cancelled ) {
+                        return;
+                    }
+                    if( n <= 0 ) {
+                        cancelled();
+                        subscriber.onError(new IllegalArgumentException("Requested " + n + " frames, expected a positive number"));
+                        return;
+                    }
+                    requested += n;
+                    if( requested < 0 ) {
+                        requested = Long.MAX_VALUE;
+                    }
+                    if( current == FrameSubscription.this ) {
+                        drain();
+                    }
+                }
+            });
+        }
+
+        public void cancel() {
+            connection.getDispatchQueue().execute(new Task() {
+                public void run() {
+                    cancelled();
+                }
+            });
+        }
+
+        private void cancelled() {
+            if( !cancelled ) {
+                cancelled = true;
+                if( current == this ) {
+                    // keeps the transport suspended until the next subscriber asks for frames.
+                    current = null;
+                    drain();
+                }
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@ import org.fusesource.stomp.codec.StompFrame;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.Flow;
 
 /**
  * <p>
@@ -27,20 +28,18 @@ public class FutureConnection {
 
     private final CallbackConnection connection;
 
+    static final String DETACHED = "The received frames are handed to the publisher's subscriber";
+
     private LinkedList<Promise<StompFrame>> receiveFutures = new LinkedList<Promise<StompFrame>>();
     private LinkedList<StompFrame> receivedFrames = new LinkedList<StompFrame>();
+    private volatile FramePublisher publisher;
 
     FutureConnection(CallbackConnection connection) {
         this.connection = connection;
         this.connection.receive(new Callback<StompFrame>() {
             @Override
             public void onFailure(Throwable value) {
-                getDispatchQueue().assertExecuting();
-                ArrayList<Promise<StompFrame>> tmp = new ArrayList<Promise<StompFrame>>(receiveFutures);
-                receiveFutures.clear();
-                for (Promise<StompFrame> future : tmp) {
-                    future.onFailure(value);
-                }
+                failReceives(value);
             }
 
             @Override
@@ -56,6 +55,15 @@ public class FutureConnection {
         this.connection.resume();
     }
 
+    private void failReceives(Throwable value) {
+        getDispatchQueue().assertExecuting();
+        ArrayList<Promise<StompFrame>> tmp = new ArrayList<Promise<StompFrame>>(receiveFutures);
+        receiveFutures.clear();
+        for (Promise<StompFrame> future : tmp) {
+            future.onFailure(value);
+        }
+    }
+
     public StompFrame connectedFrame() {
         return connection.connectedFrame();
     }
@@ -68,12 +76,37 @@ public class FutureConnection {
         final Promise<Void> future = new Promise<Void>();
         connection.close(new Runnable() {
             public void run() {
+                getDispatchQueue().execute(new Task() {
+                    public void run() {
+                        if( publisher!=null ) {
+                            publisher.complete();
+                        }
+                    }
+                });
                 future.onSuccess(null);
             }
         });
         return future;
     }
 
+    /**
+     * Returns a publisher of the frames received on the connection.  Once
+     * something subscribes to it, received frames are handed to the
+     * subscriber instead of being buffered for {@link #receive()}, and
+     * the transport only reads while the subscriber has demand.  Pending
+     * and later {@link #receive()} futures fail once it subscribed.
+     */
+    public synchronized Flow.Publisher<StompFrame> publisher() {
+        if( publisher==null ) {
+            publisher = new FramePublisher(connection, receivedFrames, new Task() {
+                public void run() {
+                    failReceives(new IllegalStateException(DETACHED));
+                }
+            });
+        }
+        return publisher;
+    }
+
 
     public AsciiBuffer nextId() {
         return connection.nextId();
@@ -109,6 +142,8 @@ public class FutureConnection {
             public void run() {
                 if( connection.getFailure()!=null ) {
                     future.onFailure(connection.getFailure());
+                } else if( publisher!=null && publisher.isAttached() ) {
+                    future.onFailure(new IllegalStateException(DETACHED));
                 } else {
                     if( receivedFrames.isEmpty() ) {
                         receiveFutures.add(future);
@@ -121,6 +156,28 @@ public class FutureConnection {
         return future;
     }
 
+    /**
+     * @see CallbackConnection#cork()
+     */
+    public void cork() {
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                connection.cork();
+            }
+        });
+    }
+
+    /**
+     * @see CallbackConnection#uncork()
+     */
+    public void uncork() {
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                connection.uncork();
+            }
+        });
+    }
+
     public void resume() {
         connection.resume();
     }
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+/**
+ * <p>
+ * What a connection does with a sent frame once the frames waiting for
+ * the transport have reached the overflow high watermark.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Queues the frame anyway.  Its send callback only completes once it
+     * has been written, so callers waiting on it are held back.  This does
+     * not bound the memory held by the connection, the senders have to
+     * stop while it's not writable for that.
+     */
+    BLOCK,
+
+    /**
+     * Fails the send of the frame.  A frame sent without a callback is
+     * only counted, see {@link CallbackConnection#getOverflowDiscarded()}.
+     */
+    FAIL,
+
+    /**
+     * Drops the oldest non-persistent SEND frames until the backlog is
+     * below the high watermark again, failing their send callbacks.  If
+     * that's not enough, a non-persistent frame is failed and a persistent
+     * one is queued anyway.
+     */
+    DROP_OLDEST
+}
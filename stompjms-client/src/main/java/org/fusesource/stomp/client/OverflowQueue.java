@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.util.ArrayList;
+
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * The frames a connection could not hand to its transport yet, kept in
+ * parallel arrays used as a ring so that queuing a frame does not
+ * allocate, along with the total size of the queued frames.  Only the
+ * dispatch queue of the connection should access it.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class OverflowQueue {
+
+    private StompFrame[] frames;
+    private Callback<Void>[] callbacks;
+    private int[] sizes;
+    private int head;
+    private int count;
+    private long bytes;
+
+    OverflowQueue(int capacity) {
+        int rc = 1;
+        while (rc < capacity) {
+            rc <<= 1;
+        }
+        frames = new StompFrame[rc];
+        callbacks = newCallbacks(rc);
+        sizes = new int[rc];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Callback<Void>[] newCallbacks(int capacity) {
+        return new Callback[capacity];
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the total size of the queued frames.
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    void add(StompFrame frame, Callback<Void> cb, int size) {
+        if( count == frames.length ) {
+            grow();
+        }
+        int index = (head + count) & (frames.length - 1);
+        frames[index] = frame;
+        callbacks[index] = cb;
+        sizes[index] = size;
+        count++;
+        bytes += size;
+    }
+
+    private void grow() {
+        int capacity = frames.length << 1;
+        StompFrame[] grownFrames = new StompFrame[capacity];
+        Callback<Void>[] grownCallbacks = newCallbacks(capacity);
+        int[] grownSizes = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) & (frames.length - 1);
+            grownFrames[i] = frames[index];
+            grownCallbacks[i] = callbacks[index];
+            grownSizes[i] = sizes[index];
+        }
+        frames = grownFrames;
+        callbacks = grownCallbacks;
+        sizes = grownSizes;
+        head = 0;
+    }
+
+    /**
+     * @return the oldest frame or null if the queue is empty.
+     */
+    StompFrame peek() {
+        return count == 0 ? null : frames[head];
+    }
+
+    /**
+     * Removes the oldest frame.
+     *
+     * @return the send callback of the frame.
+     */
+    Callback<Void> removeFirst() {
+        return removeAt(0);
+    }
+
+    /**
+     * @return the position of the oldest SEND frame which is not
+     * persistent or -1 if there is none.
+     */
+    int indexOfNonPersistent() {
+        for (int i = 0; i < count; i++) {
+            if( isNonPersistent(frames[(head + i) & (frames.length - 1)]) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isNonPersistent(StompFrame frame) {
+        if( !frame.action().equals(SEND) ) {
+            return false;
+        }
+        AsciiBuffer persistent = frame.getHeader(PERSISTENT);
+        return persistent==null || !persistent.equals(TRUE);
+    }
+
+    /**
+     * Removes the frame at the given position, counting from the oldest.
+     *
+     * @return the send callback of the frame.
+     */
+    Callback<Void> removeAt(int position) {
+        int mask = frames.length - 1;
+        int index = (head + position) & mask;
+        Callback<Void> rc = callbacks[index];
+        bytes -= sizes[index];
+        // shift the older entries up into the gap.
+        for (int i = position; i > 0; i--) {
+            int to = (head + i) & mask;
+            int from = (head + i - 1) & mask;
+            frames[to] = frames[from];
+            callbacks[to] = callbacks[from];
+            sizes[to] = sizes[from];
+        }
+        frames[head] = null;
+        callbacks[head] = null;
+        head = (head + 1) & mask;
+        count--;
+        return rc;
+    }
+
+    /**
+     * Removes all the frames.
+     *
+     * @return the send callbacks of the frames, oldest first.
+     */
+    ArrayList<Callback<Void>> clear() {
+        ArrayList<Callback<Void>> rc = new ArrayList<Callback<Void>>(count);
+        while (count > 0) {
+            rc.add(removeFirst());
+        }
+        return rc;
+    }
+}
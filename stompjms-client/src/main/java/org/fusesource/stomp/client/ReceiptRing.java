@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Tracks the callbacks of the requests waiting for a receipt.  Receipt
+ * ids are consecutive sequence numbers, so the callbacks are kept in a
+ * ring indexed by sequence number instead of a map keyed by the id.  The
+ * ids carry a prefix so that the receipts of frames the application sent
+ * with its own receipt ids, from {@link CallbackConnection#nextId()} say,
+ * never complete a request.  A receipt which never arrives would keep the
+ * ring from advancing, so once the ring fills up while mostly empty the
+ * oldest requests are moved aside into a map rather than growing it.
+ * Only the dispatch queue of the connection should access it.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReceiptRing {
+
+    static final byte[] PREFIX = "receipt-".getBytes();
+
+    private Callback<StompFrame>[] slots;
+    private int mask;
+    // the oldest sequence which may still be outstanding.
+    private long head = 1;
+    // the sequence the next request gets.
+    private long tail = 1;
+    private int size;
+    // the requests older than head which are still waiting, by sequence.
+    private final TreeMap<Long, Callback<StompFrame>> stale = new TreeMap<Long, Callback<StompFrame>>();
+
+    ReceiptRing(int capacity) {
+        int rc = 1;
+        while (rc < capacity) {
+            rc <<= 1;
+        }
+        slots = newSlots(rc);
+        mask = rc - 1;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Callback<StompFrame>[] newSlots(int capacity) {
+        return new Callback[capacity];
+    }
+
+    /**
+     * @return the sequence assigned to the callback.
+     */
+    long add(Callback<StompFrame> cb) {
+        if( tail - head == slots.length ) {
+            if( size - stale.size() <= slots.length >> 2 ) {
+                evict();
+            } else {
+                grow();
+            }
+        }
+        long sequence = tail++;
+        slots[(int) sequence & mask] = cb;
+        size++;
+        return sequence;
+    }
+
+    /**
+     * Moves the requests in the older half of the ring aside.
+     */
+    private void evict() {
+        long end = head + (slots.length >> 1);
+        for (; head < end; head++) {
+            int index = (int) head & mask;
+            if( slots[index]!=null ) {
+                stale.put(head, slots[index]);
+                slots[index] = null;
+            }
+        }
+        while (head < tail && slots[(int) head & mask] == null) {
+            head++;
+        }
+    }
+
+    private void grow() {
+        Callback<StompFrame>[] grown = newSlots(slots.length << 1);
+        int grownMask = grown.length - 1;
+        for (long i = head; i < tail; i++) {
+            grown[(int) i & grownMask] = slots[(int) i & mask];
+        }
+        slots = grown;
+        mask = grownMask;
+    }
+
+    /**
+     * Removes the callback of a single request.
+     *
+     * @return the callback or null if the sequence is not outstanding.
+     */
+    Callback<StompFrame> remove(long sequence) {
+        if( sequence < head ) {
+            Callback<StompFrame> rc = stale.remove(sequence);
+            if( rc!=null ) {
+                size--;
+            }
+            return rc;
+        }
+        if( sequence >= tail ) {
+            return null;
+        }
+        int index = (int) sequence & mask;
+        Callback<StompFrame> rc = slots[index];
+        if( rc!=null ) {
+            slots[index] = null;
+            size--;
+            while (head < tail && slots[(int) head & mask] == null) {
+                head++;
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Removes the callbacks of all the requests up to and including the
+     * given sequence, oldest first.
+     *
+     * @return the number of callbacks added to the list.
+     */
+    int removeUpTo(long sequence, ArrayList<Callback<StompFrame>> rc) {
+        int count = 0;
+        if( !stale.isEmpty() ) {
+            Iterator<Map.Entry<Long, Callback<StompFrame>>> i = stale.headMap(sequence, true).entrySet().iterator();
+            while (i.hasNext()) {
+                rc.add(i.next().getValue());
+                i.remove();
+                count++;
+            }
+        }
+        if( sequence < head ) {
+            size -= count;
+            return count;
+        }
+        long last = Math.min(sequence, tail - 1);
+        for (; head <= last; head++) {
+            int index = (int) head & mask;
+            if( slots[index]!=null ) {
+                rc.add(slots[index]);
+                slots[index] = null;
+                count++;
+            }
+        }
+        while (head < tail && slots[(int) head & mask] == null) {
+            head++;
+        }
+        size -= count;
+        return count;
+    }
+
+    /**
+     * Removes all the outstanding callbacks, oldest first.
+     */
+    ArrayList<Callback<StompFrame>> clear() {
+        ArrayList<Callback<StompFrame>> rc = new ArrayList<Callback<StompFrame>>(size);
+        removeUpTo(tail - 1, rc);
+        return rc;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Formats a sequence as a receipt id.
+     */
+    static AsciiBuffer id(long sequence) {
+        int digits = 1;
+        for (long i = sequence / 10; i != 0; i /= 10) {
+            digits++;
+        }
+        byte[] data = new byte[PREFIX.length + digits];
+        System.arraycopy(PREFIX, 0, data, 0, PREFIX.length);
+        for (int i = data.length - 1; i >= PREFIX.length; i--) {
+            data[i] = (byte) ('0' + (sequence % 10));
+            sequence /= 10;
+        }
+        return new AsciiBuffer(data);
+    }
+
+    /**
+     * Parses a receipt id straight from the header bytes.
+     *
+     * @return the sequence or -1 if the id is not one of ours.
+     */
+    static long sequence(Buffer id) {
+        int digits = id.length - PREFIX.length;
+        if( digits <= 0 || digits > 18 || (digits > 1 && id.data[id.offset + PREFIX.length] == '0') ) {
+            return -1;
+        }
+        byte[] data = id.data;
+        for (int i = 0; i < PREFIX.length; i++) {
+            if( data[id.offset + i] != PREFIX[i] ) {
+                return -1;
+            }
+        }
+        long rc = 0;
+        int end = id.offset + id.length;
+        for (int i = id.offset + PREFIX.length; i < end; i++) {
+            int digit = data[i] - '0';
+            if( digit < 0 || digit > 9 ) {
+                return -1;
+            }
+            rc = rc * 10 + digit;
+        }
+        return rc;
+    }
+}
@@ -12,11 +12,14 @@ package org.fusesource.stomp.client;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.fusesource.hawtdispatch.Task;
 import org.fusesource.hawtdispatch.transport.*;
+import org.fusesource.stomp.codec.FramePool;
 import org.fusesource.stomp.codec.StompFrame;
 import org.fusesource.stomp.codec.StompProtocolCodec;
 
 import javax.net.ssl.SSLContext;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Collections;
@@ -44,30 +47,109 @@ public class Stomp {
     private static final long KEEP_ALIVE = Long.parseLong(System.getProperty("stompjms.thread.keep_alive", ""+1000));
     private static final long STACK_SIZE = Long.parseLong(System.getProperty("stompjms.thread.stack_size", ""+1024*512));
 
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("stompjms.thread.virtual");
+
+    private static Method OF_VIRTUAL;
+    private static Method BUILDER_NAME;
+    private static Method BUILDER_FACTORY;
+    static {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            OF_VIRTUAL = Thread.class.getMethod("ofVirtual");
+            BUILDER_NAME = builder.getMethod("name", String.class, long.class);
+            BUILDER_FACTORY = builder.getMethod("factory");
+            // Fails on JVMs where virtual threads are still a preview feature.
+            OF_VIRTUAL.invoke(null);
+        } catch (Throwable e) {
+            OF_VIRTUAL = null;
+        }
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return true if the "stompjms.thread.virtual" system property asks
+     * for virtual threads to be used by default.
+     */
+    public static boolean isVirtualThreadsDefault() {
+        return VIRTUAL_THREADS;
+    }
+
+    /**
+     * Creates a factory for virtual threads named with the given prefix
+     * followed by a counter.
+     *
+     * @return the factory or null if the JVM does not support virtual threads.
+     */
+    public static ThreadFactory createVirtualThreadFactory(String prefix) {
+        if( OF_VIRTUAL == null ) {
+            return null;
+        }
+        try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+            return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ThreadPoolExecutor createThreadPool(boolean virtual) {
+        ThreadFactory factory = virtual ? createVirtualThreadFactory("Stomp JMS Task ") : null;
+        // Virtual threads are cheap to create so we don't keep idle ones around.
+        long keepAlive = KEEP_ALIVE;
+        if( factory!=null ) {
+            keepAlive = 0;
+        } else {
+            factory = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread rc = new Thread(null, r, "Stomp JMS Task", STACK_SIZE);
+                    rc.setDaemon(true);
+                    return rc;
+                }
+            };
+        }
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, keepAlive, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), factory) {
+
+            @Override
+            public void shutdown() {
+                // we don't ever shutdown since we are shared..
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                // we don't ever shutdown since we are shared..
+                return Collections.emptyList();
+            }
+        };
+    }
+
     private static ThreadPoolExecutor blockingThreadPool;
     public synchronized static ThreadPoolExecutor getBlockingThreadPool() {
         if( blockingThreadPool == null ) {
-            blockingThreadPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
-                    public Thread newThread(Runnable r) {
-                        Thread rc = new Thread(null, r, "Stomp JMS Task", STACK_SIZE);
-                        rc.setDaemon(true);
-                        return rc;
-                    }
-                }) {
+            blockingThreadPool = createThreadPool(VIRTUAL_THREADS);
+        }
+        return blockingThreadPool;
+    }
 
-                    @Override
-                    public void shutdown() {
-                        // we don't ever shutdown since we are shared..
-                    }
+    private static ThreadPoolExecutor virtualThreadPool;
 
-                    @Override
-                    public List<Runnable> shutdownNow() {
-                        // we don't ever shutdown since we are shared..
-                        return Collections.emptyList();
-                    }
-                };
+    /**
+     * @return a shared pool which runs its tasks on virtual threads, or on
+     * platform threads if the JVM does not support virtual threads.
+     */
+    public synchronized static ThreadPoolExecutor getVirtualThreadPool() {
+        if( VIRTUAL_THREADS ) {
+            return getBlockingThreadPool();
         }
-        return blockingThreadPool;
+        if( virtualThreadPool == null ) {
+            virtualThreadPool = createThreadPool(true);
+        }
+        return virtualThreadPool;
     }
 
     public synchronized static void setBlockingThreadPool(ThreadPoolExecutor pool) {
@@ -89,6 +171,20 @@ public class Stomp {
     private int receiveBufferSize = 1024*64;
     private int sendBufferSize = 1024*64;
     private boolean useLocalHost = true;
+    private int spillThreshold = -1;
+    private File spillDirectory;
+    private boolean inflateBodies;
+    private int framePoolSize;
+    private boolean framePoolDebug;
+    private long heartBeatSendInterval;
+    private long heartBeatReceiveInterval;
+    private int autoFlushSize;
+    private long autoFlushDelay;
+    private boolean useVirtualThreads = VIRTUAL_THREADS;
+    private boolean cumulativeReceipts;
+    private long overflowHighWatermark;
+    private long overflowLowWatermark;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
 
     private String login;
     private String passcode;
@@ -103,6 +199,57 @@ public class Stomp {
 
     public void connectCallback(final Callback<CallbackConnection> cb) {
         assert cb!=null : "Callback should not be null.";
+        if( Failover.isFailover(remoteURI) ) {
+            final Failover failover;
+            try {
+                failover = Failover.parse(remoteURI);
+            } catch (URISyntaxException e) {
+                cb.onFailure(e);
+                return;
+            }
+            if(dispatchQueue == null) {
+                dispatchQueue = createQueue("stomp client");
+            }
+            connectFailover(failover, 0, cb);
+        } else {
+            connect(remoteURI, cb);
+        }
+    }
+
+    /**
+     * Tries the brokers of a failover URI in turn, backing off between the
+     * attempts, until one accepts the connection.  A broker refusing the
+     * CONNECT frame ends the attempts since the others would most likely
+     * refuse it too.
+     */
+    private void connectFailover(final Failover failover, final int attempt, final Callback<CallbackConnection> cb) {
+        connect(failover.uri(attempt), new Callback<CallbackConnection>() {
+            public void onSuccess(CallbackConnection connection) {
+                cb.onSuccess(connection);
+            }
+
+            public void onFailure(Throwable value) {
+                if( isFatal(value) || failover.isExhausted(attempt + 1) ) {
+                    cb.onFailure(value);
+                } else {
+                    dispatchQueue.executeAfter(failover.delay(attempt + 1), TimeUnit.MILLISECONDS, new Task() {
+                        public void run() {
+                            connectFailover(failover, attempt + 1, cb);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the failure is one which reconnecting would not fix.
+     */
+    public static boolean isFatal(Throwable failure) {
+        return failure instanceof ProtocolException && ((ProtocolException) failure).isFatal();
+    }
+
+    private void connect(final URI remoteURI, final Callback<CallbackConnection> cb) {
         try {
             String scheme = remoteURI.getScheme();
             final Transport transport;
@@ -115,12 +262,18 @@ public class Stomp {
                 }
                 ssl.setSSLContext(sslContext);
                 transport = ssl;
+            } else if( "unix".equals(scheme) ) {
+                UnixTransport unix = new UnixTransport();
+                unix.connecting(remoteURI);
+                transport = unix;
+            } else if( "vm".equals(scheme) ) {
+                transport = VmTransportServer.connect(remoteURI);
             } else {
                 throw new Exception("Unsupported URI scheme '"+scheme+"'");
             }
 
             if( blockingExecutor == null ) {
-                blockingExecutor = Stomp.getBlockingThreadPool();
+                blockingExecutor = useVirtualThreads ? Stomp.getVirtualThreadPool() : Stomp.getBlockingThreadPool();
             }
             transport.setBlockingExecutor(blockingExecutor);
 
@@ -128,7 +281,14 @@ public class Stomp {
                 dispatchQueue = createQueue("stomp client");
             }
             transport.setDispatchQueue(dispatchQueue);
-            transport.setProtocolCodec(new StompProtocolCodec());
+            StompProtocolCodec codec = new StompProtocolCodec();
+            codec.spill_threshold = spillThreshold;
+            codec.spill_directory = spillDirectory;
+            codec.inflate_bodies = inflateBodies;
+            if( framePoolSize > 0 || framePoolDebug ) {
+                codec.frame_pool = new FramePool(framePoolSize, framePoolDebug);
+            }
+            transport.setProtocolCodec(codec);
 
             if( transport instanceof TcpTransport ) {
                 TcpTransport tcp = (TcpTransport)transport;
@@ -161,6 +321,9 @@ public class Stomp {
                     if (clientId != null) {
                         frame.addHeader(CLIENT_ID, StompFrame.encodeHeader(clientId));
                     }
+                    if (heartBeatSendInterval > 0 || heartBeatReceiveInterval > 0) {
+                        frame.addHeader(HEART_BEAT, StompFrame.encodeHeader(heartBeatSendInterval + "," + heartBeatReceiveInterval));
+                    }
                     if( customHeaders!=null ) {
                         for (Object key : customHeaders.keySet()) {
                             frame.addHeader(StompFrame.encodeHeader(key.toString()), StompFrame.encodeHeader(customHeaders.get(key).toString()));
@@ -175,12 +338,20 @@ public class Stomp {
                 public void onTransportCommand(Object command) {
                     StompFrame response = (StompFrame) command;
                     if (response.action().equals(ERROR)) {
-                        cb.onFailure(new IOException("Could not connect: " + response.errorMessage()));
+                        cb.onFailure(new ProtocolException("Could not connect: " + response.errorMessage(), true));
                     } else if (!response.action().equals(CONNECTED)) {
                         cb.onFailure(new IOException("Could not connect. Received unexpected frame: " + response.toString()));
                     } else {
                         transport.suspendRead();
-                        cb.onSuccess(new CallbackConnection(transport, response));
+                        CallbackConnection connection = new CallbackConnection(transport, response);
+                        connection.startHeartBeats(heartBeatSendInterval, heartBeatReceiveInterval);
+                        if( autoFlushSize > 0 ) {
+                            connection.autoFlush(autoFlushSize, autoFlushDelay, TimeUnit.MICROSECONDS);
+                        }
+                        connection.setCumulativeReceipts(cumulativeReceipts);
+                        connection.overflowWatermarks(overflowHighWatermark, overflowLowWatermark);
+                        connection.setOverflowPolicy(overflowPolicy);
+                        cb.onSuccess(connection);
                     }
                 }
 
@@ -215,6 +386,23 @@ public class Stomp {
         return future;
     }
 
+    /**
+     * @return a future completed on the connection's dispatch queue once connected.
+     */
+    public CompletableFuture<AsyncConnection> connectAsync() {
+        final CompletableFuture<AsyncConnection> future = new CompletableFuture<AsyncConnection>();
+        connectCallback(new Callback<CallbackConnection>() {
+            public void onFailure(Throwable value) {
+                future.completeExceptionally(value);
+            }
+
+            public void onSuccess(CallbackConnection value) {
+                future.complete(new AsyncConnection(value));
+            }
+        });
+        return future;
+    }
+
     public BlockingConnection connectBlocking() throws IOException {
         try {
             return new BlockingConnection(connectFuture().await());
@@ -241,7 +429,22 @@ public class Stomp {
     public Stomp(URI remoteURI) {
         assert remoteURI !=null : "URI should not be null.";
         this.remoteURI = remoteURI;
-        this.host = remoteURI.getHost();
+        this.host = hostOf(remoteURI);
+    }
+
+    private static String hostOf(URI uri) {
+        if( Failover.isFailover(uri) ) {
+            try {
+                return Failover.parse(uri).uri(0).getHost();
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+        if( "unix".equals(uri.getScheme()) ) {
+            // the broker is on this host.
+            return "localhost";
+        }
+        return uri.getHost();
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -317,6 +520,124 @@ public class Stomp {
         this.clientId = clientId;
     }
 
+    /**
+     * Received bodies larger than this many bytes are spilled to a memory
+     * mapped temp file instead of being held on the heap.  Use
+     * {@link org.fusesource.stomp.codec.StompFrame#contentStream()} to read
+     * them without copying them back onto the heap.  Defaults to -1 which
+     * disables spilling.
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Inflates the received bodies marked with a "content-encoding:deflate"
+     * header.  Off by default.  A body which does not inflate is handed out
+     * as received, with the header still set.
+     */
+    public void setInflateBodies(boolean inflateBodies) {
+        this.inflateBodies = inflateBodies;
+    }
+
+    /**
+     * Enables recycling of received frames.  Up to this many frames handed
+     * back with {@link StompFrame#release()} are kept for reuse.  Defaults
+     * to 0 which disables recycling.
+     */
+    public void setFramePoolSize(int framePoolSize) {
+        this.framePoolSize = framePoolSize;
+    }
+
+    /**
+     * When enabled, released frames are not reused and any use of a frame
+     * after it was released fails with an IllegalStateException.
+     */
+    public void setFramePoolDebug(boolean framePoolDebug) {
+        this.framePoolDebug = framePoolDebug;
+    }
+
+    /**
+     * The number of milliseconds between the heart-beats this client offers
+     * to send.  The server can ask for a longer interval.  Defaults to 0
+     * which does not send heart-beats.
+     */
+    public void setHeartBeatSendInterval(long heartBeatSendInterval) {
+        this.heartBeatSendInterval = heartBeatSendInterval;
+    }
+
+    /**
+     * The number of milliseconds between the heart-beats this client wants
+     * to receive.  The server can only offer a longer interval.  When the
+     * server agrees, the connection is failed if nothing is received for
+     * about one and a half intervals.  Defaults to 0 which does not check
+     * for heart-beats.
+     */
+    public void setHeartBeatReceiveInterval(long heartBeatReceiveInterval) {
+        this.heartBeatReceiveInterval = heartBeatReceiveInterval;
+    }
+
+    /**
+     * Enables adaptive write coalescing on the connection, frames sent in
+     * a burst are held back until this many bytes have been collected or
+     * the auto flush delay has passed.  Defaults to 0 which disables it.
+     *
+     * @see CallbackConnection#autoFlush(int, long, TimeUnit)
+     */
+    public void setAutoFlushSize(int autoFlushSize) {
+        this.autoFlushSize = autoFlushSize;
+    }
+
+    /**
+     * The longest time in microseconds a frame is held back when auto
+     * flushing is enabled.
+     */
+    public void setAutoFlushDelay(long autoFlushDelay) {
+        this.autoFlushDelay = autoFlushDelay;
+    }
+
+    /**
+     * Runs the blocking transport tasks on virtual threads when no blocking
+     * executor has been set.  Defaults to the value of the
+     * "stompjms.thread.virtual" system property.
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    /**
+     * @see CallbackConnection#setCumulativeReceipts(boolean)
+     */
+    public void setCumulativeReceipts(boolean cumulativeReceipts) {
+        this.cumulativeReceipts = cumulativeReceipts;
+    }
+
+    /**
+     * The size in bytes of the frames waiting for the transport at which
+     * the overflow policy kicks in.  Defaults to 0 which means no limit.
+     *
+     * @see CallbackConnection#overflowWatermarks(long, long)
+     */
+    public void setOverflowHighWatermark(long overflowHighWatermark) {
+        this.overflowHighWatermark = overflowHighWatermark;
+    }
+
+    /**
+     * The size in bytes the waiting frames have to drop to before the
+     * connection is writable again.  Defaults to half the high watermark.
+     */
+    public void setOverflowLowWatermark(long overflowLowWatermark) {
+        this.overflowLowWatermark = overflowLowWatermark;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
     public Executor getBlockingExecutor() {
         return blockingExecutor;
     }
@@ -385,6 +706,62 @@ public class Stomp {
         return version;
     }
 
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public boolean isInflateBodies() {
+        return inflateBodies;
+    }
+
+    public int getFramePoolSize() {
+        return framePoolSize;
+    }
+
+    public boolean isFramePoolDebug() {
+        return framePoolDebug;
+    }
+
+    public long getHeartBeatSendInterval() {
+        return heartBeatSendInterval;
+    }
+
+    public long getHeartBeatReceiveInterval() {
+        return heartBeatReceiveInterval;
+    }
+
+    public int getAutoFlushSize() {
+        return autoFlushSize;
+    }
+
+    public long getAutoFlushDelay() {
+        return autoFlushDelay;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public boolean isCumulativeReceipts() {
+        return cumulativeReceipts;
+    }
+
+    public long getOverflowHighWatermark() {
+        return overflowHighWatermark;
+    }
+
+    public long getOverflowLowWatermark() {
+        return overflowLowWatermark;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
 
     
 //    static public CallbackConnectionBuilder callback(URI uri) {
@@ -0,0 +1,415 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import org.fusesource.hawtdispatch.CustomDispatchSource;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.DispatchSource;
+import org.fusesource.hawtdispatch.EventAggregators;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.hawtdispatch.transport.ProtocolCodec;
+import org.fusesource.hawtdispatch.transport.ServiceBase;
+import org.fusesource.hawtdispatch.transport.Transport;
+import org.fusesource.hawtdispatch.transport.TransportListener;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * A transport over a Unix domain socket, for a broker running on the same
+ * host, which skips the TCP loopback stack.  The socket file is the path
+ * of a <code>unix:///path/to/socket</code> URI.  It needs the Unix domain
+ * socket channels of Java 16 or later, which are looked up by reflection
+ * so that the client still runs on older JVMs.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class UnixTransport extends ServiceBase implements Transport {
+
+    private static ProtocolFamily UNIX;
+    private static Method OPEN;
+    private static Method ADDRESS_OF;
+
+    static {
+        try {
+            UNIX = StandardProtocolFamily.valueOf("UNIX");
+            OPEN = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            ADDRESS_OF = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+        } catch (Throwable e) {
+            UNIX = null;
+        }
+    }
+
+    /**
+     * @return true if the JVM supports Unix domain socket channels.
+     */
+    public static boolean isAvailable() {
+        return UNIX != null;
+    }
+
+    private URI remoteLocation;
+    private TransportListener listener;
+    private ProtocolCodec codec;
+    private DispatchQueue dispatchQueue;
+    private Executor blockingExecutor;
+    private SocketChannel channel;
+    private boolean connected;
+    private DispatchSource readSource;
+    private DispatchSource writeSource;
+    private CustomDispatchSource<Integer, Integer> drainOutboundSource;
+    private CustomDispatchSource<Integer, Integer> yieldSource;
+    private boolean writeResumedForCodecFlush;
+    private SocketAddress localAddress;
+    private SocketAddress remoteAddress;
+
+    // the codec must not see the SocketChannel, Unix ones don't have a socket().
+    private final ChannelView view = new ChannelView();
+
+    public void connecting(URI remoteLocation) throws IOException {
+        if( !isAvailable() ) {
+            throw new IOException("Unix domain sockets need Java 16 or later");
+        }
+        if( remoteLocation.getPath() == null || remoteLocation.getPath().length() == 0 ) {
+            throw new IOException("The URI does not have a socket path: " + remoteLocation);
+        }
+        this.remoteLocation = remoteLocation;
+    }
+
+    @Override
+    protected void _start(Task onCompleted) {
+        try {
+            // connecting might block, so do it on the blocking executor.
+            blockingExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        final SocketChannel channel = open();
+                        dispatchQueue.execute(new Task() {
+                            public void run() {
+                                if( getServiceState() != STARTED ) {
+                                    close(channel);
+                                    return;
+                                }
+                                try {
+                                    onConnected(channel);
+                                } catch (IOException e) {
+                                    close(channel);
+                                    onTransportFailure(e);
+                                }
+                            }
+                        });
+                    } catch (final IOException e) {
+                        dispatchQueue.execute(new Task() {
+                            public void run() {
+                                onTransportFailure(e);
+                            }
+                        });
+                    }
+                }
+            });
+        } finally {
+            if( onCompleted!=null ) {
+                onCompleted.run();
+            }
+        }
+    }
+
+    private SocketChannel open() throws IOException {
+        SocketChannel rc;
+        try {
+            rc = (SocketChannel) OPEN.invoke(null, UNIX);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        try {
+            rc.connect((SocketAddress) ADDRESS_OF.invoke(null, remoteLocation.getPath()));
+            rc.configureBlocking(false);
+            return rc;
+        } catch (IOException e) {
+            close(rc);
+            throw e;
+        } catch (Exception e) {
+            close(rc);
+            throw new IOException(e);
+        }
+    }
+
+    private void onConnected(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.connected = true;
+        localAddress = channel.getLocalAddress();
+        remoteAddress = channel.getRemoteAddress();
+        if( codec!=null ) {
+            codec.setTransport(this);
+        }
+
+        yieldSource = Dispatch.createSource(EventAggregators.INTEGER_ADD, dispatchQueue);
+        yieldSource.setEventHandler(new Task() {
+            public void run() {
+                drainInbound();
+            }
+        });
+        yieldSource.resume();
+        drainOutboundSource = Dispatch.createSource(EventAggregators.INTEGER_ADD, dispatchQueue);
+        drainOutboundSource.setEventHandler(new Task() {
+            public void run() {
+                flush();
+            }
+        });
+        drainOutboundSource.resume();
+
+        readSource = Dispatch.createSource(channel, SelectionKey.OP_READ, dispatchQueue);
+        writeSource = Dispatch.createSource(channel, SelectionKey.OP_WRITE, dispatchQueue);
+        readSource.setEventHandler(new Task() {
+            public void run() {
+                drainInbound();
+            }
+        });
+        writeSource.setEventHandler(new Task() {
+            public void run() {
+                flush();
+            }
+        });
+        listener.onTransportConnected();
+    }
+
+    @Override
+    protected void _stop(final Task onCompleted) {
+        boolean wasConnected = connected;
+        connected = false;
+        if( readSource == null ) {
+            close(channel);
+            onCompleted.run();
+            return;
+        }
+        if( wasConnected ) {
+            listener.onTransportDisconnected();
+        }
+        // close the channel once both sources let go of it.
+        final int[] remaining = new int[]{2};
+        Task onCanceled = new Task() {
+            public void run() {
+                if( --remaining[0] == 0 ) {
+                    close(channel);
+                    onCompleted.run();
+                }
+            }
+        };
+        readSource.setCancelHandler(onCanceled);
+        writeSource.setCancelHandler(onCanceled);
+        readSource.cancel();
+        writeSource.cancel();
+        drainOutboundSource.cancel();
+        yieldSource.cancel();
+    }
+
+    private static void close(SocketChannel channel) {
+        if( channel!=null ) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void onTransportFailure(IOException error) {
+        listener.onTransportFailure(error);
+    }
+
+    public boolean full() {
+        return codec == null || codec.full() || !connected || getServiceState() != STARTED;
+    }
+
+    public boolean offer(Object command) {
+        dispatchQueue.assertExecuting();
+        if( full() ) {
+            return false;
+        }
+        try {
+            ProtocolCodec.BufferState rc = codec.write(command);
+            if( rc == ProtocolCodec.BufferState.FULL ) {
+                return false;
+            }
+            drainOutboundSource.merge(1);
+        } catch (IOException e) {
+            onTransportFailure(e);
+        }
+        return true;
+    }
+
+    public void flush() {
+        dispatchQueue.assertExecuting();
+        if( getServiceState() != STARTED || !connected ) {
+            return;
+        }
+        try {
+            if( codec.flush() == ProtocolCodec.BufferState.EMPTY ) {
+                if( writeResumedForCodecFlush ) {
+                    writeResumedForCodecFlush = false;
+                    writeSource.suspend();
+                }
+                listener.onRefill();
+            } else if( !writeResumedForCodecFlush ) {
+                writeResumedForCodecFlush = true;
+                writeSource.resume();
+            }
+        } catch (IOException e) {
+            onTransportFailure(e);
+        }
+    }
+
+    public void drainInbound() {
+        if( !getServiceState().isStarted() || readSource == null || readSource.isSuspended() ) {
+            return;
+        }
+        try {
+            long initial = codec.getReadCounter();
+            // give the other connections a chance after a few buffers worth.
+            while( codec.getReadCounter() - initial < codec.getReadBufferSize() << 2 ) {
+                Object command = codec.read();
+                if( command == null ) {
+                    return;
+                }
+                try {
+                    listener.onTransportCommand(command);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    onTransportFailure(new IOException("Transport listener failure."));
+                }
+                // the transport may be suspended after processing a command.
+                if( getServiceState() == STOPPED || readSource.isSuspended() ) {
+                    return;
+                }
+            }
+            yieldSource.merge(1);
+        } catch (IOException e) {
+            onTransportFailure(e);
+        }
+    }
+
+    public void suspendRead() {
+        if( connected && readSource!=null ) {
+            readSource.suspend();
+        }
+    }
+
+    public void resumeRead() {
+        if( connected && readSource!=null ) {
+            readSource.resume();
+            dispatchQueue.execute(new Task() {
+                public void run() {
+                    drainInbound();
+                }
+            });
+        }
+    }
+
+    public TransportListener getTransportListener() {
+        return listener;
+    }
+
+    public void setTransportListener(TransportListener transportListener) {
+        this.listener = transportListener;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+        this.dispatchQueue = queue;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public boolean isClosed() {
+        return getServiceState() == STOPPED;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public ProtocolCodec getProtocolCodec() {
+        return codec;
+    }
+
+    public void setProtocolCodec(ProtocolCodec protocolCodec) throws Exception {
+        this.codec = protocolCodec;
+        if( channel!=null && codec!=null ) {
+            codec.setTransport(this);
+        }
+    }
+
+    public Executor getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    public void setBlockingExecutor(Executor blockingExecutor) {
+        this.blockingExecutor = blockingExecutor;
+    }
+
+    public ReadableByteChannel getReadChannel() {
+        return view;
+    }
+
+    public WritableByteChannel getWriteChannel() {
+        return view;
+    }
+
+    private class ChannelView implements ReadableByteChannel, GatheringByteChannel {
+
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return channel.write(srcs);
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
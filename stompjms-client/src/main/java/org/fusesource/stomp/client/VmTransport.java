@@ -0,0 +1,392 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import org.fusesource.hawtdispatch.CustomDispatchSource;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.EventAggregators;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.hawtdispatch.transport.ProtocolCodec;
+import org.fusesource.hawtdispatch.transport.ServiceBase;
+import org.fusesource.hawtdispatch.transport.Transport;
+import org.fusesource.hawtdispatch.transport.TransportListener;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * One end of an in-process connection made through a
+ * {@link VmTransportServer}.  The frames are handed to the peer's dispatch
+ * queue as they are, without being encoded, so neither side may change a
+ * frame once it has been offered.
+ * </p>
+ * <p>
+ * It behaves like the TcpTransport: reads start suspended until
+ * resumeRead() is called, and the transport is full once the frames the
+ * peer has not processed yet add up to the write buffer size of the
+ * protocol codec.  The codec itself is only used for its buffer sizes,
+ * the read and write counters count the frames.
+ * </p>
+ * <p>
+ * Stopping one end hands the other an EOF behind the frames already sent.
+ * An end whose reads are suspended fails right away instead of finding
+ * it only once it reads again.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class VmTransport extends ServiceBase implements Transport {
+
+    private static final Object EOF = new Object();
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 64;
+
+    private final Object pipe;
+    private final SocketAddress localAddress;
+    private final SocketAddress remoteAddress;
+    VmTransport peer;
+    private boolean started;
+
+    private TransportListener listener;
+    private DispatchQueue dispatchQueue;
+    private Executor blockingExecutor;
+    private ProtocolCodec codec;
+    private final Counters counters = new Counters();
+    private CustomDispatchSource<Object, LinkedList<Object>> inbound;
+    // frames which got here but were not processed yet.
+    private final LinkedList<Object> received = new LinkedList<Object>();
+    private boolean connected;
+    private boolean draining;
+    private boolean stopped;
+    private boolean eof;
+
+    // the size of the frames sent which the peer has not processed yet.
+    private long outbound;
+    private long readCounter;
+    private long lastReadSize;
+    private long writeCounter;
+    private long lastWriteSize;
+
+    VmTransport(Object pipe, final String local, final String remote) {
+        this.pipe = pipe;
+        this.localAddress = address(local);
+        this.remoteAddress = address(remote);
+    }
+
+    private static SocketAddress address(final String value) {
+        return new SocketAddress() {
+            @Override
+            public String toString() {
+                return value;
+            }
+        };
+    }
+
+    @Override
+    protected void _start(Task onCompleted) {
+        inbound = Dispatch.createSource(EventAggregators.linkedList(), dispatchQueue);
+        inbound.setEventHandler(new Task() {
+            public void run() {
+                LinkedList<Object> data = inbound.getData();
+                if( !stopped ) {
+                    received.addAll(data);
+                    drainInbound();
+                }
+            }
+        });
+        boolean both;
+        synchronized (pipe) {
+            started = true;
+            both = peer.started;
+        }
+        if( both ) {
+            peer.fireConnected();
+            fireConnected();
+        }
+        if( onCompleted!=null ) {
+            onCompleted.run();
+        }
+    }
+
+    private void fireConnected() {
+        dispatchQueue.execute(new Task() {
+            public void run() {
+                if( getServiceState() == STARTED ) {
+                    connected = true;
+                    listener.onTransportConnected();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void _stop(Task onCompleted) {
+        boolean both;
+        synchronized (pipe) {
+            both = started && peer.started;
+            started = false;
+        }
+        // nothing gets delivered from here on, not even when the source
+        // gets resumed below.
+        stopped = true;
+        received.clear();
+        if( both ) {
+            peer.inbound.merge(EOF);
+            peer.peerStopped();
+        }
+        if( connected ) {
+            connected = false;
+            listener.onTransportDisconnected();
+        }
+        if( inbound!=null ) {
+            inbound.setCancelHandler(onCompleted);
+            // a suspended source does not run its cancel handler.
+            while( inbound.isSuspended() ) {
+                inbound.resume();
+            }
+            inbound.cancel();
+        } else {
+            onCompleted.run();
+        }
+    }
+
+    /**
+     * Called by the peer when it stops.  The EOF it sent waits behind any
+     * suspended reads, so fail now if they are.
+     */
+    private void peerStopped() {
+        dispatchQueue.execute(new Task() {
+            public void run() {
+                if( !stopped && inbound.isSuspended() ) {
+                    received.clear();
+                    disconnected();
+                }
+            }
+        });
+    }
+
+    private void disconnected() {
+        if( !eof ) {
+            eof = true;
+            listener.onTransportFailure(new EOFException("Peer disconnected"));
+        }
+    }
+
+    private static long sizeOf(Object command) {
+        return command instanceof StompFrame ? ((StompFrame) command).size() : 1;
+    }
+
+    public boolean full() {
+        return !connected || outbound >= counters.getWriteBufferSize();
+    }
+
+    public boolean offer(Object command) {
+        dispatchQueue.assertExecuting();
+        if( full() ) {
+            return false;
+        }
+        lastWriteSize = sizeOf(command);
+        outbound += lastWriteSize;
+        writeCounter++;
+        peer.inbound.merge(command);
+        return true;
+    }
+
+    /**
+     * Frames are handed over when offered, there is nothing to flush.
+     */
+    public void flush() {
+        dispatchQueue.assertExecuting();
+        if( !full() ) {
+            listener.onRefill();
+        }
+    }
+
+    public void drainInbound() {
+        if( draining || stopped || inbound == null || inbound.isSuspended() ) {
+            return;
+        }
+        draining = true;
+        long processed = 0;
+        try {
+            Object command;
+            // the listener may suspend reads while processing a frame.
+            while( !stopped && !inbound.isSuspended() && (command = received.poll()) != null ) {
+                if( command == EOF ) {
+                    disconnected();
+                    return;
+                }
+                lastReadSize = sizeOf(command);
+                processed += lastReadSize;
+                readCounter++;
+                try {
+                    listener.onTransportCommand(command);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    listener.onTransportFailure(new IOException("Transport listener failure."));
+                }
+            }
+        } finally {
+            draining = false;
+            if( processed > 0 ) {
+                peer.processed(processed);
+            }
+        }
+    }
+
+    /**
+     * Called by the peer once it has processed frames this side sent.
+     */
+    private void processed(final long size) {
+        dispatchQueue.execute(new Task() {
+            public void run() {
+                boolean wasFull = full();
+                outbound -= size;
+                if( wasFull && !full() ) {
+                    listener.onRefill();
+                }
+            }
+        });
+    }
+
+    public void suspendRead() {
+        if( inbound!=null ) {
+            inbound.suspend();
+        }
+    }
+
+    public void resumeRead() {
+        if( inbound!=null ) {
+            inbound.resume();
+            dispatchQueue.execute(new Task() {
+                public void run() {
+                    drainInbound();
+                }
+            });
+        }
+    }
+
+    public TransportListener getTransportListener() {
+        return listener;
+    }
+
+    public void setTransportListener(TransportListener transportListener) {
+        this.listener = transportListener;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+        this.dispatchQueue = queue;
+    }
+
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public boolean isClosed() {
+        return getServiceState() == STOPPED;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return a codec which keeps the buffer sizes of the configured codec
+     * and counts the frames, for the heart-beat monitor.
+     */
+    public ProtocolCodec getProtocolCodec() {
+        return counters;
+    }
+
+    public void setProtocolCodec(ProtocolCodec protocolCodec) {
+        this.codec = protocolCodec;
+    }
+
+    public Executor getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    public void setBlockingExecutor(Executor blockingExecutor) {
+        this.blockingExecutor = blockingExecutor;
+    }
+
+    public ReadableByteChannel getReadChannel() {
+        return null;
+    }
+
+    public WritableByteChannel getWriteChannel() {
+        return null;
+    }
+
+    private class Counters implements ProtocolCodec {
+
+        public void setTransport(Transport transport) {
+        }
+
+        public Object read() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void unread(byte[] buffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getReadCounter() {
+            return readCounter;
+        }
+
+        public long getLastReadSize() {
+            return lastReadSize;
+        }
+
+        public int getReadBufferSize() {
+            return codec!=null ? codec.getReadBufferSize() : DEFAULT_BUFFER_SIZE;
+        }
+
+        public int getWriteBufferSize() {
+            return codec!=null ? codec.getWriteBufferSize() : DEFAULT_BUFFER_SIZE;
+        }
+
+        public BufferState write(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        public BufferState flush() {
+            return BufferState.EMPTY;
+        }
+
+        public boolean full() {
+            return VmTransport.this.full();
+        }
+
+        public long getWriteCounter() {
+            return writeCounter;
+        }
+
+        public long getLastWriteSize() {
+            return lastWriteSize;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import org.fusesource.hawtdispatch.CustomDispatchSource;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.EventAggregators;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.hawtdispatch.TaskWrapper;
+import org.fusesource.hawtdispatch.transport.TransportServer;
+import org.fusesource.hawtdispatch.transport.TransportServerListener;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * The acceptor of in-process connections, for a broker embedded in the
+ * same JVM.  The broker binds a name and accepts a {@link VmTransport}
+ * for every client which connects to <code>vm://name</code>, the STOMP
+ * frames are then exchanged as objects without being encoded.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class VmTransportServer implements TransportServer {
+
+    private static final HashMap<String, VmTransportServer> servers = new HashMap<String, VmTransportServer>();
+
+    /**
+     * Binds a name clients can connect to with a <code>vm://name</code> URI.
+     */
+    public static VmTransportServer bind(String name) throws IOException {
+        synchronized (servers) {
+            if( servers.containsKey(name) ) {
+                throw new IOException("Server already bound: " + name);
+            }
+            VmTransportServer rc = new VmTransportServer(name);
+            servers.put(name, rc);
+            return rc;
+        }
+    }
+
+    /**
+     * @return the client end of a new connection to the server bound to the host of the URI.
+     */
+    public static VmTransport connect(URI uri) throws IOException {
+        String name = uri.getAuthority();
+        VmTransportServer server;
+        synchronized (servers) {
+            server = servers.get(name);
+        }
+        if( server == null ) {
+            throw new IOException("Server is not bound: " + name);
+        }
+        return server.connect();
+    }
+
+    private final String name;
+    private final AtomicInteger connectionCounter = new AtomicInteger();
+    private TransportServerListener listener;
+    private DispatchQueue dispatchQueue;
+    private Executor blockingExecutor;
+    private volatile CustomDispatchSource<VmTransport, LinkedList<VmTransport>> acceptSource;
+
+    private VmTransportServer(String name) {
+        this.name = name;
+    }
+
+    private VmTransport connect() throws IOException {
+        CustomDispatchSource<VmTransport, LinkedList<VmTransport>> acceptSource = this.acceptSource;
+        if( acceptSource == null ) {
+            throw new IOException("Server is not started: " + name);
+        }
+        String remote = "vm://" + name + "#" + connectionCounter.incrementAndGet();
+        Object pipe = new Object();
+        VmTransport client = new VmTransport(pipe, remote, "vm://" + name);
+        VmTransport server = new VmTransport(pipe, "vm://" + name, remote);
+        client.peer = server;
+        server.peer = client;
+        acceptSource.merge(server);
+        return client;
+    }
+
+    public void start(Runnable onCompleted) throws Exception {
+        start(new TaskWrapper(onCompleted));
+    }
+
+    public void start(Task onCompleted) throws Exception {
+        if( dispatchQueue == null ) {
+            throw new IllegalArgumentException("dispatchQueue is not set");
+        }
+        final CustomDispatchSource<VmTransport, LinkedList<VmTransport>> source = Dispatch.createSource(EventAggregators.<VmTransport>linkedList(), dispatchQueue);
+        source.setEventHandler(new Task() {
+            public void run() {
+                for (VmTransport transport : source.getData()) {
+                    try {
+                        listener.onAccept(transport);
+                    } catch (Exception e) {
+                        listener.onAcceptError(e);
+                    }
+                }
+            }
+        });
+        source.resume();
+        acceptSource = source;
+        if( onCompleted!=null ) {
+            dispatchQueue.execute(onCompleted);
+        }
+    }
+
+    public void stop(Runnable onCompleted) throws Exception {
+        stop(new TaskWrapper(onCompleted));
+    }
+
+    public void stop(Task onCompleted) throws Exception {
+        synchronized (servers) {
+            servers.remove(name);
+        }
+        if( acceptSource!=null ) {
+            acceptSource.setCancelHandler(onCompleted);
+            acceptSource.cancel();
+            acceptSource = null;
+        } else if( onCompleted!=null ) {
+            onCompleted.run();
+        }
+    }
+
+    public void setTransportServerListener(TransportServerListener listener) {
+        this.listener = listener;
+    }
+
+    public String getBoundAddress() {
+        return "vm://" + name;
+    }
+
+    public SocketAddress getSocketAddress() {
+        return null;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+        this.dispatchQueue = queue;
+    }
+
+    public void suspend() {
+        acceptSource.suspend();
+    }
+
+    public void resume() {
+        acceptSource.resume();
+    }
+
+    public Executor getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    public void setBlockingExecutor(Executor blockingExecutor) {
+        this.blockingExecutor = blockingExecutor;
+    }
+}
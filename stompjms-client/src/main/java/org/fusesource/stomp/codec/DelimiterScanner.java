@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * <p>
+ * Finds delimiter bytes (NUL, LF, ':') in a byte array 8 bytes at a time.
+ * Each step loads a long and uses the SWAR (SIMD within a register) zero
+ * byte test on the long xor'ed with the delimiter repeated in every byte.
+ * </p>
+ * <p>
+ * The test <code>(x - 0x01..01) &amp; ~x &amp; 0x80..80</code> is only
+ * guaranteed to flag the lowest zero byte correctly, so words are loaded
+ * little endian where the lowest flagged bit maps to the first matching byte.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class DelimiterScanner {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /**
+     * @return the index of the first occurrence of value in array between start
+     * (inclusive) and end (exclusive) or -1 if it does not occur.
+     */
+    public static int indexOf(byte[] array, int start, int end, byte value) {
+        int i = start;
+        long pattern = ONES * (value & 0xFF);
+        for (int last = end - 8; i <= last; i += 8) {
+            long word = (long) LONGS.get(array, i) ^ pattern;
+            long found = (word - ONES) & ~word & HIGHS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < end; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
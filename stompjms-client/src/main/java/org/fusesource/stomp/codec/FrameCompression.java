@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Compresses frame bodies with deflate (the zlib format) and marks them
+ * with a "content-encoding:deflate" header.  Brokers pass the header on
+ * untouched, so the consuming client's codec inflates the body again
+ * before handing out the frame.
+ * </p>
+ * <p>
+ * Deflater and Inflater instances hold native memory and are expensive
+ * to create, so they are taken from small shared pools instead of being
+ * created for every frame.  The pool size can be configured with the
+ * "stompjms.codec.compression_pool_size" system property.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FrameCompression {
+
+    public static final AsciiBuffer DEFLATE = new AsciiBuffer("deflate");
+
+    private static final int POOL_SIZE = Integer.getInteger("stompjms.codec.compression_pool_size", 16);
+    private static final ArrayDeque<Deflater> DEFLATERS = new ArrayDeque<Deflater>();
+    private static final ArrayDeque<Inflater> INFLATERS = new ArrayDeque<Inflater>();
+
+    /**
+     * Deflates the body of the frame if it's at least threshold bytes long
+     * and the frame has no content-encoding yet.  The body is left alone if
+     * it does not get smaller.
+     *
+     * @return true if the body was compressed.
+     */
+    public static boolean deflate(StompFrame frame, int threshold, int level) {
+        int length = frame.contentLength();
+        if( length == 0 || length < threshold || frame.getHeader(CONTENT_ENCODING)!=null ) {
+            return false;
+        }
+        Buffer content = frame.content();
+        Deflater deflater = deflater(level);
+        try {
+            deflater.setInput(content.data, content.offset, content.length);
+            deflater.finish();
+            // not worth it if we can't save at least 1/16 of the body.
+            byte[] data = new byte[length - (length >>> 4)];
+            int size = 0;
+            while (!deflater.finished()) {
+                if( size == data.length ) {
+                    return false;
+                }
+                size += deflater.deflate(data, size, data.length - size);
+            }
+            frame.content(new Buffer(data, 0, size));
+            frame.addHeader(CONTENT_ENCODING, DEFLATE);
+            return true;
+        } finally {
+            release(deflater);
+        }
+    }
+
+    /**
+     * Inflates the body of the frame if it has a "content-encoding:deflate"
+     * header and removes the header.
+     *
+     * A body spilled to a file is left alone, inflating it would pull it
+     * back onto the heap.  Read it through an InflaterInputStream over
+     * {@link StompFrame#contentStream()} instead.
+     *
+     * @param maxLength the maximum inflated body size or -1 for no limit.
+     * @return true if the body was inflated.
+     */
+    public static boolean inflate(StompFrame frame, int maxLength) throws ProtocolException {
+        AsciiBuffer encoding = frame.getHeader(CONTENT_ENCODING);
+        if( encoding==null || !DEFLATE.equals(encoding) || frame.mappedContent()!=null ) {
+            return false;
+        }
+        ByteBuffer input = frame.content().toByteBuffer();
+        Inflater inflater = inflater();
+        try {
+            inflater.setInput(input);
+            byte[] data = new byte[Math.max(64, input.remaining() * 4)];
+            int size = 0;
+            while (!inflater.finished()) {
+                if( size == data.length ) {
+                    if( maxLength != -1 && size >= maxLength ) {
+                        throw new ProtocolException("The maximum data length was exceeded");
+                    }
+                    int grown = data.length * 2;
+                    if( maxLength != -1 ) {
+                        grown = Math.min(grown, maxLength);
+                    }
+                    data = Arrays.copyOf(data, grown);
+                }
+                int count = inflater.inflate(data, size, data.length - size);
+                if( count == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+                    throw new ProtocolException("The deflated content is truncated");
+                }
+                size += count;
+            }
+            if( maxLength != -1 && size > maxLength ) {
+                throw new ProtocolException("The maximum data length was exceeded");
+            }
+            frame.content(new Buffer(data, 0, size));
+            frame.removeHeader(CONTENT_ENCODING);
+            return true;
+        } catch (DataFormatException e) {
+            ProtocolException rc = new ProtocolException("Invalid deflated content: " + e.getMessage());
+            rc.initCause(e);
+            throw rc;
+        } finally {
+            release(inflater);
+        }
+    }
+
+    private static Deflater deflater(int level) {
+        Deflater rc;
+        synchronized (DEFLATERS) {
+            rc = DEFLATERS.pollLast();
+        }
+        if( rc==null ) {
+            rc = new Deflater();
+        }
+        rc.setLevel(level);
+        return rc;
+    }
+
+    private static void release(Deflater deflater) {
+        deflater.reset();
+        synchronized (DEFLATERS) {
+            if( DEFLATERS.size() < POOL_SIZE ) {
+                DEFLATERS.addLast(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    private static Inflater inflater() {
+        Inflater rc;
+        synchronized (INFLATERS) {
+            rc = INFLATERS.pollLast();
+        }
+        return rc!=null ? rc : new Inflater();
+    }
+
+    private static void release(Inflater inflater) {
+        inflater.reset();
+        synchronized (INFLATERS) {
+            if( INFLATERS.size() < POOL_SIZE ) {
+                INFLATERS.addLast(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>
+ * A per connection pool of decoded frames.  When a codec has a pool, it
+ * takes the frames (and their header index) it decodes from the pool, and
+ * {@link StompFrame#release()} hands them back once the application is done
+ * with them.
+ * </p>
+ * <p>
+ * A released frame must not be used anymore.  Released frames throw an
+ * IllegalStateException when used until they are handed out again.  In debug
+ * mode released frames are never handed out again, so every use after a
+ * release is detected and reported along with where the release happened.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FramePool {
+
+    static final Throwable RELEASED = new Throwable("The frame was released") {
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    };
+
+    private final int capacity;
+    private final boolean debug;
+    private final ArrayDeque<StompFrame> frames;
+
+    /**
+     * @param capacity the maximum number of released frames kept for reuse.
+     * @param debug if true, frames are not reused and any use after release fails.
+     */
+    public FramePool(int capacity, boolean debug) {
+        this.capacity = capacity;
+        this.debug = debug;
+        this.frames = new ArrayDeque<StompFrame>(Math.min(capacity, 1024));
+    }
+
+    StompFrame borrow(AsciiBuffer action) {
+        StompFrame frame;
+        synchronized (this) {
+            frame = frames.pollLast();
+        }
+        if (frame == null) {
+            frame = new StompFrame(action, new HeaderIndex(StompProtocolCodec.HEADER_NAMES, 10));
+            frame.pool = this;
+            frame.pooledIndex = frame.headerIndex;
+        } else {
+            frame.reuse(action);
+        }
+        return frame;
+    }
+
+    void release(StompFrame frame) {
+        if (debug) {
+            frame.releasedBy = new Throwable("The frame was released here");
+            return;
+        }
+        frame.recycle();
+        synchronized (this) {
+            if (frames.size() < capacity) {
+                frames.addLast(frame);
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames available for reuse.
+     */
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+
+/**
+ * <p>
+ * A bounded cache of encoded and decoded header values for strings which
+ * get used over and over again like destination and property names.
+ * </p>
+ * <p>
+ * Each cache is a fixed size, direct mapped table: an entry lands in the
+ * slot picked by its hash and just replaces whatever was there before.
+ * Entries are immutable, so the tables can be read and written without
+ * locking, a racing thread at worst misses the cache.  Long values are
+ * never cached.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class HeaderCache {
+
+    public static final HeaderCache DEFAULT = new HeaderCache(
+            Integer.getInteger("stompjms.codec.header_cache_size", 1024),
+            Integer.getInteger("stompjms.codec.header_cache_max_length", 256));
+
+    private static final class Entry {
+        final String string;
+        final AsciiBuffer buffer;
+
+        Entry(String string, AsciiBuffer buffer) {
+            this.string = string;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Entry[] encoded;
+    private final Entry[] decoded;
+    private final int mask;
+    private final int maxLength;
+
+    /**
+     * @param size the number of entries in each direction, rounded up to a power of 2.
+     * @param maxLength the longest value that gets cached.
+     */
+    public HeaderCache(int size, int maxLength) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.encoded = new Entry[capacity];
+        this.decoded = new Entry[capacity];
+        this.mask = capacity - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Same as {@link StompFrame#encodeHeader(String)} but cached.
+     */
+    public AsciiBuffer encode(String value) {
+        if (value == null || value.length() > maxLength) {
+            return StompFrame.encodeHeader(value);
+        }
+        int hash = value.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        Entry entry = encoded[slot];
+        if (entry != null && entry.string.equals(value)) {
+            return entry.buffer;
+        }
+        AsciiBuffer rc = StompFrame.encodeHeader(value);
+        encoded[slot] = new Entry(value, rc);
+        return rc;
+    }
+
+    /**
+     * Same as {@link StompFrame#decodeHeader(Buffer)} but cached.
+     */
+    public String decode(Buffer value) {
+        if (value == null || value.length > maxLength) {
+            return StompFrame.decodeHeader(value);
+        }
+        int slot = InternTable.hash(value.data, value.offset, value.length) & mask;
+        Entry entry = decoded[slot];
+        if (entry != null && entry.buffer.equals(value)) {
+            return entry.string;
+        }
+        String rc = StompFrame.decodeHeader(value);
+        // copy the key so that we don't pin the read buffer it came from.
+        decoded[slot] = new Entry(rc, new AsciiBuffer(value.deepCopy()));
+        return rc;
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+
+import java.util.Set;
+
+import static org.fusesource.stomp.client.Constants.COLON_BYTE;
+import static org.fusesource.stomp.client.Constants.NEWLINE_BYTE;
+
+/**
+ * <p>
+ * A compact index of the header lines of a decoded frame.
+ * Instead of allocating a key and value buffer for every header line,
+ * the decoder just records where each key and value lives in the read
+ * buffer.  Buffers are only created when a header is actually accessed.
+ * </p>
+ * <p>
+ * Header names found in the decoder's {@link InternTable} are recorded by
+ * id instead of position so that the shared name instance is handed out.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class HeaderIndex {
+
+    private static final int SLOTS = 4;
+
+    private final InternTable names;
+    private byte[] data;
+    private int offset;
+    private int[] positions;
+    private int count;
+
+    /**
+     * @param names the table interned header names are looked up in.
+     * @param capacity the initial number of headers to size the index for.
+     */
+    public HeaderIndex(InternTable names, int capacity) {
+        this.names = names;
+        this.positions = new int[Math.max(capacity, 1) * SLOTS];
+    }
+
+    /**
+     * Sets the buffer holding the header lines.  Recorded positions are
+     * relative to the supplied offset, which lets the decoder record
+     * positions before it knows which read buffer the header block will
+     * finally end up in.
+     */
+    void bind(byte[] data, int offset) {
+        this.data = data;
+        this.offset = offset;
+    }
+
+    /**
+     * Drops all the recorded headers so the index can be reused for another frame.
+     */
+    void reset() {
+        data = null;
+        offset = 0;
+        count = 0;
+    }
+
+    /**
+     * @return an index of the same headers which is not affected if this one gets reused.
+     */
+    HeaderIndex copy() {
+        HeaderIndex rc = new HeaderIndex(names, count);
+        System.arraycopy(positions, 0, rc.positions, 0, count * SLOTS);
+        rc.count = count;
+        rc.bind(data, offset);
+        return rc;
+    }
+
+    /**
+     * Records a header whose name is the interned name with the given id.
+     */
+    void addInterned(int keyId, int keyLength, int valueOffset, int valueLength) {
+        add(-(keyId + 1), keyLength, valueOffset, valueLength);
+    }
+
+    void add(int keyOffset, int keyLength, int valueOffset, int valueLength) {
+        int pos = count * SLOTS;
+        if( pos + SLOTS > positions.length ) {
+            int[] grown = new int[positions.length * 2];
+            System.arraycopy(positions, 0, grown, 0, pos);
+            positions = grown;
+        }
+        positions[pos] = keyOffset;
+        positions[pos+1] = keyLength;
+        positions[pos+2] = valueOffset;
+        positions[pos+3] = valueLength;
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public AsciiBuffer key(int i) {
+        int pos = i * SLOTS;
+        int keyOffset = positions[pos];
+        if( keyOffset < 0 ) {
+            return names.get(-(keyOffset + 1));
+        }
+        return new AsciiBuffer(data, offset + keyOffset, positions[pos+1]);
+    }
+
+    public AsciiBuffer value(int i) {
+        int pos = i * SLOTS;
+        return new AsciiBuffer(data, offset + positions[pos+2], positions[pos+3]);
+    }
+
+    /**
+     * @return true if the key of the i'th header is equal to the supplied key
+     */
+    public boolean keyEquals(int i, Buffer key) {
+        int pos = i * SLOTS;
+        int length = positions[pos+1];
+        if( length != key.length ) {
+            return false;
+        }
+        int start = positions[pos];
+        if( start < 0 ) {
+            AsciiBuffer name = names.get(-(start + 1));
+            return name == key || name.equals(key);
+        }
+        start += offset;
+        byte[] keyData = key.data;
+        int keyOffset = key.offset;
+        for (int j = 0; j < length; j++) {
+            if( data[start+j] != keyData[keyOffset+j] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int indexOf(Buffer key) {
+        for (int i = 0; i < count; i++) {
+            if( keyEquals(i, key) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int lastIndexOf(Buffer key) {
+        for (int i = count-1; i >= 0; i--) {
+            if( keyEquals(i, key) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes all the header lines with the given key.
+     */
+    void remove(Buffer key) {
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            if( !keyEquals(i, key) ) {
+                if( live != i ) {
+                    System.arraycopy(positions, i * SLOTS, positions, live * SLOTS, SLOTS);
+                }
+                live++;
+            }
+        }
+        count = live;
+    }
+
+    /**
+     * @return the value of the first header with the given key or null if not found.
+     */
+    public AsciiBuffer get(Buffer key) {
+        int i = indexOf(key);
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * @return the value of the header with the given key or null if not found. When a
+     * header is repeated, the first occurrence is used unless the key is in the
+     * reversedHeaderHandling set in which case the last occurrence is used.
+     */
+    public AsciiBuffer get(Buffer key, Set<AsciiBuffer> reversedHeaderHandling) {
+        int i;
+        if( reversedHeaderHandling.contains(key) ) {
+            i = lastIndexOf(key);
+        } else {
+            i = indexOf(key);
+        }
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * @return a mutable table holding the same header lines.
+     */
+    public HeaderTable toTable() {
+        HeaderTable rc = new HeaderTable(Math.max(count, 8));
+        for (int i = 0; i < count; i++) {
+            rc.add(key(i), value(i));
+        }
+        return rc;
+    }
+
+    /**
+     * @return the number of bytes the header lines, other than the ones
+     * with the skipped key, use when encoded.
+     */
+    public int encodedSize(Buffer skip) {
+        int rc = 0;
+        for (int i = 0; i < count; i++) {
+            if( !keyEquals(i, skip) ) {
+                int pos = i * SLOTS;
+                rc += positions[pos+1] + positions[pos+3] + 2;
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Copies the header lines, other than the ones with the skipped key,
+     * into the buffer.
+     *
+     * @return the position after the last copied header line.
+     */
+    public int encode(byte[] buffer, int at, Buffer skip) {
+        for (int i = 0; i < count; i++) {
+            if( keyEquals(i, skip) ) {
+                continue;
+            }
+            int pos = i * SLOTS;
+            int keyOffset = positions[pos];
+            int keyLength = positions[pos+1];
+            if( keyOffset < 0 ) {
+                AsciiBuffer name = names.get(-(keyOffset + 1));
+                System.arraycopy(name.data, name.offset, buffer, at, keyLength);
+            } else {
+                System.arraycopy(data, offset + keyOffset, buffer, at, keyLength);
+            }
+            at += keyLength;
+            buffer[at++] = COLON_BYTE;
+            int valueLength = positions[pos+3];
+            System.arraycopy(data, offset + positions[pos+2], buffer, at, valueLength);
+            at += valueLength;
+            buffer[at++] = NEWLINE_BYTE;
+        }
+        return at;
+    }
+
+}
@@ -0,0 +1,491 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+
+import java.util.*;
+
+/**
+ * <p>
+ * The mutable headers of a frame.  Keys and values are kept in insertion
+ * order in two parallel arrays and the table hands out both a list and a
+ * map view over them, so switching between the two views does not copy
+ * any entries.
+ * </p>
+ * <p>
+ * A header line may be repeated.  Lookups use the first occurrence of a key
+ * unless the key is one of the reversed header names in which case the last
+ * occurrence is used.  Getting the map view drops the occurrences which are
+ * not used so that every key maps to a single entry.
+ * </p>
+ * <p>
+ * Small tables are searched linearly.  Once a table has more than
+ * {@link #LINEAR_SCAN_LIMIT} entries, keys are also indexed in an open
+ * addressing hash table which maps them to the position of their first
+ * occurrence.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class HeaderTable {
+
+    static final int LINEAR_SCAN_LIMIT = 8;
+
+    private AsciiBuffer[] keys;
+    private AsciiBuffer[] values;
+    private int size;
+
+    // entry position + 1 of the first occurrence of a key, 0 marks a free
+    // slot. Only maintained when there are more than LINEAR_SCAN_LIMIT
+    // entries, set to null whenever entries move.
+    private int[] slots;
+
+    private Set<AsciiBuffer> reversed = Collections.emptySet();
+    private boolean duplicates;
+
+    private ListView listView;
+    private MapView mapView;
+
+    public HeaderTable() {
+        this(8);
+    }
+
+    public HeaderTable(int capacity) {
+        capacity = Math.max(capacity, 1);
+        keys = new AsciiBuffer[capacity];
+        values = new AsciiBuffer[capacity];
+    }
+
+    public HeaderTable copy() {
+        HeaderTable rc = new HeaderTable(Math.max(size, 8));
+        System.arraycopy(keys, 0, rc.keys, 0, size);
+        System.arraycopy(values, 0, rc.values, 0, size);
+        rc.size = size;
+        rc.reversed = reversed;
+        rc.duplicates = duplicates;
+        return rc;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public AsciiBuffer key(int i) {
+        return keys[i];
+    }
+
+    public AsciiBuffer value(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return the value of the header with the given key using the
+     * reversed header names of the table, or null if not found.
+     */
+    public AsciiBuffer get(Buffer key) {
+        int i = find(key);
+        return i < 0 ? null : values[i];
+    }
+
+    /**
+     * @return the value of the header with the given key or null if not found. When a
+     * header is repeated, the first occurrence is used unless the key is in the
+     * reversedHeaderHandling set in which case the last occurrence is used.
+     */
+    public AsciiBuffer get(Buffer key, Set<AsciiBuffer> reversedHeaderHandling) {
+        int i = indexOf(key);
+        if( i >= 0 && duplicates && reversedHeaderHandling.contains(key) ) {
+            i = lastIndexOf(key);
+        }
+        return i < 0 ? null : values[i];
+    }
+
+    /**
+     * Appends a header line.
+     */
+    public void add(AsciiBuffer key, AsciiBuffer value) {
+        insert(size, key, value);
+    }
+
+    /**
+     * Inserts a header line at the given position.
+     */
+    public void insert(int i, AsciiBuffer key, AsciiBuffer value) {
+        if( i < 0 || i > size ) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+        int existing = indexOf(key);
+        if( size == keys.length ) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        if( i < size ) {
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(values, i, values, i + 1, size - i);
+            slots = null;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if( existing >= 0 ) {
+            duplicates = true;
+        } else if( slots!=null ) {
+            index(i);
+        }
+    }
+
+    /**
+     * Sets the value of the header with the given key, dropping all but one
+     * occurrence of it when it's repeated.  Appends a header line if there
+     * is no header with the key yet.
+     *
+     * @return the previous value or null.
+     */
+    public AsciiBuffer put(AsciiBuffer key, AsciiBuffer value) {
+        int i = find(key);
+        if( i < 0 ) {
+            add(key, value);
+            return null;
+        }
+        AsciiBuffer rc = values[i];
+        values[i] = value;
+        if( duplicates ) {
+            for (int j = size - 1; j >= 0; j--) {
+                if( j != i && keyEquals(j, key) ) {
+                    removeAt(j);
+                }
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Removes all the header lines with the given key.
+     *
+     * @return the value which {@link #get(Buffer)} returned before the removal.
+     */
+    public AsciiBuffer remove(Buffer key) {
+        int i = find(key);
+        if( i < 0 ) {
+            return null;
+        }
+        AsciiBuffer rc = values[i];
+        for (int j = size - 1; j >= 0; j--) {
+            if( keyEquals(j, key) ) {
+                removeAt(j);
+            }
+        }
+        return rc;
+    }
+
+    public void removeAt(int i) {
+        if( i < 0 || i >= size ) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+        size--;
+        System.arraycopy(keys, i + 1, keys, i, size - i);
+        System.arraycopy(values, i + 1, values, i, size - i);
+        keys[size] = null;
+        values[size] = null;
+        slots = null;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        slots = null;
+        duplicates = false;
+    }
+
+    /**
+     * Drops the occurrences of repeated headers which would not be used by a
+     * lookup, so that every key is left with a single header line.
+     */
+    public void collapse(Set<AsciiBuffer> reversedHeaderHandling) {
+        reversed = reversedHeaderHandling;
+        if( !duplicates ) {
+            return;
+        }
+        boolean[] keep = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            AsciiBuffer key = keys[i];
+            keep[i] = reversed.contains(key) ? lastIndexOf(key) == i : indexOf(key) == i;
+        }
+        int live = 0;
+        for (int i = 0; i < size; i++) {
+            if( keep[i] ) {
+                keys[live] = keys[i];
+                values[live] = values[i];
+                live++;
+            }
+        }
+        Arrays.fill(keys, live, size, null);
+        Arrays.fill(values, live, size, null);
+        size = live;
+        slots = null;
+        duplicates = false;
+    }
+
+    /**
+     * @return a list view of the header lines, changes to it write through to the table.
+     */
+    public List<StompFrame.HeaderEntry> list() {
+        if( listView==null ) {
+            listView = new ListView();
+        }
+        return listView;
+    }
+
+    /**
+     * @return a map view of the headers, changes to it write through to the table.
+     */
+    public Map<AsciiBuffer, AsciiBuffer> map(Set<AsciiBuffer> reversedHeaderHandling) {
+        collapse(reversedHeaderHandling);
+        if( mapView==null ) {
+            mapView = new MapView();
+        }
+        return mapView;
+    }
+
+    public int indexOf(Buffer key) {
+        if( size > LINEAR_SCAN_LIMIT ) {
+            if( slots==null ) {
+                rehash();
+            }
+            int mask = slots.length - 1;
+            for (int s = hash(key) & mask; ; s = (s + 1) & mask) {
+                int i = slots[s] - 1;
+                if( i < 0 ) {
+                    return -1;
+                }
+                if( keyEquals(i, key) ) {
+                    return i;
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if( keyEquals(i, key) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int lastIndexOf(Buffer key) {
+        for (int i = size - 1; i >= 0; i--) {
+            if( keyEquals(i, key) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int find(Buffer key) {
+        int i = indexOf(key);
+        if( i >= 0 && duplicates && reversed.contains(key) ) {
+            i = lastIndexOf(key);
+        }
+        return i;
+    }
+
+    private boolean keyEquals(int i, Buffer key) {
+        AsciiBuffer k = keys[i];
+        return k == key || k.equals(key);
+    }
+
+    private static int hash(Buffer key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash() {
+        int capacity = 16;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            if( !duplicates || indexOf(keys[i], i) == i ) {
+                index(i);
+            }
+        }
+    }
+
+    // linear scan for the first occurrence among the entries before limit.
+    private int indexOf(Buffer key, int limit) {
+        for (int i = 0; i < limit; i++) {
+            if( keyEquals(i, key) ) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    private void index(int i) {
+        if( size * 2 > slots.length ) {
+            rehash();
+            return;
+        }
+        int mask = slots.length - 1;
+        int s = hash(keys[i]) & mask;
+        while (slots[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        slots[s] = i + 1;
+    }
+
+    private class ListView extends AbstractList<StompFrame.HeaderEntry> implements RandomAccess {
+
+        @Override
+        public StompFrame.HeaderEntry get(int i) {
+            if( i >= size ) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+            }
+            return new StompFrame.HeaderEntry(keys[i], values[i]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void add(int i, StompFrame.HeaderEntry entry) {
+            modCount++;
+            insert(i, entry.key, entry.value);
+        }
+
+        @Override
+        public StompFrame.HeaderEntry set(int i, StompFrame.HeaderEntry entry) {
+            StompFrame.HeaderEntry rc = get(i);
+            if( keyEquals(i, entry.key) ) {
+                values[i] = entry.value;
+            } else {
+                removeAt(i);
+                insert(i, entry.key, entry.value);
+            }
+            return rc;
+        }
+
+        @Override
+        public StompFrame.HeaderEntry remove(int i) {
+            StompFrame.HeaderEntry rc = get(i);
+            modCount++;
+            removeAt(i);
+            return rc;
+        }
+
+        @Override
+        public void clear() {
+            modCount++;
+            HeaderTable.this.clear();
+        }
+    }
+
+    private class MapView extends AbstractMap<AsciiBuffer, AsciiBuffer> {
+
+        private Set<Map.Entry<AsciiBuffer, AsciiBuffer>> entrySet;
+
+        @Override
+        public int size() {
+            if( duplicates ) {
+                collapse(reversed);
+            }
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Buffer && indexOf((Buffer) key) >= 0;
+        }
+
+        @Override
+        public AsciiBuffer get(Object key) {
+            return key instanceof Buffer ? HeaderTable.this.get((Buffer) key) : null;
+        }
+
+        @Override
+        public AsciiBuffer put(AsciiBuffer key, AsciiBuffer value) {
+            return HeaderTable.this.put(key, value);
+        }
+
+        @Override
+        public AsciiBuffer remove(Object key) {
+            return key instanceof Buffer ? HeaderTable.this.remove((Buffer) key) : null;
+        }
+
+        @Override
+        public void clear() {
+            HeaderTable.this.clear();
+        }
+
+        @Override
+        public Set<Map.Entry<AsciiBuffer, AsciiBuffer>> entrySet() {
+            if( entrySet==null ) {
+                entrySet = new AbstractSet<Map.Entry<AsciiBuffer, AsciiBuffer>>() {
+                    @Override
+                    public Iterator<Map.Entry<AsciiBuffer, AsciiBuffer>> iterator() {
+                        if( duplicates ) {
+                            collapse(reversed);
+                        }
+                        return new EntryIterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return MapView.this.size();
+                    }
+
+                    @Override
+                    public void clear() {
+                        HeaderTable.this.clear();
+                    }
+                };
+            }
+            return entrySet;
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<AsciiBuffer, AsciiBuffer>> {
+        private int next;
+        private int last = -1;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public Map.Entry<AsciiBuffer, AsciiBuffer> next() {
+            if( next >= size ) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            final int i = last;
+            return new AbstractMap.SimpleEntry<AsciiBuffer, AsciiBuffer>(keys[i], values[i]) {
+                @Override
+                public AsciiBuffer setValue(AsciiBuffer value) {
+                    values[i] = value;
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        public void remove() {
+            if( last < 0 ) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Maps byte sequences to shared AsciiBuffer instances so that the decoder
+ * can hand out the same buffer instance (typically one of the
+ * {@link org.fusesource.stomp.client.Constants}) every time it sees a well
+ * known command or header name.  Maps keyed by interned buffers can then
+ * hash and compare by identity in the common case.
+ * </p>
+ * <p>
+ * Lookups are lock free against an immutable open addressing table which is
+ * kept at most a quarter full so that probe chains are short.  Registering a
+ * new value rebuilds the table, so registration is expected to be rare.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class InternTable {
+
+    private static final class State {
+        final AsciiBuffer[] values;
+        final int[] slots;
+        final int mask;
+
+        State(AsciiBuffer[] values) {
+            this.values = values;
+            int size = 64;
+            while (size < values.length * 4) {
+                size <<= 1;
+            }
+            this.slots = new int[size];
+            this.mask = size - 1;
+            for (int id = 0; id < values.length; id++) {
+                AsciiBuffer value = values[id];
+                int slot = hash(value.data, value.offset, value.length) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id + 1;
+            }
+        }
+    }
+
+    private volatile State state = new State(new AsciiBuffer[0]);
+
+    static int hash(byte[] data, int offset, int length) {
+        int h = length;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + data[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Registers a value with the table.
+     *
+     * @return the id of the value, if the value was already registered the
+     * id of the previously registered instance is returned.
+     */
+    public synchronized int register(AsciiBuffer value) {
+        int id = lookup(value.data, value.offset, value.length);
+        if (id < 0) {
+            AsciiBuffer[] values = state.values;
+            AsciiBuffer[] next = Arrays.copyOf(values, values.length + 1);
+            next[values.length] = value;
+            state = new State(next);
+            id = values.length;
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of the registered value equal to the supplied bytes or -1 if there is none.
+     */
+    public int lookup(byte[] data, int offset, int length) {
+        State state = this.state;
+        AsciiBuffer[] values = state.values;
+        int[] slots = state.slots;
+        int slot = hash(data, offset, length) & state.mask;
+        int id;
+        while ((id = slots[slot]) != 0) {
+            AsciiBuffer value = values[id - 1];
+            if (value.length == length && matches(value, data, offset)) {
+                return id - 1;
+            }
+            slot = (slot + 1) & state.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the registered value with the given id.
+     */
+    public AsciiBuffer get(int id) {
+        return state.values[id];
+    }
+
+    /**
+     * @return the registered value equal to the supplied bytes or null if there is none.
+     */
+    public AsciiBuffer intern(byte[] data, int offset, int length) {
+        int id = lookup(data, offset, length);
+        return id < 0 ? null : get(id);
+    }
+
+    public int size() {
+        return state.values.length;
+    }
+
+    private static boolean matches(AsciiBuffer value, byte[] data, int offset) {
+        byte[] valueData = value.data;
+        int valueOffset = value.offset;
+        for (int i = 0; i < value.length; i++) {
+            if (valueData[valueOffset + i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import org.fusesource.hawtbuf.Buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A frame body which has been spilled to a memory mapped temp file so that
+ * it does not have to be held on the heap.  The temp file is deleted as soon
+ * as it has been mapped, the mapping stays valid until it gets garbage
+ * collected.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class MappedContent {
+
+    private final ByteBuffer buffer;
+
+    private MappedContent(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates an empty body of the given length in a temp file.
+     *
+     * @param directory the directory to create the temp file in, or null to use
+     * the default temp directory.
+     */
+    public static MappedContent create(File directory, int length) throws IOException {
+        File file = File.createTempFile("stomp-body-", ".tmp", directory);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return new MappedContent(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length));
+            } finally {
+                raf.close();
+            }
+        } finally {
+            if( !file.delete() ) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Appends data to the body while it's being decoded.
+     */
+    void put(byte[] data, int offset, int length) {
+        buffer.put(data, offset, length);
+    }
+
+    public int length() {
+        return buffer.limit();
+    }
+
+    /**
+     * @return a new read only buffer positioned at the start of the body.
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer rc = buffer.asReadOnlyBuffer();
+        rc.clear();
+        return rc;
+    }
+
+    /**
+     * Copies the body onto the heap.
+     */
+    public Buffer toBuffer() {
+        byte[] data = new byte[length()];
+        toByteBuffer().get(data);
+        return new Buffer(data);
+    }
+
+    public InputStream inputStream() {
+        final ByteBuffer source = toByteBuffer();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if( !source.hasRemaining() ) {
+                    return -1;
+                }
+                len = Math.min(len, source.remaining());
+                source.get(b, off, len);
+                return len;
+            }
+
+            @Override
+            public long skip(long n) {
+                int size = (int) Math.max(0, Math.min(n, source.remaining()));
+                source.position(source.position() + size);
+                return size;
+            }
+
+            @Override
+            public int available() {
+                return source.remaining();
+            }
+        };
+    }
+}
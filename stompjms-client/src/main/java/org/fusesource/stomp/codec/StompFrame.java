@@ -13,12 +13,13 @@ package org.fusesource.stomp.codec;
 
 import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.hawtbuf.Buffer;
-import org.fusesource.hawtbuf.ByteArrayOutputStream;
-import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtbuf.BufferInputStream;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.*;
 
 import static org.fusesource.stomp.client.Constants.*;
@@ -32,6 +33,8 @@ public class StompFrame {
 
     public static final Buffer NO_DATA = new Buffer(new byte[]{});
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     static public class HeaderEntry {
         public final AsciiBuffer key;
         public final AsciiBuffer value;
@@ -57,51 +60,124 @@ public class StompFrame {
     }
 
     private AsciiBuffer action;
-    private ArrayList<HeaderEntry> headerList;
-    private HashMap<AsciiBuffer, AsciiBuffer> headerMap = new HashMap<AsciiBuffer, AsciiBuffer>(16);
+    HeaderIndex headerIndex;
+    HeaderTable headers;
     private Buffer content = NO_DATA;
+    private MappedContent mappedContent;
+
+    // The encoded size of the header block.  It's discarded whenever the
+    // frame is mutated or a mutable view of the headers is handed out.
+    private int headerSize = -1;
+
+    // Only set on frames decoded into a FramePool.
+    FramePool pool;
+    HeaderIndex pooledIndex;
+    Throwable releasedBy;
 
     public StompFrame() {
+        headers = new HeaderTable();
     }
 
     public StompFrame(AsciiBuffer action) {
+        this();
+        this.action = action;
+    }
+
+    /**
+     * Used by the decoder to create a frame whose headers are backed by
+     * a header index.
+     */
+    StompFrame(AsciiBuffer action, HeaderIndex headerIndex) {
         this.action = action;
+        this.headerIndex = headerIndex;
     }
 
     public StompFrame clone() {
-        StompFrame rc = new StompFrame(action);
-        if( headerList!=null ) {
-            rc.headerList = new ArrayList<HeaderEntry>(headerList);
-            rc.headerMap = null;
+        checkReleased();
+        StompFrame rc;
+        if( headerIndex!=null ) {
+            // copying the index only copies its positions, the header
+            // bytes stay shared.
+            rc = new StompFrame(action, headerIndex.copy());
         } else {
-            rc.headerMap = new HashMap<AsciiBuffer,AsciiBuffer>(headerMap);
-            rc.headerList = null;
+            rc = new StompFrame(action, null);
+            rc.headers = headers.copy();
         }
         rc.content = content;
+        rc.mappedContent = mappedContent;
+        rc.headerSize = headerSize;
         return rc;
     }
 
     public AsciiBuffer action() {
+        checkReleased();
         return action;
     }
 
     public StompFrame action(AsciiBuffer action) {
         assert action != null;
+        checkReleased();
         this.action = action;
+        this.headerSize = -1;
         return this;
     }
 
+    /**
+     * Gets the body.  If the body was spilled to a temp file by the decoder,
+     * this copies it onto the heap, use {@link #contentStream()} to avoid that.
+     */
     public Buffer content() {
+        checkReleased();
+        if( mappedContent!=null ) {
+            content = mappedContent.toBuffer();
+            mappedContent = null;
+        }
         return this.content;
     }
 
     public StompFrame content(Buffer content) {
         assert content != null;
+        checkReleased();
         this.content = content;
+        this.mappedContent = null;
+        this.headerSize = -1;
+        return this;
+    }
+
+    StompFrame content(MappedContent content) {
+        checkReleased();
+        this.content = NO_DATA;
+        this.mappedContent = content;
+        this.headerSize = -1;
         return this;
     }
 
+    /**
+     * @return the body when it was spilled to a temp file by the decoder, otherwise null.
+     */
+    public MappedContent mappedContent() {
+        checkReleased();
+        return mappedContent;
+    }
+
+    public int contentLength() {
+        checkReleased();
+        return mappedContent!=null ? mappedContent.length() : content.length;
+    }
+
+    /**
+     * @return a stream over the body which does not copy a spilled body onto the heap.
+     */
+    public InputStream contentStream() {
+        checkReleased();
+        if( mappedContent!=null ) {
+            return mappedContent.inputStream();
+        }
+        return new BufferInputStream(content);
+    }
+
     public String contentAsString() {
+        Buffer content = content();
         try {
             return new String(content.getData(), content.getOffset(), content.getLength(), "UTF-8");
         } catch (UnsupportedEncodingException e) {
@@ -113,129 +189,185 @@ public class StompFrame {
         return headerMap(Collections.EMPTY_SET);
     }
 
+    /**
+     * @return a map view of the headers.  Repeated headers are dropped except
+     * for the first occurrence, or the last one for the keys in the
+     * reversedHeaderHandling set.
+     */
     public Map<AsciiBuffer, AsciiBuffer> headerMap(Set<AsciiBuffer> reversedHeaderHandling) {
-        if( headerMap==null ) {
-            headerMap = new HashMap<AsciiBuffer, AsciiBuffer>();
-            for (HeaderEntry HeaderEntry : headerList) {
-                final AsciiBuffer key = HeaderEntry.getKey();
-                AsciiBuffer old = headerMap.put(key, HeaderEntry.getValue());
-                if( old !=null && !reversedHeaderHandling.contains(key) ) {
-                    headerMap.put(key, old);
-                }
-            }
-            headerList = null;
-        }
-        return headerMap;
+        checkReleased();
+        headerSize = -1;
+        return table().map(reversedHeaderHandling);
     }
 
+    /**
+     * @return a list view of the header lines in the order they get encoded.
+     */
     public List<HeaderEntry> headerList() {
-        if( headerList==null ) {
-            for (Map.Entry<AsciiBuffer,AsciiBuffer> entry : headerMap.entrySet()) {
-                headerList.add(new HeaderEntry(entry.getKey(), entry.getValue()));
-            }
-            headerMap = null;
-        }
-        return headerList;
+        checkReleased();
+        headerSize = -1;
+        return table().list();
     }
 
+    /**
+     * Adds a header line in front of the existing ones so that it takes
+     * precedence over an existing header with the same key.
+     */
     public void addHeader(AsciiBuffer key, AsciiBuffer value) {
-        if( headerList!=null ) {
-            headerList.add(0, new HeaderEntry(key, value));
+        checkReleased();
+        headerSize = -1;
+        table().insert(0, key, value);
+    }
+
+    public AsciiBuffer getHeader(AsciiBuffer key) {
+        checkReleased();
+        if( headerIndex!=null ) {
+            return headerIndex.get(key);
         } else {
-            headerMap.put(key, value);
+            return headers.get(key);
         }
     }
 
-    public AsciiBuffer getHeader(AsciiBuffer key) {
-        if( headerList!=null ) {
-            for (HeaderEntry HeaderEntry : headerList) {
-                if( HeaderEntry.getKey().equals(key) ) {
-                    return HeaderEntry.getValue();
-                }
-            }
-            return null;
+    /**
+     * Gets a header value using the same duplicate header resolution as
+     * {@link #headerMap(java.util.Set)} but without dropping the repeated
+     * headers.
+     */
+    public AsciiBuffer getHeader(AsciiBuffer key, Set<AsciiBuffer> reversedHeaderHandling) {
+        checkReleased();
+        if( headerIndex!=null ) {
+            return headerIndex.get(key, reversedHeaderHandling);
         } else {
-            return headerMap.get(key);
+            return headers.get(key, reversedHeaderHandling);
+        }
+    }
+
+    /**
+     * Removes all the header lines with the given key.
+     */
+    public void removeHeader(AsciiBuffer key) {
+        checkReleased();
+        headerSize = -1;
+        if( headerIndex!=null ) {
+            headerIndex.remove(key);
+        } else {
+            table().remove(key);
+        }
+    }
+
+    /**
+     * The decoder's header index can't take new headers, it gets converted
+     * to a header table the first time the headers are modified.
+     */
+    private HeaderTable table() {
+        if( headerIndex!=null ) {
+            headers = headerIndex.toTable();
+            headerIndex = null;
         }
+        return headers;
     }
 
     public void clearHeaders() {
-        if( headerList!=null) {
-            headerList.clear();
+        checkReleased();
+        headerSize = -1;
+        if( headerIndex!=null ) {
+            headerIndex = null;
+            headers = new HeaderTable();
         } else {
-            headerMap.clear();
+            headers.clear();
         }
     }
 
     public void setHeaders(ArrayList<HeaderEntry> values) {
-        headerList = values;
-        headerMap = null;
+        checkReleased();
+        headerSize = -1;
+        headerIndex = null;
+        headers = new HeaderTable(values.size());
+        for (HeaderEntry entry : values) {
+            headers.add(entry.key, entry.value);
+        }
     }
 
-    public Buffer toBuffer() {
-        return toBuffer(true);
+    public void setHeaders(HeaderIndex index) {
+        checkReleased();
+        headerSize = -1;
+        headerIndex = index;
+        headers = null;
     }
 
-    public Buffer toBuffer(boolean includeBody) {
-        try {
-            DataByteArrayOutputStream out = new DataByteArrayOutputStream();
-            write(out, includeBody);
-            return out.toBuffer();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // not expected to occur.
+    /**
+     * Hands a frame which was decoded into a {@link FramePool} back to the
+     * pool so that it can be reused for a subsequent frame.  The frame must
+     * not be used after it's been released.  Does nothing for other frames.
+     */
+    public void release() {
+        if( pool!=null ) {
+            if( releasedBy!=null ) {
+                if( pool.isDebug() ) {
+                    throw new IllegalStateException("The frame was already released", releasedBy);
+                }
+                return;
+            }
+            pool.release(this);
         }
     }
 
-    private void write(DataOutput out, Buffer buffer) throws IOException {
-        out.write(buffer.data, buffer.offset, buffer.length);
+    private void checkReleased() {
+        if( releasedBy!=null ) {
+            throw new IllegalStateException("The frame was used after it was released", releasedBy==FramePool.RELEASED ? null : releasedBy);
+        }
+    }
+
+    void recycle() {
+        releasedBy = FramePool.RELEASED;
+        action = null;
+        headerIndex = null;
+        headers = null;
+        content = NO_DATA;
+        mappedContent = null;
+        headerSize = -1;
+    }
+
+    void reuse(AsciiBuffer action) {
+        releasedBy = null;
+        this.action = action;
+        pooledIndex.reset();
+        headerIndex = pooledIndex;
+    }
+
+    public Buffer toBuffer() {
+        return toBuffer(true);
+    }
+
+    public Buffer toBuffer(boolean includeBody) {
+        return StompFrameEncoder.toBuffer(this, includeBody);
     }
 
     public void write(DataOutput out) throws IOException {
         write(out, true);
     }
 
-    public int size() {
-        int rc = action.length() + 1;
-        if( headerList!=null ) {
-            for (HeaderEntry entry : headerList) {
-                rc += entry.getKey().length() + entry.getValue().length() + 2;
-            }
-        } else {
-            for (Map.Entry<AsciiBuffer,AsciiBuffer> entry : headerMap.entrySet()) {
-                rc += entry.getKey().length() + entry.getValue().length() + 2;
-            }
+    /**
+     * @return the encoded size of the action and headers, it's computed once
+     * and then cached until the frame is modified.
+     */
+    int headerSize() {
+        checkReleased();
+        if( headerSize < 0 ) {
+            headerSize = StompFrameEncoder.headerSize(this);
         }
-        rc += content.length() + 3;
-        return rc;
+        return headerSize;
     }
 
-    public void write(DataOutput out, boolean includeBody) throws IOException {
-        write(out, action);
-        out.writeByte(NEWLINE_BYTE);
-
-        if( headerList!=null ) {
-            for (HeaderEntry entry : headerList) {
-                write(out, entry.getKey());
-                out.writeByte(COLON_BYTE);
-                write(out, entry.getValue());
-                out.writeByte(NEWLINE_BYTE);
-            }
-        } else {
-            for (Map.Entry<AsciiBuffer,AsciiBuffer> entry : headerMap.entrySet()) {
-                write(out, entry.getKey());
-                out.writeByte(COLON_BYTE);
-                write(out, entry.getValue());
-                out.writeByte(NEWLINE_BYTE);
-            }
-        }
+    /**
+     * @return the number of bytes the frame uses when encoded.
+     */
+    public int size() {
+        return headerSize() + contentLength() + 2;
+    }
 
-        //denotes end of headers with a new line
-        out.writeByte(NEWLINE_BYTE);
-        if (includeBody) {
-            write(out, content);
-            out.writeByte(NULL_BYTE);
-            out.writeByte(NEWLINE_BYTE);
-        }
+    public void write(DataOutput out, boolean includeBody) throws IOException {
+        StompFrameEncoder.write(this, out, includeBody);
     }
 
     public String toString() {
@@ -255,56 +387,88 @@ public class StompFrame {
         if (value == null)
             return null;
 
-        ByteArrayOutputStream rc = new ByteArrayOutputStream(value.length);
-        Buffer pos = new Buffer(value);
+        byte[] data = value.data;
         int max = value.offset + value.length;
-        while (pos.offset < max) {
-            if (pos.startsWith(ESCAPE_ESCAPE_SEQ)) {
-                rc.write(ESCAPE_BYTE);
-                pos.moveHead(2);
-            } else if (pos.startsWith(COLON_ESCAPE_SEQ)) {
-                rc.write(COLON_BYTE);
-                pos.moveHead(2);
-            } else if (pos.startsWith(NEWLINE_ESCAPE_SEQ)) {
-                rc.write(NEWLINE_BYTE);
-                pos.moveHead(2);
-            } else {
-                rc.write(pos.data[pos.offset]);
-                pos.moveHead(1);
-            }
+        int escape = DelimiterScanner.indexOf(data, value.offset, max, ESCAPE_BYTE);
+        if (escape < 0) {
+            // Nothing to unescape, decode straight from the frame's bytes.
+            return new String(data, value.offset, value.length, UTF_8);
         }
-        try {
-            return new String(rc.toByteArray(), "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e); // not expected.
+
+        byte[] rc = new byte[value.length];
+        int size = escape - value.offset;
+        System.arraycopy(data, value.offset, rc, 0, size);
+        for (int i = escape; i < max; i++) {
+            byte b = data[i];
+            if (b == ESCAPE_BYTE && i + 1 < max) {
+                byte next = data[i + 1];
+                if (next == ESCAPE_BYTE) {
+                    b = ESCAPE_BYTE;
+                    i++;
+                } else if (next == COLON_ESCAPE_SEQ.data[COLON_ESCAPE_SEQ.offset + 1]) {
+                    b = COLON_BYTE;
+                    i++;
+                } else if (next == NEWLINE_ESCAPE_SEQ.data[NEWLINE_ESCAPE_SEQ.offset + 1]) {
+                    b = NEWLINE_BYTE;
+                    i++;
+                }
+            }
+            rc[size++] = b;
         }
+        return new String(rc, 0, size, UTF_8);
     }
 
     public static AsciiBuffer encodeHeader(String value) {
         if (value == null)
             return null;
-        try {
-            byte[] data = value.getBytes("UTF-8");
-            ByteArrayOutputStream rc = new ByteArrayOutputStream(data.length);
-            for (byte d : data) {
-                switch (d) {
-                    case ESCAPE_BYTE:
-                        rc.write(ESCAPE_ESCAPE_SEQ);
-                        break;
-                    case COLON_BYTE:
-                        rc.write(COLON_ESCAPE_SEQ);
-                        break;
-                    case NEWLINE_BYTE:
-                        rc.write(COLON_ESCAPE_SEQ);
-                        break;
-                    default:
-                        rc.write(d);
-                }
+
+        int length = value.length();
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c >= 0x80 || c == ESCAPE_BYTE || c == COLON_BYTE || c == NEWLINE_BYTE) {
+                break;
+            }
+            i++;
+        }
+        if (i == length) {
+            // Plain ascii without anything to escape maps 1:1 to bytes.
+            return new AsciiBuffer(value);
+        }
+
+        byte[] data = value.getBytes(UTF_8);
+        int escapes = 0;
+        for (byte d : data) {
+            if (d == ESCAPE_BYTE || d == COLON_BYTE || d == NEWLINE_BYTE) {
+                escapes++;
             }
-            return rc.toBuffer().ascii();
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e); // not expected.
         }
+        if (escapes == 0) {
+            return new AsciiBuffer(data);
+        }
+        byte[] rc = new byte[data.length + escapes];
+        int pos = 0;
+        for (byte d : data) {
+            switch (d) {
+                case ESCAPE_BYTE:
+                    pos = put(ESCAPE_ESCAPE_SEQ, rc, pos);
+                    break;
+                case COLON_BYTE:
+                    pos = put(COLON_ESCAPE_SEQ, rc, pos);
+                    break;
+                case NEWLINE_BYTE:
+                    pos = put(NEWLINE_ESCAPE_SEQ, rc, pos);
+                    break;
+                default:
+                    rc[pos++] = d;
+            }
+        }
+        return new AsciiBuffer(rc);
+    }
+
+    private static int put(Buffer value, byte[] buffer, int pos) {
+        System.arraycopy(value.data, value.offset, buffer, pos, value.length);
+        return pos + value.length;
     }
 
     public static Map<AsciiBuffer, AsciiBuffer> encodeHeaders(Map<String, String> headers) {
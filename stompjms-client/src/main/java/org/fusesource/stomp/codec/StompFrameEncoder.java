@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Encodes frames by first computing the exact size of the header block and
+ * then filling it into a byte array in a single pass.
+ * </p>
+ * <p>
+ * Frames with a body always get a content-length header computed from the
+ * actual body so that the receiver can read the body in bulk instead of
+ * scanning it for the NUL terminator.  Any content-length header held by the
+ * frame is not encoded since it may be stale.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class StompFrameEncoder {
+
+    private static final byte[] CONTENT_LENGTH_PREFIX = ascii("content-length:");
+
+    private static byte[] ascii(String value) {
+        return new AsciiBuffer(value).toByteArray();
+    }
+
+    /**
+     * @return the number of bytes the action, header lines and the blank line
+     * which ends the header block use when encoded.
+     */
+    public static int headerSize(StompFrame frame) {
+        int rc = frame.action().length + 1;
+        HeaderIndex index = frame.headerIndex;
+        if( index!=null ) {
+            rc += index.encodedSize(CONTENT_LENGTH);
+        } else {
+            HeaderTable headers = frame.headers;
+            for (int i = 0, size = headers.size(); i < size; i++) {
+                AsciiBuffer key = headers.key(i);
+                if( !isContentLength(key) ) {
+                    rc += key.length + headers.value(i).length + 2;
+                }
+            }
+        }
+        int contentLength = frame.contentLength();
+        if( contentLength > 0 ) {
+            rc += CONTENT_LENGTH_PREFIX.length + digits(contentLength) + 1;
+        }
+        return rc + 1;
+    }
+
+    /**
+     * Fills the header block into the buffer.  The buffer must have at least
+     * {@link #headerSize(StompFrame)} bytes available at the supplied position.
+     *
+     * @return the position after the header block.
+     */
+    public static int encodeHeaders(StompFrame frame, byte[] buffer, int pos) {
+        pos = put(frame.action(), buffer, pos);
+        buffer[pos++] = NEWLINE_BYTE;
+        HeaderIndex index = frame.headerIndex;
+        if( index!=null ) {
+            pos = index.encode(buffer, pos, CONTENT_LENGTH);
+        } else {
+            HeaderTable headers = frame.headers;
+            for (int i = 0, size = headers.size(); i < size; i++) {
+                AsciiBuffer key = headers.key(i);
+                if( !isContentLength(key) ) {
+                    pos = putHeader(key, headers.value(i), buffer, pos);
+                }
+            }
+        }
+        int contentLength = frame.contentLength();
+        if( contentLength > 0 ) {
+            System.arraycopy(CONTENT_LENGTH_PREFIX, 0, buffer, pos, CONTENT_LENGTH_PREFIX.length);
+            pos += CONTENT_LENGTH_PREFIX.length;
+            pos = putInt(contentLength, buffer, pos);
+            buffer[pos++] = NEWLINE_BYTE;
+        }
+        buffer[pos++] = NEWLINE_BYTE;
+        return pos;
+    }
+
+    public static Buffer toBuffer(StompFrame frame, boolean includeBody) {
+        int headerSize = frame.headerSize();
+        Buffer content = frame.content();
+        byte[] data = new byte[includeBody ? headerSize + content.length + 2 : headerSize];
+        encodeHeaders(frame, data, 0);
+        if (includeBody) {
+            System.arraycopy(content.data, content.offset, data, headerSize, content.length);
+            data[data.length - 2] = NULL_BYTE;
+            data[data.length - 1] = NEWLINE_BYTE;
+        }
+        return new Buffer(data);
+    }
+
+    public static void write(StompFrame frame, DataOutput out, boolean includeBody) throws IOException {
+        byte[] headers = new byte[frame.headerSize()];
+        encodeHeaders(frame, headers, 0);
+        out.write(headers);
+        if (includeBody) {
+            Buffer content = frame.content();
+            out.write(content.data, content.offset, content.length);
+            out.writeByte(NULL_BYTE);
+            out.writeByte(NEWLINE_BYTE);
+        }
+    }
+
+    static boolean isContentLength(AsciiBuffer key) {
+        return key == CONTENT_LENGTH || CONTENT_LENGTH.equals(key);
+    }
+
+    private static int putHeader(AsciiBuffer key, AsciiBuffer value, byte[] buffer, int pos) {
+        pos = put(key, buffer, pos);
+        buffer[pos++] = COLON_BYTE;
+        pos = put(value, buffer, pos);
+        buffer[pos++] = NEWLINE_BYTE;
+        return pos;
+    }
+
+    private static int put(Buffer value, byte[] buffer, int pos) {
+        System.arraycopy(value.data, value.offset, buffer, pos, value.length);
+        return pos + value.length;
+    }
+
+    static int digits(int value) {
+        int rc = 1;
+        while (value >= 10) {
+            value /= 10;
+            rc++;
+        }
+        return rc;
+    }
+
+    static int putInt(int value, byte[] buffer, int pos) {
+        int end = pos + digits(value);
+        int i = end;
+        do {
+            buffer[--i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        return end;
+    }
+
+}
@@ -14,11 +14,11 @@ import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtdispatch.transport.AbstractProtocolCodec;
 import org.fusesource.hawtdispatch.util.BufferPools;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.net.ProtocolException;
 
-import static org.fusesource.stomp.client.Constants.COLON_BYTE;
-import static org.fusesource.stomp.client.Constants.CONTENT_LENGTH;
+import static org.fusesource.stomp.client.Constants.*;
 
 /**
  * <p>
@@ -30,20 +30,150 @@ public class StompProtocolCodec extends AbstractProtocolCodec {
 
     private static final BufferPools BUFFER_POOLS = new BufferPools();
 
+    /**
+     * Offer this to the transport to send a heart-beat, it's encoded as a
+     * single EOL.
+     */
+    public static final Object KEEP_ALIVE = new Object() {
+        @Override
+        public String toString() {
+            return "KEEP_ALIVE";
+        }
+    };
+
+    private static final InternTable COMMANDS = new InternTable();
+    static final InternTable HEADER_NAMES = new InternTable();
+    private static final int CONTENT_LENGTH_ID;
+
+    static {
+        for (AsciiBuffer command : new AsciiBuffer[]{
+                CONNECT, SEND, DISCONNECT, SUBSCRIBE, UNSUBSCRIBE, MESSAGE, BEGIN, COMMIT, ABORT, ACK,
+                CONNECTED, ERROR, RECEIPT}) {
+            COMMANDS.register(command);
+        }
+        CONTENT_LENGTH_ID = HEADER_NAMES.register(CONTENT_LENGTH);
+        for (AsciiBuffer name : new AsciiBuffer[]{
+                RECEIPT_REQUESTED, TRANSACTION, CONTENT_TYPE, CONTENT_ENCODING, TRANSFORMATION, TRANSFORMATION_ERROR,
+                AMQ_MESSAGE_TYPE, RECEIPT_ID, PERSISTENT, MESSAGE_HEADER, MESSAGE_ID, CORRELATION_ID,
+                EXPIRATION_TIME, REPLY_TO, PRIORITY, REDELIVERED, TIMESTAMP, TYPE, SUBSCRIPTION, USERID,
+                PROPERTIES, ACK_MODE, ID, SELECTOR, BROWSER, DESTINATION, LOGIN, PASSCODE, CLIENT_ID,
+                REQUEST_ID, SESSION, RESPONSE_ID, ACCEPT_VERSION, HEART_BEAT, HOST, HOST_ID, SERVER, CREDIT,
+                JMSX_DELIVERY_COUNT}) {
+            HEADER_NAMES.register(name);
+        }
+        String names = System.getProperty("stompjms.codec.header_names");
+        if (names != null) {
+            for (String name : names.split(",")) {
+                if (name.trim().length() > 0) {
+                    registerHeaderName(name.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a header name (typically a frequently used message property name)
+     * so that the decoder shares a single AsciiBuffer instance for it across all
+     * decoded frames.  Names can also be registered using a comma separated list
+     * in the "stompjms.codec.header_names" system property.
+     *
+     * @return the shared instance for the name.
+     */
+    public static AsciiBuffer registerHeaderName(String name) {
+        return HEADER_NAMES.get(HEADER_NAMES.register(StompFrame.encodeHeader(name)));
+    }
+
     private static final int max_command_length = 20;
     public int max_header_length = 1024 * 10;
     public int max_headers = 1000;
     public int max_data_length = 1024 * 1024 * 100;
     public boolean trim = false;
 
+    /**
+     * Bodies with a content-length larger than this many bytes are copied
+     * into a memory mapped temp file as they arrive instead of being
+     * collected in the read buffer, so the heap used per connection stays
+     * bounded by the read buffer size.  The frame is still only passed on
+     * once its whole body has arrived, it's not delivered in chunks, read
+     * the body with {@link StompFrame#contentStream()} so it's not copied
+     * back onto the heap.  Set to -1 to disable spilling.
+     */
+    public int spill_threshold = -1;
+
+    /**
+     * The directory the spill files are created in, defaults to the
+     * "java.io.tmpdir" directory when null.
+     */
+    public File spill_directory;
+
+    /**
+     * When set, decoded frames are taken from this pool and can be handed
+     * back with {@link StompFrame#release()}.
+     */
+    public FramePool frame_pool;
+
+    /**
+     * When true, bodies marked with a "content-encoding:deflate" header
+     * are inflated as the frames are decoded.  A body which does not
+     * inflate, or which was spilled to a file, is passed on as received
+     * and keeps its content-encoding header.
+     */
+    public boolean inflate_bodies = false;
+
     public StompProtocolCodec() {
         this.bufferPools = BUFFER_POOLS;
     }
 
+    @Override
+    public Object read() throws IOException {
+        Object rc = super.read();
+        if( rc!=null && inflate_bodies ) {
+            StompFrame frame = (StompFrame) rc;
+            if( frame.contentLength() > 0 && frame.mappedContent()==null ) {
+                try {
+                    FrameCompression.inflate(frame, max_data_length);
+                } catch (ProtocolException e) {
+                    // only this frame is bad, the stream is still in sync.
+                }
+            }
+        }
+        return rc;
+    }
+
     @Override
     protected void encode(Object value) throws IOException {
+        if( value == KEEP_ALIVE ) {
+            nextWriteBuffer.write(NEWLINE_BYTE);
+            return;
+        }
         StompFrame frame = (StompFrame) value;
-        frame.write(nextWriteBuffer);
+        int headerSize = frame.headerSize();
+        MappedContent mapped = frame.mappedContent();
+        Buffer content = mapped==null ? frame.content() : null;
+        int pos = nextWriteBuffer.position();
+        if( content!=null && pos + headerSize + content.length + 2 <= nextWriteBuffer.getData().length ) {
+            // The whole frame fits, so fill it in without any per field writes.
+            nextWriteBuffer.skip(headerSize + content.length + 2);
+            byte[] data = nextWriteBuffer.getData();
+            pos = StompFrameEncoder.encodeHeaders(frame, data, pos);
+            System.arraycopy(content.data, content.offset, data, pos, content.length);
+            pos += content.length;
+            data[pos] = NULL_BYTE;
+            data[pos + 1] = NEWLINE_BYTE;
+        } else {
+            nextWriteBuffer.skip(headerSize);
+            StompFrameEncoder.encodeHeaders(frame, nextWriteBuffer.getData(), pos);
+            // Large bodies get handed to the transport as a separate buffer
+            // which goes out in a gathering write instead of being copied
+            // into a grown write buffer.
+            if( mapped!=null ) {
+                writeDirect(mapped.toByteBuffer());
+            } else if( content.length > 0 ) {
+                writeDirect(content.toByteBuffer());
+            }
+            nextWriteBuffer.write(NULL_BYTE);
+            nextWriteBuffer.write(NEWLINE_BYTE);
+        }
     }
 
     @Override
@@ -53,15 +183,30 @@ public class StompProtocolCodec extends AbstractProtocolCodec {
 
     final Action read_action = new Action() {
         public Object apply() throws IOException {
-            Buffer line = readUntil((byte) '\n', max_command_length, "The maximum command length was exceeded");
-            if (line != null) {
-                Buffer action = line.moveTail(-1);
+            byte[] array = readBuffer.array();
+            int end = readBuffer.position();
+            int eol = DelimiterScanner.indexOf(array, readEnd, end, NEWLINE_BYTE);
+            readEnd = eol < 0 ? end : eol + 1;
+            if (readEnd - readStart > max_command_length) {
+                throw new ProtocolException("The maximum command length was exceeded");
+            }
+            if (eol >= 0) {
+                if (eol == readStart || (eol == readStart + 1 && array[readStart] == '\r')) {
+                    // An EOL between frames is a heart-beat, skip it.
+                    readStart = readEnd;
+                    return null;
+                }
+                Buffer action = new Buffer(array, readStart, eol - readStart);
+                readStart = readEnd;
                 if (trim) {
                     action = action.trim();
                 }
                 if (action.length() > 0) {
-                    StompFrame frame = new StompFrame(action.ascii());
-                    nextDecodeAction = read_headers(frame);
+                    AsciiBuffer command = COMMANDS.intern(action.data, action.offset, action.length);
+                    if (command == null) {
+                        command = action.ascii();
+                    }
+                    nextDecodeAction = read_headers(command);
                     return nextDecodeAction.apply();
                 }
             }
@@ -69,71 +214,109 @@ public class StompProtocolCodec extends AbstractProtocolCodec {
         }
     };
 
-    private Action read_headers(final StompFrame frame) {
-        final AsciiBuffer[] contentLengthValue = new AsciiBuffer[1];
-        final ArrayList<StompFrame.HeaderEntry> headers = new ArrayList<StompFrame.HeaderEntry>(10);
+    private Action read_headers(final AsciiBuffer action) {
+        final StompFrame frame = frame_pool!=null ? frame_pool.borrow(action) : new StompFrame(action, new HeaderIndex(HEADER_NAMES, 10));
+        final HeaderIndex headers = frame.headerIndex;
         return new Action() {
+
+            // readStart is not moved until the whole header block has been read
+            // so that the block stays together in one read buffer.  Header
+            // positions are recorded relative to it since the read buffer may
+            // get re-allocated while we wait for more data.
+            int lineStart = 0;
+            int contentLength = -1;
+
             public Object apply() throws IOException {
-                Buffer line = readUntil((byte) '\n', max_header_length, "The maximum header length was exceeded");
-                if (line != null) {
-                    line = line.moveTail(-1);
-                    if (line.length > 0) {
+                byte[] array = readBuffer.array();
+                int end = readBuffer.position();
+                while (true) {
+                    int lineOffset = readStart + lineStart;
+                    int eol = DelimiterScanner.indexOf(array, readEnd, end, NEWLINE_BYTE);
+                    if (eol < 0) {
+                        readEnd = end;
+                        if (max_header_length >= 0 && (readEnd - lineOffset) > max_header_length) {
+                            throw new ProtocolException("The maximum header length was exceeded");
+                        }
+                        return null;
+                    }
+                    readEnd = eol + 1;
+                    if (max_header_length >= 0 && (readEnd - lineOffset) > max_header_length) {
+                        throw new ProtocolException("The maximum header length was exceeded");
+                    }
 
+                    if (eol > lineOffset) {
                         if (max_headers != -1 && headers.size() > max_headers) {
                             throw new IOException("The maximum number of headers was exceeded");
                         }
-
-                        try {
-                            int seperatorIndex = line.indexOf(COLON_BYTE);
-                            if (seperatorIndex < 0) {
-                                throw new IOException("Header line missing seperator [" + line.ascii() + "]");
-                            }
-                            Buffer name = line.slice(0, seperatorIndex);
-                            if (trim) {
-                                name = name.trim();
-                            }
-
-                            Buffer value = line.slice(seperatorIndex + 1, line.length());
-                            if (trim) {
-                                value = value.trim();
-                            }
-                            StompFrame.HeaderEntry entry = new StompFrame.HeaderEntry(name.ascii(), value.ascii());
-                            if (entry.key.equals(CONTENT_LENGTH)) {
-                                contentLengthValue[0] = entry.value;
-                            }
-                            headers.add(entry);
-                        } catch (Exception e) {
-                            throw new IOException("Unable to parser header line [" + line + "]");
-                        }
-
+                        indexHeader(array, lineOffset, eol);
+                        lineStart = readEnd - readStart;
                     } else {
-                        frame.setHeaders(headers);
-                        AsciiBuffer contentLength = contentLengthValue[0];
-                        if (contentLength != null) {
+                        headers.bind(array, readStart);
+                        readStart = readEnd;
+                        if (contentLength >= 0) {
                             // Bless the client, he's telling us how much data to read in.
-                            int length = 0;
-                            try {
-                                length = Integer.parseInt(contentLength.toString());
-                            } catch (NumberFormatException e) {
-                                throw new IOException("Specified content-length is not a valid integer");
-                            }
-
-                            if (max_data_length != -1 && length > max_data_length) {
+                            if (max_data_length != -1 && contentLength > max_data_length) {
                                 throw new IOException("The maximum data length was exceeded");
                             }
-
-                            nextDecodeAction = read_binary_body(frame, length);
+                            if (spill_threshold >= 0 && contentLength > spill_threshold) {
+                                nextDecodeAction = read_spilled_body(frame, contentLength);
+                            } else {
+                                nextDecodeAction = read_binary_body(frame, contentLength);
+                            }
                         } else {
                             nextDecodeAction = read_text_body(frame);
                         }
                         return nextDecodeAction.apply();
                     }
                 }
-                return null;
+            }
+
+            private void indexHeader(byte[] array, int start, int end) throws IOException {
+                int seperator = DelimiterScanner.indexOf(array, start, end, COLON_BYTE);
+                if (seperator < 0) {
+                    throw new IOException("Unable to parser header line [" + new AsciiBuffer(array, start, end - start) + "]");
+                }
+                int keyStart = start;
+                int keyEnd = seperator;
+                int valueStart = seperator + 1;
+                int valueEnd = end;
+                if (trim) {
+                    while (keyStart < keyEnd && array[keyStart] <= ' ') keyStart++;
+                    while (keyEnd > keyStart && array[keyEnd - 1] <= ' ') keyEnd--;
+                    while (valueStart < valueEnd && array[valueStart] <= ' ') valueStart++;
+                    while (valueEnd > valueStart && array[valueEnd - 1] <= ' ') valueEnd--;
+                }
+                int keyId = HEADER_NAMES.lookup(array, keyStart, keyEnd - keyStart);
+                if (keyId < 0) {
+                    headers.add(keyStart - readStart, keyEnd - keyStart, valueStart - readStart, valueEnd - valueStart);
+                } else {
+                    if (keyId == CONTENT_LENGTH_ID) {
+                        contentLength = parseContentLength(array, valueStart, valueEnd);
+                    }
+                    headers.addInterned(keyId, keyEnd - keyStart, valueStart - readStart, valueEnd - valueStart);
+                }
             }
         };
     }
 
+    private static int parseContentLength(byte[] array, int start, int end) throws IOException {
+        if (start >= end || end - start > 10) {
+            throw new IOException("Specified content-length is not a valid integer");
+        }
+        long rc = 0;
+        for (int i = start; i < end; i++) {
+            int digit = array[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Specified content-length is not a valid integer");
+            }
+            rc = rc * 10 + digit;
+        }
+        if (rc > Integer.MAX_VALUE) {
+            throw new IOException("Specified content-length is not a valid integer");
+        }
+        return (int) rc;
+    }
+
     private Action read_binary_body(final StompFrame frame, final int contentLength) {
         return new Action() {
             public Object apply() throws IOException {
@@ -152,17 +335,60 @@ public class StompProtocolCodec extends AbstractProtocolCodec {
         };
     }
 
+    private Action read_spilled_body(final StompFrame frame, final int contentLength) throws IOException {
+        final MappedContent content = MappedContent.create(spill_directory, contentLength);
+        return new Action() {
+
+            int remaining = contentLength;
+
+            public Object apply() throws IOException {
+                // Move whatever has been read so far into the spill file so
+                // that the read buffer can be reused for the next read.
+                int available = readBuffer.position() - readStart;
+                if (remaining > 0) {
+                    int size = Math.min(remaining, available);
+                    content.put(readBuffer.array(), readStart, size);
+                    readStart += size;
+                    readEnd = readStart;
+                    remaining -= size;
+                    available -= size;
+                    if (remaining > 0) {
+                        return null;
+                    }
+                }
+                if (available == 0) {
+                    return null;
+                }
+                if (readBuffer.get(readStart) != 0) {
+                    throw new IOException("Expected null termintor after " + contentLength + " content bytes");
+                }
+                readStart++;
+                readEnd = readStart;
+                frame.content(content);
+                nextDecodeAction = read_action;
+                return frame;
+            }
+        };
+    }
+
     private Action read_text_body(final StompFrame frame) {
         return new Action() {
             public Object apply() throws IOException {
-                Buffer content = readUntil((byte) 0);
-                if (content != null) {
-                    nextDecodeAction = read_action;
-                    frame.content(content.moveTail(-1));
-                    return frame;
-                } else {
+                // readEnd tracks how far we have already scanned.
+                int end = readBuffer.position();
+                int nul = DelimiterScanner.indexOf(readBuffer.array(), readEnd, end, NULL_BYTE);
+                readEnd = nul < 0 ? end : nul;
+                if (max_data_length != -1 && readEnd - readStart > max_data_length) {
+                    throw new ProtocolException("The maximum data length was exceeded");
+                }
+                if (nul < 0) {
                     return null;
                 }
+                Buffer content = new Buffer(readBuffer.array(), readStart, nul - readStart);
+                readStart = readEnd = nul + 1;
+                nextDecodeAction = read_action;
+                frame.content(content);
+                return frame;
             }
         };
     }
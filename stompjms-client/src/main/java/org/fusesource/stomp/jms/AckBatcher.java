@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.client.Promise;
+import org.fusesource.stomp.codec.StompFrame;
+import org.fusesource.stomp.jms.message.StompJmsMessage;
+
+import jakarta.jms.JMSException;
+import jakarta.jms.Session;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Holds the acks of a consumer until a flush sends them.  With 'client'
+ * acks only the last message of the batch is acked, with
+ * 'client-individual' acks every message is.
+ * </p>
+ * <p>
+ * The message ids are copied since the frames of acked messages get
+ * recycled.  A flush sends the ACK frames under the batcher's lock so that
+ * the delay timer and the consumer's thread keep them in order, but it
+ * waits for the receipt outside of it, the timer runs on the channel's
+ * dispatch queue which has to deliver the receipt.
+ * </p>
+ * <p>
+ * The acks of a CLIENT_ACKNOWLEDGE consumer are held until acknowledge()
+ * flushes them, the limits and the timer don't apply to them.  Only the
+ * AUTO_ACKNOWLEDGE and CLIENT_ACKNOWLEDGE flushes ask for a receipt, the
+ * lazy modes never waited for their acks.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class AckBatcher {
+
+    private final StompJmsMessageConsumer consumer;
+    private final StompJmsAckBatch settings;
+    private final boolean individual;
+    final boolean held;
+    private final boolean receipts;
+
+    private final ArrayList<AsciiBuffer> pending = new ArrayList<AsciiBuffer>();
+    private int count;
+    private long bytes;
+    private boolean timerScheduled;
+
+    private final Task timer = new Task() {
+        @Override
+        public void run() {
+            synchronized (AckBatcher.this) {
+                timerScheduled = false;
+            }
+            try {
+                // the dispatch queue can't wait for the receipt it delivers.
+                flush(false);
+            } catch (JMSException e) {
+                consumer.session.connection.onException(e);
+            }
+        }
+    };
+
+    AckBatcher(StompJmsMessageConsumer consumer, StompJmsAckBatch settings, boolean individual) {
+        this.consumer = consumer;
+        this.settings = settings;
+        this.individual = individual;
+        int mode = consumer.session.acknowledgementMode;
+        this.held = mode==Session.CLIENT_ACKNOWLEDGE;
+        this.receipts = settings.receipts && (mode==Session.AUTO_ACKNOWLEDGE || mode==Session.CLIENT_ACKNOWLEDGE);
+    }
+
+    /**
+     * Adds the ack of a message to the batch, and flushes it if it's full
+     * and the acks are not held.
+     */
+    public void add(StompJmsMessage message) throws JMSException {
+        boolean full;
+        synchronized (this) {
+            AsciiBuffer id = message.getMessageID().deepCopy().ascii();
+            if( !individual ) {
+                pending.clear();
+            }
+            pending.add(id);
+            if( held ) {
+                return;
+            }
+            count++;
+            bytes += message.getFrame().size();
+            full = (settings.maxMessages > 0 && count >= settings.maxMessages)
+                    || (settings.maxBytes > 0 && bytes >= settings.maxBytes);
+            if( !full && settings.maxDelay > 0 && !timerScheduled ) {
+                timerScheduled = true;
+                consumer.session.channel.queue.executeAfter(settings.maxDelay, TimeUnit.MILLISECONDS, timer);
+            }
+        }
+        if( full ) {
+            flush(true);
+        }
+    }
+
+    /**
+     * Sends the acks of the batch.
+     *
+     * @param await waits for the receipt, if receipts are enabled.
+     */
+    public void flush(boolean await) throws JMSException {
+        Promise<StompFrame> receipt = null;
+        synchronized (this) {
+            if( pending.isEmpty() ) {
+                return;
+            }
+            StompChannel channel = consumer.session.channel;
+            if( channel == null ) {
+                pending.clear();
+                throw new JMSException("Consumer closed");
+            }
+            if( receipts ) {
+                receipt = new Promise<StompFrame>();
+            }
+            int last = pending.size() - 1;
+            try {
+                for (int i = 0; i <= last; i++) {
+                    channel.ackMessage(consumer.id, pending.get(i), null, i == last ? receipt : null);
+                }
+            } finally {
+                pending.clear();
+                count = 0;
+                bytes = 0;
+            }
+        }
+        if( await && receipt!=null ) {
+            try {
+                receipt.await();
+            } catch (Exception e) {
+                throw StompJmsExceptionSupport.create(e);
+            }
+        }
+    }
+}
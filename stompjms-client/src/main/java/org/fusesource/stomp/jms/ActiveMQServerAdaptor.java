@@ -10,6 +10,8 @@
 package org.fusesource.stomp.jms;
 
 import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.stomp.jms.message.StompJmsMessage;
+import org.fusesource.stomp.jms.message.StompJmsTextMessage;
 
 import jakarta.jms.JMSException;
 import java.util.Map;
@@ -23,6 +25,7 @@ public class ActiveMQServerAdaptor extends StompServerAdaptor {
 
     private static final AsciiBuffer SUBSCRIPTION_NAME=new AsciiBuffer("activemq.subscriptionName");
     private static final AsciiBuffer NO_LOCAL=new AsciiBuffer("activemq.noLocal");
+    private static final AsciiBuffer TEXT_TYPE=new AsciiBuffer("text");
 
     @Override
     public boolean matchesServerAndVersion(String server) {
@@ -41,4 +44,13 @@ public class ActiveMQServerAdaptor extends StompServerAdaptor {
             headerMap.put(SUBSCRIPTION_NAME, headerMap.get(ID));
         }
     }
+
+    @Override
+    public void addSendHeaders(Map<AsciiBuffer, AsciiBuffer> headerMap, StompJmsMessage message) throws JMSException {
+        // ActiveMQ creates a BytesMessage for any frame with a content-length
+        // header unless told otherwise.  A deflated body has to stay binary.
+        if (message instanceof StompJmsTextMessage && !headerMap.containsKey(CONTENT_ENCODING)) {
+            headerMap.put(AMQ_MESSAGE_TYPE, TEXT_TYPE);
+        }
+    }
 }
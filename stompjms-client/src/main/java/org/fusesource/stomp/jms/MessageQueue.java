@@ -15,8 +15,19 @@ import org.fusesource.stomp.jms.message.StompJmsMessage;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-
+/**
+ * <p>
+ * Holds the messages dispatched to a consumer until they are received.
+ * Uses a lock instead of object monitors so that consumers blocked in
+ * receive() on virtual threads don't pin their carrier thread.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
 public class MessageQueue {
 
     protected static class QueueEntry {
@@ -33,6 +44,8 @@ public class MessageQueue {
     protected boolean closed;
     protected boolean running;
     protected long size;
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition changed = lock.newCondition();
 
     public MessageQueue(long maxSize) {
         this.maxSize = maxSize;
@@ -40,27 +53,34 @@ public class MessageQueue {
 
     public void enqueue(StompJmsMessage message) {
         QueueEntry entry = new QueueEntry(message,  message.getFrame().size());
-        synchronized (this) {
+        lock.lock();
+        try {
             list.addLast(entry);
             size += entry.size;
-            this.notify();
+            changed.signal();
+        } finally {
+            lock.unlock();
         }
     }
 
     public boolean isEmpty() {
-        synchronized (this) {
+        lock.lock();
+        try {
             return list.isEmpty();
+        } finally {
+            lock.unlock();
         }
     }
 
     public StompJmsMessage dequeue(long timeout) throws InterruptedException {
-        synchronized (this) {
+        lock.lock();
+        try {
             // Wait until the consumer is ready to deliver messages.
             while (timeout != 0 && !closed && (list.isEmpty() || !running)) {
                 if (timeout == -1) {
-                    this.wait();
+                    changed.await();
                 } else {
-                    this.wait(timeout);
+                    changed.await(timeout, TimeUnit.MILLISECONDS);
                     break;
                 }
             }
@@ -71,6 +91,8 @@ public class MessageQueue {
             size -= entry.size;
             removed(entry);
             return entry.message;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -78,7 +100,8 @@ public class MessageQueue {
      * @see org.apache.activemq.MessageDispatchChannelI#dequeueNoWait()
      */
     public StompJmsMessage dequeueNoWait() {
-        synchronized (this) {
+        lock.lock();
+        try {
             if (closed || !running || list.isEmpty()) {
                 return null;
             }
@@ -86,6 +109,8 @@ public class MessageQueue {
             size -= entry.size;
             removed(entry);
             return entry.message;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -93,16 +118,22 @@ public class MessageQueue {
     }
 
     public void start() {
-        synchronized (this) {
+        lock.lock();
+        try {
             running = true;
-            this.notifyAll();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void stop() {
-        synchronized (this) {
+        lock.lock();
+        try {
             running = false;
-            this.notifyAll();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -111,12 +142,15 @@ public class MessageQueue {
     }
 
     public void close() {
-        synchronized (this) {
+        lock.lock();
+        try {
             if (!closed) {
                 running = false;
                 closed = true;
             }
-            this.notifyAll();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -125,19 +159,26 @@ public class MessageQueue {
     }
 
     public int size() {
-        synchronized (this) {
+        lock.lock();
+        try {
             return list.size();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void clear() {
-        synchronized (this) {
+        lock.lock();
+        try {
             list.clear();
+        } finally {
+            lock.unlock();
         }
     }
 
     public List<StompJmsMessage> removeAll() {
-        synchronized (this) {
+        lock.lock();
+        try {
             ArrayList<StompJmsMessage> rc = new ArrayList<StompJmsMessage>(list.size());
             for (QueueEntry entry : list) {
                 rc.add(entry.message);
@@ -145,19 +186,27 @@ public class MessageQueue {
             list.clear();
             size = 0;
             return rc;
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public String toString() {
-        synchronized (this) {
+        lock.lock();
+        try {
             return list.toString();
+        } finally {
+            lock.unlock();
         }
     }
 
     public boolean isFull() {
-        synchronized (this) {
+        lock.lock();
+        try {
             return this.size >= maxSize;
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+
+package org.fusesource.stomp.jms;
+
+import jakarta.jms.*;
+import jakarta.jms.IllegalStateException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * A borrowed handle on a pooled connection.  Several handles can share
+ * the connection, so closing one returns its sessions to the pool and
+ * leaves the connection open.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PooledStompJmsConnection implements Connection, QueueConnection, TopicConnection {
+
+    private final StompJmsConnectionPool pool;
+    private final PooledStompJmsConnectionFactory factory;
+    private final CopyOnWriteArrayList<PooledStompJmsSession> sessions = new CopyOnWriteArrayList<PooledStompJmsSession>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    volatile ExceptionListener exceptionListener;
+
+    PooledStompJmsConnection(PooledStompJmsConnectionFactory factory, StompJmsConnectionPool pool) {
+        this.factory = factory;
+        this.pool = pool;
+        pool.handles.add(this);
+    }
+
+    /**
+     * @return the pooled connection.
+     */
+    public StompJmsConnection getConnection() throws JMSException {
+        checkClosed();
+        return pool.connection;
+    }
+
+    public Session createSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        checkClosed();
+        PooledStompJmsSession rc = new PooledStompJmsSession(this, pool.borrowSession(transacted, acknowledgeMode));
+        sessions.add(rc);
+        return rc;
+    }
+
+    public Session createSession(int sessionMode) throws JMSException {
+        return createSession(sessionMode == Session.SESSION_TRANSACTED, sessionMode);
+    }
+
+    public Session createSession() throws JMSException {
+        return createSession(false, Session.AUTO_ACKNOWLEDGE);
+    }
+
+    public QueueSession createQueueSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        return (QueueSession) createSession(transacted, acknowledgeMode);
+    }
+
+    public TopicSession createTopicSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        return (TopicSession) createSession(transacted, acknowledgeMode);
+    }
+
+    void returnSession(PooledStompJmsSession session, StompJmsConnectionPool.SessionHolder holder, boolean reusable) {
+        sessions.remove(session);
+        pool.returnSession(holder, reusable);
+    }
+
+    public String getClientID() throws JMSException {
+        checkClosed();
+        return pool.connection.getClientID();
+    }
+
+    /**
+     * The client id of a pooled connection can't be changed since other
+     * borrowers share it, set it on the connection factory instead.
+     */
+    public void setClientID(String clientID) throws JMSException {
+        checkClosed();
+        throw new IllegalStateException("The client id of a pooled connection can't be changed");
+    }
+
+    public ConnectionMetaData getMetaData() throws JMSException {
+        checkClosed();
+        return pool.connection.getMetaData();
+    }
+
+    public ExceptionListener getExceptionListener() throws JMSException {
+        checkClosed();
+        return exceptionListener;
+    }
+
+    public void setExceptionListener(ExceptionListener listener) throws JMSException {
+        checkClosed();
+        this.exceptionListener = listener;
+    }
+
+    public void start() throws JMSException {
+        checkClosed();
+        pool.connection.start();
+    }
+
+    /**
+     * Does not stop the delivery of messages since other borrowers share
+     * the connection.
+     */
+    public void stop() throws JMSException {
+        checkClosed();
+    }
+
+    /**
+     * Returns the sessions created through this handle, and the handle
+     * itself, to the pool.
+     */
+    public void close() throws JMSException {
+        if( closed.compareAndSet(false, true) ) {
+            for (PooledStompJmsSession session : sessions) {
+                session.close();
+            }
+            pool.handles.remove(this);
+            factory.release(pool);
+        }
+    }
+
+    public ConnectionConsumer createConnectionConsumer(Destination destination, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return pool.connection.createConnectionConsumer(destination, messageSelector, sessionPool, maxMessages);
+    }
+
+    public ConnectionConsumer createConnectionConsumer(Queue queue, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return pool.connection.createConnectionConsumer(queue, messageSelector, sessionPool, maxMessages);
+    }
+
+    public ConnectionConsumer createConnectionConsumer(Topic topic, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return pool.connection.createConnectionConsumer(topic, messageSelector, sessionPool, maxMessages);
+    }
+
+    public ConnectionConsumer createDurableConnectionConsumer(Topic topic, String subscriptionName, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return pool.connection.createDurableConnectionConsumer(topic, subscriptionName, messageSelector, sessionPool, maxMessages);
+    }
+
+    public ConnectionConsumer createSharedConnectionConsumer(Topic topic, String subscriptionName, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return pool.connection.createSharedConnectionConsumer(topic, subscriptionName, messageSelector, sessionPool, maxMessages);
+    }
+
+    public ConnectionConsumer createSharedDurableConnectionConsumer(Topic topic, String subscriptionName, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        checkClosed();
+        return pool.connection.createSharedDurableConnectionConsumer(topic, subscriptionName, messageSelector, sessionPool, maxMessages);
+    }
+
+    protected void checkClosed() throws IllegalStateException {
+        if( closed.get() ) {
+            throw new IllegalStateException("The Connection is closed");
+        }
+    }
+}
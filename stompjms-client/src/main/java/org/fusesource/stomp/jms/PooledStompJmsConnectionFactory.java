@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+
+package org.fusesource.stomp.jms;
+
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.client.Stomp;
+
+import jakarta.jms.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A ConnectionFactory which keeps the connections it creates, along with
+ * their sessions and producers, so that the create connection, session and
+ * producer, send, close pattern frameworks use does not pay for a broker
+ * handshake on every send.  Closing a connection, session or producer it
+ * handed out returns it to the pool.
+ * </p>
+ * <p>
+ * Up to maxConnections connections are kept per user name and password,
+ * a borrower gets the least shared one.  Connections and sessions which
+ * have been idle for longer than the idleTimeout are closed.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PooledStompJmsConnectionFactory implements ConnectionFactory, QueueConnectionFactory, TopicConnectionFactory {
+
+    private StompJmsConnectionFactory connectionFactory;
+    private int maxConnections = 1;
+    private int maxSessionsPerConnection = 500;
+    private long blockIfSessionPoolIsFullTimeout = -1;
+    private long idleTimeout = 30 * 1000;
+
+    private final HashMap<List<String>, ArrayList<StompJmsConnectionPool>> pools = new HashMap<List<String>, ArrayList<StompJmsConnectionPool>>();
+    private boolean evicting;
+    private boolean closed;
+
+    public PooledStompJmsConnectionFactory() {
+        this(new StompJmsConnectionFactory());
+    }
+
+    public PooledStompJmsConnectionFactory(StompJmsConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    public Connection createConnection() throws JMSException {
+        return createConnection(connectionFactory.getUsername(), connectionFactory.getPassword());
+    }
+
+    public Connection createConnection(String userName, String password) throws JMSException {
+        return new PooledStompJmsConnection(this, borrow(userName, password));
+    }
+
+    public QueueConnection createQueueConnection() throws JMSException {
+        return (QueueConnection) createConnection();
+    }
+
+    public QueueConnection createQueueConnection(String userName, String password) throws JMSException {
+        return (QueueConnection) createConnection(userName, password);
+    }
+
+    public TopicConnection createTopicConnection() throws JMSException {
+        return (TopicConnection) createConnection();
+    }
+
+    public TopicConnection createTopicConnection(String userName, String password) throws JMSException {
+        return (TopicConnection) createConnection(userName, password);
+    }
+
+    private StompJmsConnectionPool borrow(String userName, String password) throws JMSException {
+        ArrayList<StompJmsConnectionPool> failed = new ArrayList<StompJmsConnectionPool>();
+        try {
+            synchronized (this) {
+                if( closed ) {
+                    throw new jakarta.jms.IllegalStateException("The pooled connection factory is closed");
+                }
+                List<String> key = Arrays.asList(userName, password);
+                ArrayList<StompJmsConnectionPool> list = pools.get(key);
+                if( list == null ) {
+                    list = new ArrayList<StompJmsConnectionPool>();
+                    pools.put(key, list);
+                }
+
+                // validate the pooled connections before handing one out.
+                StompJmsConnectionPool rc = null;
+                for (Iterator<StompJmsConnectionPool> i = list.iterator(); i.hasNext(); ) {
+                    StompJmsConnectionPool pool = i.next();
+                    if( !pool.isValid() ) {
+                        i.remove();
+                        if( pool.references == 0 ) {
+                            failed.add(pool);
+                        }
+                    } else if( rc == null || pool.references < rc.references ) {
+                        rc = pool;
+                    }
+                }
+                if( rc == null || (rc.references > 0 && list.size() < maxConnections) ) {
+                    StompJmsConnection connection = (StompJmsConnection) connectionFactory.createConnection(userName, password);
+                    rc = new StompJmsConnectionPool(connection, maxSessionsPerConnection, blockIfSessionPoolIsFullTimeout);
+                    list.add(rc);
+                    scheduleEviction();
+                }
+                rc.references++;
+                rc.lastUsed = System.currentTimeMillis();
+                return rc;
+            }
+        } finally {
+            for (StompJmsConnectionPool pool : failed) {
+                pool.close();
+            }
+        }
+    }
+
+    void release(StompJmsConnectionPool pool) {
+        boolean close;
+        synchronized (this) {
+            pool.references--;
+            pool.lastUsed = System.currentTimeMillis();
+            close = pool.references == 0 && (closed || !pool.isValid());
+        }
+        if( close ) {
+            pool.close();
+        }
+    }
+
+    private void scheduleEviction() {
+        if( !evicting && idleTimeout > 0 ) {
+            evicting = true;
+            Dispatch.getGlobalQueue().executeAfter(idleTimeout, TimeUnit.MILLISECONDS, new Task() {
+                @Override
+                public void run() {
+                    // closing waits on the broker, so don't do it on a dispatch thread.
+                    Stomp.getBlockingThreadPool().execute(new Runnable() {
+                        public void run() {
+                            synchronized (PooledStompJmsConnectionFactory.this) {
+                                evicting = false;
+                            }
+                            evict(System.currentTimeMillis() - idleTimeout);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes the connections and sessions which have been idle since
+     * before the given time.
+     */
+    void evict(long idleSince) {
+        ArrayList<StompJmsConnectionPool.SessionHolder> sessions = new ArrayList<StompJmsConnectionPool.SessionHolder>();
+        ArrayList<StompJmsConnectionPool> connections = new ArrayList<StompJmsConnectionPool>();
+        synchronized (this) {
+            boolean pooled = false;
+            for (ArrayList<StompJmsConnectionPool> list : pools.values()) {
+                for (Iterator<StompJmsConnectionPool> i = list.iterator(); i.hasNext(); ) {
+                    StompJmsConnectionPool pool = i.next();
+                    if( pool.references == 0 && (pool.lastUsed < idleSince || !pool.isValid()) ) {
+                        i.remove();
+                        connections.add(pool);
+                    } else {
+                        pool.evictSessions(idleSince, sessions);
+                        pooled = true;
+                    }
+                }
+            }
+            if( pooled && !closed ) {
+                scheduleEviction();
+            }
+        }
+        StompJmsConnectionPool.close(sessions);
+        for (StompJmsConnectionPool pool : connections) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Closes the pooled connections.  The ones still borrowed are closed
+     * once they are returned.
+     */
+    public void stop() {
+        ArrayList<StompJmsConnectionPool> connections = new ArrayList<StompJmsConnectionPool>();
+        synchronized (this) {
+            closed = true;
+            for (ArrayList<StompJmsConnectionPool> list : pools.values()) {
+                for (StompJmsConnectionPool pool : list) {
+                    if( pool.references == 0 ) {
+                        connections.add(pool);
+                    }
+                }
+            }
+            pools.clear();
+        }
+        for (StompJmsConnectionPool pool : connections) {
+            pool.close();
+        }
+    }
+
+    /**
+     * @return how many connections are pooled at the moment.
+     */
+    public synchronized int getConnectionCount() {
+        int rc = 0;
+        for (ArrayList<StompJmsConnectionPool> list : pools.values()) {
+            rc += list.size();
+        }
+        return rc;
+    }
+
+    public StompJmsConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    public void setConnectionFactory(StompJmsConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections how many connections to keep per user name and
+     * password.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxSessionsPerConnection() {
+        return maxSessionsPerConnection;
+    }
+
+    /**
+     * @param maxSessionsPerConnection how many sessions, borrowed or idle,
+     * a pooled connection may have.  0 or less for no limit.
+     */
+    public void setMaxSessionsPerConnection(int maxSessionsPerConnection) {
+        this.maxSessionsPerConnection = maxSessionsPerConnection;
+    }
+
+    public long getBlockIfSessionPoolIsFullTimeout() {
+        return blockIfSessionPoolIsFullTimeout;
+    }
+
+    /**
+     * @param blockIfSessionPoolIsFullTimeout how long in ms to wait for a
+     * session once a connection has all the sessions it may have, -1 to
+     * wait forever.
+     */
+    public void setBlockIfSessionPoolIsFullTimeout(long blockIfSessionPoolIsFullTimeout) {
+        this.blockIfSessionPoolIsFullTimeout = blockIfSessionPoolIsFullTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout how long in ms an unused connection or session is
+     * kept, 0 or less to keep them until the pool is stopped.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /*
+     * New Methods from switching to jakarta.jms.
+     */
+    public JMSContext createContext() {
+        throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
+    }
+
+    public JMSContext createContext(int i) {
+        throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
+    }
+
+    public JMSContext createContext(String s1, String s2) {
+        throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
+    }
+
+    public JMSContext createContext(String s1, String s2, int i) {
+        throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+
+package org.fusesource.stomp.jms;
+
+import jakarta.jms.*;
+import jakarta.jms.IllegalStateException;
+
+/**
+ * <p>
+ * A producer of a pooled session.  It only keeps its own destination and
+ * send settings and sends through the anonymous producer the pooled
+ * session caches, so creating and closing one costs nothing.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PooledStompJmsMessageProducer implements MessageProducer, QueueSender, TopicPublisher {
+
+    private final PooledStompJmsSession session;
+    private final Destination destination;
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private int priority = Message.DEFAULT_PRIORITY;
+    private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+    private boolean disableMessageId;
+    private boolean disableTimestamp;
+    private boolean closed;
+
+    PooledStompJmsMessageProducer(PooledStompJmsSession session, Destination destination) {
+        this.session = session;
+        this.destination = destination;
+    }
+
+    public void send(Message message) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message message) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        producer(destination).send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Queue queue, Message message) throws JMSException {
+        send((Destination) queue, message);
+    }
+
+    public void send(Queue queue, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send((Destination) queue, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void publish(Message message) throws JMSException {
+        send(message);
+    }
+
+    public void publish(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send(message, deliveryMode, priority, timeToLive);
+    }
+
+    public void publish(Topic topic, Message message) throws JMSException {
+        send(topic, message);
+    }
+
+    public void publish(Topic topic, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send(topic, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+    public void send(Message message, int deliveryMode, int priority, long timeToLive, CompletionListener completionListener) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+    public void send(Destination destination, Message message, CompletionListener completionListener) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive, CompletionListener completionListener) throws JMSException {
+        producer(destination).send(destination, message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+    /**
+     * @return the shared producer, set up with this producer's settings.
+     */
+    private StompJmsMessageProducer producer(Destination destination) throws JMSException {
+        checkClosed();
+        if( destination == null ) {
+            throw new InvalidDestinationException("Don't understand null destinations");
+        }
+        if( this.destination != null && !destination.equals(this.destination) ) {
+            throw new UnsupportedOperationException("This producer can only send messages to: " + this.destination);
+        }
+        StompJmsMessageProducer rc = session.producer();
+        rc.setDisableMessageID(disableMessageId);
+        rc.setDisableMessageTimestamp(disableTimestamp);
+        return rc;
+    }
+
+    public Destination getDestination() throws JMSException {
+        checkClosed();
+        return destination;
+    }
+
+    public Queue getQueue() throws JMSException {
+        return (Queue) getDestination();
+    }
+
+    public Topic getTopic() throws JMSException {
+        return (Topic) getDestination();
+    }
+
+    public int getDeliveryMode() throws JMSException {
+        checkClosed();
+        return deliveryMode;
+    }
+
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        checkClosed();
+        this.deliveryMode = deliveryMode;
+    }
+
+    public int getPriority() throws JMSException {
+        checkClosed();
+        return priority;
+    }
+
+    public void setPriority(int priority) throws JMSException {
+        checkClosed();
+        this.priority = priority;
+    }
+
+    public long getTimeToLive() throws JMSException {
+        checkClosed();
+        return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        checkClosed();
+        this.timeToLive = timeToLive;
+    }
+
+    public boolean getDisableMessageID() throws JMSException {
+        checkClosed();
+        return disableMessageId;
+    }
+
+    public void setDisableMessageID(boolean value) throws JMSException {
+        checkClosed();
+        this.disableMessageId = value;
+    }
+
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        checkClosed();
+        return disableTimestamp;
+    }
+
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        checkClosed();
+        this.disableTimestamp = value;
+    }
+
+    public long getDeliveryDelay() throws JMSException {
+        checkClosed();
+        return session.producer().getDeliveryDelay();
+    }
+
+    public void setDeliveryDelay(long deliveryDelay) throws JMSException {
+        checkClosed();
+        session.producer().setDeliveryDelay(deliveryDelay);
+    }
+
+    /**
+     * Leaves the shared producer of the session open.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    protected void checkClosed() throws IllegalStateException {
+        if( closed || session.isClosed() ) {
+            throw new IllegalStateException("The MessageProducer is closed");
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+
+package org.fusesource.stomp.jms;
+
+import jakarta.jms.*;
+import jakarta.jms.IllegalStateException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * A borrowed pooled session.  Closing it closes the consumers and
+ * browsers created through it, rolls back an open transaction and returns
+ * the session to the pool.  Its producers all share one anonymous producer
+ * of the pooled session.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PooledStompJmsSession implements Session, QueueSession, TopicSession {
+
+    private final PooledStompJmsConnection connection;
+    private final StompJmsConnectionPool.SessionHolder holder;
+    private final StompJmsSession session;
+    private final ArrayList<MessageConsumer> consumers = new ArrayList<MessageConsumer>();
+    private final ArrayList<QueueBrowser> browsers = new ArrayList<QueueBrowser>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private boolean reusable = true;
+
+    PooledStompJmsSession(PooledStompJmsConnection connection, StompJmsConnectionPool.SessionHolder holder) {
+        this.connection = connection;
+        this.holder = holder;
+        this.session = holder.session;
+    }
+
+    /**
+     * @return the pooled session.
+     */
+    public StompJmsSession getSession() throws JMSException {
+        checkClosed();
+        return session;
+    }
+
+    public void close() throws JMSException {
+        if( closed.compareAndSet(false, true) ) {
+            boolean reuse;
+            synchronized (this) {
+                reuse = reusable;
+                try {
+                    for (MessageConsumer consumer : consumers) {
+                        consumer.close();
+                    }
+                    for (QueueBrowser browser : browsers) {
+                        browser.close();
+                    }
+                    if( session.getTransacted() ) {
+                        session.rollback();
+                    }
+                } catch (JMSException e) {
+                    reuse = false;
+                }
+                consumers.clear();
+                browsers.clear();
+            }
+            connection.returnSession(this, holder, reuse);
+        }
+    }
+
+    StompJmsMessageProducer producer() throws JMSException {
+        checkClosed();
+        return holder.producer();
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /////////////////////////////////////////////////////////////////////////
+    // Producers share the anonymous producer of the pooled session.
+    /////////////////////////////////////////////////////////////////////////
+
+    public MessageProducer createProducer(Destination destination) throws JMSException {
+        checkClosed();
+        return new PooledStompJmsMessageProducer(this, destination);
+    }
+
+    public QueueSender createSender(Queue queue) throws JMSException {
+        checkClosed();
+        return new PooledStompJmsMessageProducer(this, queue);
+    }
+
+    public TopicPublisher createPublisher(Topic topic) throws JMSException {
+        checkClosed();
+        return new PooledStompJmsMessageProducer(this, topic);
+    }
+
+    /////////////////////////////////////////////////////////////////////////
+    // Consumers and browsers are closed with the borrowed session.
+    /////////////////////////////////////////////////////////////////////////
+
+    private synchronized <T extends MessageConsumer> T consumer(T consumer) {
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    private synchronized QueueBrowser browser(QueueBrowser browser) {
+        browsers.add(browser);
+        return browser;
+    }
+
+    public MessageConsumer createConsumer(Destination destination) throws JMSException {
+        checkClosed();
+        return consumer(session.createConsumer(destination));
+    }
+
+    public MessageConsumer createConsumer(Destination destination, String messageSelector) throws JMSException {
+        checkClosed();
+        return consumer(session.createConsumer(destination, messageSelector));
+    }
+
+    public MessageConsumer createConsumer(Destination destination, String messageSelector, boolean noLocal) throws JMSException {
+        checkClosed();
+        return consumer(session.createConsumer(destination, messageSelector, noLocal));
+    }
+
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName) throws JMSException {
+        checkClosed();
+        return consumer(session.createSharedConsumer(topic, sharedSubscriptionName));
+    }
+
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName, String messageSelector) throws JMSException {
+        checkClosed();
+        return consumer(session.createSharedConsumer(topic, sharedSubscriptionName, messageSelector));
+    }
+
+    public MessageConsumer createDurableConsumer(Topic topic, String name) throws JMSException {
+        checkClosed();
+        return consumer(session.createDurableConsumer(topic, name));
+    }
+
+    public MessageConsumer createDurableConsumer(Topic topic, String name, String messageSelector, boolean noLocal) throws JMSException {
+        checkClosed();
+        return consumer(session.createDurableConsumer(topic, name, messageSelector, noLocal));
+    }
+
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name) throws JMSException {
+        checkClosed();
+        return consumer(session.createSharedDurableConsumer(topic, name));
+    }
+
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name, String messageSelector) throws JMSException {
+        checkClosed();
+        return consumer(session.createSharedDurableConsumer(topic, name, messageSelector));
+    }
+
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name) throws JMSException {
+        checkClosed();
+        return consumer(session.createDurableSubscriber(topic, name));
+    }
+
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name, String messageSelector, boolean noLocal) throws JMSException {
+        checkClosed();
+        return consumer(session.createDurableSubscriber(topic, name, messageSelector, noLocal));
+    }
+
+    public TopicSubscriber createSubscriber(Topic topic) throws JMSException {
+        checkClosed();
+        return consumer(session.createSubscriber(topic));
+    }
+
+    public TopicSubscriber createSubscriber(Topic topic, String messageSelector, boolean noLocal) throws JMSException {
+        checkClosed();
+        return consumer(session.createSubscriber(topic, messageSelector, noLocal));
+    }
+
+    public QueueReceiver createReceiver(Queue queue) throws JMSException {
+        checkClosed();
+        return consumer(session.createReceiver(queue));
+    }
+
+    public QueueReceiver createReceiver(Queue queue, String messageSelector) throws JMSException {
+        checkClosed();
+        return consumer(session.createReceiver(queue, messageSelector));
+    }
+
+    public QueueBrowser createBrowser(Queue queue) throws JMSException {
+        checkClosed();
+        return browser(session.createBrowser(queue));
+    }
+
+    public QueueBrowser createBrowser(Queue queue, String messageSelector) throws JMSException {
+        checkClosed();
+        return browser(session.createBrowser(queue, messageSelector));
+    }
+
+    /////////////////////////////////////////////////////////////////////////
+    // Everything else goes straight to the pooled session.
+    /////////////////////////////////////////////////////////////////////////
+
+    public BytesMessage createBytesMessage() throws JMSException {
+        checkClosed();
+        return session.createBytesMessage();
+    }
+
+    public MapMessage createMapMessage() throws JMSException {
+        checkClosed();
+        return session.createMapMessage();
+    }
+
+    public Message createMessage() throws JMSException {
+        checkClosed();
+        return session.createMessage();
+    }
+
+    public ObjectMessage createObjectMessage() throws JMSException {
+        checkClosed();
+        return session.createObjectMessage();
+    }
+
+    public ObjectMessage createObjectMessage(Serializable object) throws JMSException {
+        checkClosed();
+        return session.createObjectMessage(object);
+    }
+
+    public StreamMessage createStreamMessage() throws JMSException {
+        checkClosed();
+        return session.createStreamMessage();
+    }
+
+    public TextMessage createTextMessage() throws JMSException {
+        checkClosed();
+        return session.createTextMessage();
+    }
+
+    public TextMessage createTextMessage(String text) throws JMSException {
+        checkClosed();
+        return session.createTextMessage(text);
+    }
+
+    public boolean getTransacted() throws JMSException {
+        checkClosed();
+        return session.getTransacted();
+    }
+
+    public int getAcknowledgeMode() throws JMSException {
+        checkClosed();
+        return session.getAcknowledgeMode();
+    }
+
+    public void commit() throws JMSException {
+        checkClosed();
+        session.commit();
+    }
+
+    public void rollback() throws JMSException {
+        checkClosed();
+        session.rollback();
+    }
+
+    public void recover() throws JMSException {
+        checkClosed();
+        session.recover();
+    }
+
+    public MessageListener getMessageListener() throws JMSException {
+        checkClosed();
+        return session.getMessageListener();
+    }
+
+    /**
+     * A session which had a message listener is not pooled again.
+     */
+    public void setMessageListener(MessageListener listener) throws JMSException {
+        checkClosed();
+        synchronized (this) {
+            reusable = false;
+        }
+        session.setMessageListener(listener);
+    }
+
+    public void run() {
+        session.run();
+    }
+
+    public Queue createQueue(String queueName) throws JMSException {
+        checkClosed();
+        return session.createQueue(queueName);
+    }
+
+    public Topic createTopic(String topicName) throws JMSException {
+        checkClosed();
+        return session.createTopic(topicName);
+    }
+
+    public TemporaryQueue createTemporaryQueue() throws JMSException {
+        checkClosed();
+        return session.createTemporaryQueue();
+    }
+
+    public TemporaryTopic createTemporaryTopic() throws JMSException {
+        checkClosed();
+        return session.createTemporaryTopic();
+    }
+
+    public void unsubscribe(String name) throws JMSException {
+        checkClosed();
+        session.unsubscribe(name);
+    }
+
+    protected void checkClosed() throws IllegalStateException {
+        if( closed.get() ) {
+            throw new IllegalStateException("The Session is closed");
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import jakarta.jms.ResourceAllocationException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * The producer flow control of a channel.  It counts the bytes of the
+ * frames handed to the channel which the connection has not written yet.
+ * Once a send would take them over the high watermark the window closes,
+ * and the senders wait until the writes bring them down to the low
+ * watermark.
+ * </p>
+ * <p>
+ * The waiting senders take a ticket, so they get through in the order they
+ * arrived, and a new sender queues up behind them even if the window is
+ * open.  A send timeout of 0 fails the send with a
+ * {@link ResourceAllocationException} instead of waiting, a positive one
+ * fails it once it waited that many ms, and a negative one waits for as
+ * long as it takes.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SendWindow {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private long highWatermark;
+    private long lowWatermark;
+    private long outstanding;
+    private boolean closed;
+    private IOException failure;
+
+    // the ticket of the next sender to get through, and the next one handed out.
+    private long head;
+    private long tail;
+    // the tickets of the senders which gave up waiting.
+    private final HashSet<Long> abandoned = new HashSet<Long>();
+
+    private volatile long blockedCount;
+    private volatile long blockedTime;
+    private volatile long rejectedCount;
+
+    public void configure(long highWatermark, long lowWatermark) {
+        lock.lock();
+        try {
+            this.highWatermark = highWatermark;
+            this.lowWatermark = Math.min(lowWatermark, highWatermark);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the bytes of a frame out of the window, waiting for the window
+     * to open up if it's closed.
+     */
+    public void acquire(int size, long timeout) throws IOException {
+        lock.lock();
+        try {
+            if( failure != null ) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            if( head == tail && admit(size) ) {
+                outstanding += size;
+                return;
+            }
+            if( timeout == 0 ) {
+                throw reject();
+            }
+            long ticket = tail++;
+            long start = System.nanoTime();
+            long remaining = timeout > 0 ? TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+            blockedCount++;
+            try {
+                while( failure == null && (ticket != head || !admit(size)) ) {
+                    if( timeout < 0 ) {
+                        changed.await();
+                    } else if( remaining > 0 ) {
+                        remaining = changed.awaitNanos(remaining);
+                    } else {
+                        abandon(ticket);
+                        throw reject();
+                    }
+                }
+                if( failure != null ) {
+                    throw new IOException(failure.getMessage(), failure);
+                }
+                advance();
+                outstanding += size;
+            } catch (InterruptedException e) {
+                abandon(ticket);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the send window");
+            } finally {
+                blockedTime += System.nanoTime() - start;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts the bytes of a frame which is sent whether the window is open
+     * or not.
+     */
+    public void add(int size) {
+        lock.lock();
+        try {
+            outstanding += size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the bytes of the frames the connection has written.
+     */
+    public void release(long size) {
+        lock.lock();
+        try {
+            outstanding -= size;
+            if( closed && outstanding <= lowWatermark ) {
+                closed = false;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fails the waiting senders and the ones to come, once the channel is closed.
+     */
+    public void fail(IOException failure) {
+        lock.lock();
+        try {
+            this.failure = failure;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean admit(int size) {
+        if( closed ) {
+            return false;
+        }
+        // a frame bigger than the window still goes through on its own.
+        if( outstanding > 0 && outstanding + size > highWatermark ) {
+            closed = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void advance() {
+        head++;
+        while( abandoned.remove(head) ) {
+            head++;
+        }
+        changed.signalAll();
+    }
+
+    private void abandon(long ticket) {
+        if( ticket == head ) {
+            advance();
+        } else {
+            abandoned.add(ticket);
+        }
+    }
+
+    private IOException reject() {
+        rejectedCount++;
+        ResourceAllocationException e = new ResourceAllocationException("The send window of " + highWatermark + " bytes is full");
+        return new IOException(e.getMessage(), e);
+    }
+
+    public long outstanding() {
+        lock.lock();
+        try {
+            return outstanding;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+
+    /**
+     * @return the time in ms the senders spent waiting for the window.
+     */
+    public long getBlockedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedTime);
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+}
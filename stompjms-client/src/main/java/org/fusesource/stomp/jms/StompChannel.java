@@ -16,13 +16,14 @@ import static org.fusesource.stomp.client.Constants.ACK;
 import static org.fusesource.stomp.client.Constants.ACK_MODE;
 import static org.fusesource.stomp.client.Constants.BEGIN;
 import static org.fusesource.stomp.client.Constants.COMMIT;
-import static org.fusesource.stomp.client.Constants.CONTENT_LENGTH;
+import static org.fusesource.stomp.client.Constants.CONTENT_ENCODING;
 import static org.fusesource.stomp.client.Constants.DESTINATION;
 import static org.fusesource.stomp.client.Constants.DISCONNECT;
 import static org.fusesource.stomp.client.Constants.HOST_ID;
 import static org.fusesource.stomp.client.Constants.ID;
 import static org.fusesource.stomp.client.Constants.MESSAGE;
 import static org.fusesource.stomp.client.Constants.MESSAGE_ID;
+import static org.fusesource.stomp.client.Constants.RECEIPT_REQUESTED;
 import static org.fusesource.stomp.client.Constants.SELECTOR;
 import static org.fusesource.stomp.client.Constants.SEND;
 import static org.fusesource.stomp.client.Constants.SERVER;
@@ -30,30 +31,50 @@ import static org.fusesource.stomp.client.Constants.SESSION;
 import static org.fusesource.stomp.client.Constants.SUBSCRIBE;
 import static org.fusesource.stomp.client.Constants.SUBSCRIPTION;
 import static org.fusesource.stomp.client.Constants.TRANSACTION;
+import static org.fusesource.stomp.client.Constants.UNSUBSCRIBE;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 import jakarta.jms.ExceptionListener;
 import jakarta.jms.JMSException;
+import jakarta.jms.ResourceAllocationException;
+import jakarta.jms.TransactionRolledBackException;
 import javax.net.ssl.SSLContext;
 
 import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
 import org.fusesource.hawtdispatch.Task;
 import org.fusesource.stomp.client.Callback;
 import org.fusesource.stomp.client.CallbackConnection;
+import org.fusesource.stomp.client.Failover;
 import org.fusesource.stomp.client.Promise;
 import org.fusesource.stomp.client.ProtocolException;
 import org.fusesource.stomp.client.Stomp;
+import org.fusesource.stomp.codec.FrameCompression;
 import org.fusesource.stomp.codec.StompFrame;
+import org.fusesource.stomp.jms.message.StompJmsBytesMessage;
 import org.fusesource.stomp.jms.message.StompJmsMessage;
-import org.fusesource.stomp.jms.message.StompJmsTextMessage;
 import org.fusesource.stomp.jms.util.StompTranslator;
 
 public class StompChannel {
@@ -66,6 +87,8 @@ public class StompChannel {
     };
 
     static final long TIMEOUT = -1;
+    // the largest body a deflated message may inflate to, the codec's default max_data_length.
+    static final int MAX_INFLATED_LENGTH = 1024 * 1024 * 100;
     String channelId;
     String userName;
     String password;
@@ -74,17 +97,57 @@ public class StompChannel {
     boolean omitHost;
     URI brokerURI;
     URI localURI;
-    CallbackConnection connection;
+    volatile CallbackConnection connection;
+    DispatchQueue queue;
     StompJmsMessageListener listener;
     ExceptionListener exceptionListener;
     AtomicBoolean started = new AtomicBoolean();
     AtomicBoolean connected = new AtomicBoolean();
     AsciiBuffer sessionId;
-    AtomicInteger writeBufferRemaining = new AtomicInteger();
+    final SendWindow window = new SendWindow();
+    long sendHighWatermark;
+    long sendLowWatermark;
+    long sendTimeout = -1;
+    int asyncSendWindow = 100;
+    // the receipts the asynchronous sends may have outstanding.
+    Semaphore asyncSends;
     AtomicInteger serverAckSubs = new AtomicInteger();
     StompServerAdaptor serverAdaptor;
     String clientId;
     private long disconnectTimeout = 10000;
+    int framePoolSize;
+    boolean framePoolDebug;
+    int compressionThreshold = -1;
+    int compressionLevel = Deflater.BEST_SPEED;
+    int spillThreshold = -1;
+    String spillDirectory;
+    long heartBeatSendInterval;
+    long heartBeatReceiveInterval;
+    int autoFlushSize;
+    long autoFlushDelay;
+    boolean useVirtualThreads;
+    boolean cumulativeReceipts;
+    final AtomicLong idCounter = new AtomicLong();
+
+    // Multiplexing: the sessions sharing the channel get their messages
+    // routed by the subscription id.
+    boolean shared;
+    int sessions;
+    final ConcurrentHashMap<AsciiBuffer, StompJmsMessageListener> routes = new ConcurrentHashMap<AsciiBuffer, StompJmsMessageListener>();
+
+    // Failover state, only the channel's dispatch queue accesses it.
+    Failover failover;
+    private boolean reconnecting;
+    private boolean exhausted;
+    private long reconnectStart;
+    private long frameSequence;
+    private final ArrayList<PendingFrame> pending = new ArrayList<PendingFrame>();
+    private final LinkedHashMap<AsciiBuffer, StompFrame> subscriptions = new LinkedHashMap<AsciiBuffer, StompFrame>();
+    private final HashSet<AsciiBuffer> transactions = new HashSet<AsciiBuffer>();
+    private final HashSet<AsciiBuffer> rolledBack = new HashSet<AsciiBuffer>();
+    private volatile long reconnectCount;
+    private volatile long lastReconnectTime;
+    private volatile long totalReconnectTime;
 
     public AsciiBuffer sessionId() {
         return sessionId;
@@ -103,6 +166,22 @@ public class StompChannel {
         copy.ackMode = this.ackMode;
         copy.omitHost = this.omitHost;
         copy.sslContext = this.sslContext;
+        copy.framePoolSize = this.framePoolSize;
+        copy.framePoolDebug = this.framePoolDebug;
+        copy.compressionThreshold = this.compressionThreshold;
+        copy.compressionLevel = this.compressionLevel;
+        copy.spillThreshold = this.spillThreshold;
+        copy.spillDirectory = this.spillDirectory;
+        copy.heartBeatSendInterval = this.heartBeatSendInterval;
+        copy.heartBeatReceiveInterval = this.heartBeatReceiveInterval;
+        copy.autoFlushSize = this.autoFlushSize;
+        copy.autoFlushDelay = this.autoFlushDelay;
+        copy.useVirtualThreads = this.useVirtualThreads;
+        copy.cumulativeReceipts = this.cumulativeReceipts;
+        copy.sendHighWatermark = this.sendHighWatermark;
+        copy.sendLowWatermark = this.sendLowWatermark;
+        copy.sendTimeout = this.sendTimeout;
+        copy.asyncSendWindow = this.asyncSendWindow;
         return copy;
     }
 
@@ -112,37 +191,28 @@ public class StompChannel {
         if (this.connected.compareAndSet(false, true)) {
             try {
                 final Promise<CallbackConnection> future = new Promise<CallbackConnection>();
-                Stomp stomp = new Stomp(brokerURI);
-                stomp.setLogin(userName);
-                stomp.setPasscode(password);
-                stomp.setLocalURI(localURI);
-                stomp.setClientId(clientId);
-                stomp.setSslContext(sslContext);
-                stomp.connectCallback(future);
-                if( omitHost ) {
-                    stomp.setHost(null);
+                Stomp stomp = createStomp(brokerURI);
+                if( Failover.isFailover(brokerURI) ) {
+                    failover = Failover.parse(brokerURI);
+                    // all the connections share one queue so that the
+                    // frames queued on it survive a reconnect.
+                    stomp.setDispatchQueue(Dispatch.createQueue("stomp channel"));
                 }
+                stomp.connectCallback(future);
 
                 connection = future.await();
-                writeBufferRemaining.set(connection.transport().getProtocolCodec().getWriteBufferSize());
-                connection.getDispatchQueue().execute(new Task() {
+                queue = connection.getDispatchQueue();
+                long high = sendHighWatermark > 0 ? sendHighWatermark : connection.transport().getProtocolCodec().getWriteBufferSize();
+                window.configure(high, sendLowWatermark > 0 ? sendLowWatermark : high / 2);
+                asyncSends = new Semaphore(Math.max(1, asyncSendWindow), true);
+                queue.execute(new Task() {
                     @Override
                     public void run() {
-                        connection.receive(new Callback<StompFrame>() {
-                            @Override
-                            public void onFailure(Throwable value) {
-                                handleException(value);
-                            }
-                            @Override
-                            public void onSuccess(StompFrame value) {
-                                onFrame(value);
-                            }
-                        });
-                        connection.resume();
+                        attach(connection);
                     }
                 });
 
-                sessionId = connection.connectedFrame().headerMap().get(SESSION);
+                sessionId = connection.connectedFrame().getHeader(SESSION);
                 if ( sessionId ==null ) {
                     sessionId = new AsciiBuffer("id-"+UUID.randomUUID().toString());
                 }
@@ -171,6 +241,54 @@ public class StompChannel {
         }
     }
 
+    private Stomp createStomp(URI uri) {
+        Stomp stomp = new Stomp(uri);
+        stomp.setLogin(userName);
+        stomp.setPasscode(password);
+        stomp.setLocalURI(localURI);
+        stomp.setClientId(clientId);
+        stomp.setSslContext(sslContext);
+        stomp.setFramePoolSize(framePoolSize);
+        stomp.setFramePoolDebug(framePoolDebug);
+        stomp.setSpillThreshold(spillThreshold);
+        if( spillDirectory!=null ) {
+            stomp.setSpillDirectory(new File(spillDirectory));
+        }
+        stomp.setHeartBeatSendInterval(heartBeatSendInterval);
+        stomp.setHeartBeatReceiveInterval(heartBeatReceiveInterval);
+        stomp.setAutoFlushSize(autoFlushSize);
+        stomp.setAutoFlushDelay(autoFlushDelay);
+        stomp.setUseVirtualThreads(useVirtualThreads);
+        stomp.setCumulativeReceipts(cumulativeReceipts);
+        if( omitHost ) {
+            stomp.setHost(null);
+        }
+        if( queue!=null ) {
+            stomp.setDispatchQueue(queue);
+        }
+        return stomp;
+    }
+
+    private void attach(final CallbackConnection connection) {
+        connection.receive(new Callback<StompFrame>() {
+            @Override
+            public void onFailure(Throwable value) {
+                if( connection == StompChannel.this.connection ) {
+                    if( canFailover(value) ) {
+                        reconnect();
+                    } else {
+                        handleException(value);
+                    }
+                }
+            }
+            @Override
+            public void onSuccess(StompFrame value) {
+                onFrame(value);
+            }
+        });
+        connection.resume();
+    }
+
     public boolean isStarted() {
         return started.get();
     }
@@ -179,11 +297,21 @@ public class StompChannel {
         if (connected.compareAndSet(true, false)) {
             final CountDownLatch cd = new CountDownLatch(1);
             started.set(false);
+            window.fail(new ClosedChannelException());
 
             // Request a DISCONNECT so that we can try to flush the socket out.
-            connection.getDispatchQueue().execute(new Task(){
+            queue.execute(new Task(){
                 @Override
                 public void run() {
+                    if( reconnecting ) {
+                        // nothing to flush, the reconnect gives up now.
+                        cd.countDown();
+                        return;
+                    }
+                    // the frames sent before closing go first.
+                    while( !outbound.isEmpty() ) {
+                        drainOutbound();
+                    }
                     StompFrame frame = new StompFrame(DISCONNECT);
                     connection.request(frame, new Callback<StompFrame>(){
                         @Override
@@ -213,15 +341,7 @@ public class StompChannel {
         if( sync && serverAckSubs.get() >0 ) {
             throw new JMSException("Sync message sends not allowed when a subscription is using 'ack:auto'.  Causes deadlocks.");
         }
-        copy.onSend();
-        StompFrame frame = copy.getFrame();
-        frame.action(SEND);
-        if (!(copy instanceof StompJmsTextMessage)) {
-            frame.headerMap().put(CONTENT_LENGTH, new AsciiBuffer(Integer.toString(frame.content().length)));
-        }
-        if (txid != null) {
-            frame.headerMap().put(TRANSACTION, txid);
-        }
+        StompFrame frame = toSendFrame(copy, txid);
         try {
             if( sync ) {
                 sendRequest(frame);
@@ -229,10 +349,67 @@ public class StompChannel {
                 sendFrame(frame);
             }
         } catch (IOException e) {
+            if( e.getCause() instanceof ResourceAllocationException ) {
+                throw (ResourceAllocationException) e.getCause();
+            }
             throw StompJmsExceptionSupport.create(e);
         }
     }
 
+    /**
+     * Sends a message with a receipt without waiting for it, the callback
+     * gets the receipt.  Once the window of outstanding receipts is used
+     * up the send waits for a receipt like the sends wait for the send
+     * window, for up to the send timeout.
+     */
+    public void sendMessage(StompJmsMessage copy, AsciiBuffer txid, final Callback<StompFrame> callback) throws JMSException {
+        if( serverAckSubs.get() >0 ) {
+            throw new JMSException("Async message sends not allowed when a subscription is using 'ack:auto'.  Causes deadlocks.");
+        }
+        StompFrame frame = toSendFrame(copy, txid);
+        try {
+            boolean acquired;
+            if( sendTimeout < 0 ) {
+                asyncSends.acquire();
+                acquired = true;
+            } else {
+                acquired = asyncSends.tryAcquire(sendTimeout, TimeUnit.MILLISECONDS);
+            }
+            if( !acquired ) {
+                throw new ResourceAllocationException("The " + asyncSendWindow + " asynchronous sends of the channel are all waiting for their receipt");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted");
+        }
+        sendRequest(frame, new Callback<StompFrame>() {
+            @Override
+            public void onSuccess(StompFrame value) {
+                asyncSends.release();
+                callback.onSuccess(value);
+            }
+            @Override
+            public void onFailure(Throwable value) {
+                asyncSends.release();
+                callback.onFailure(value);
+            }
+        });
+    }
+
+    private StompFrame toSendFrame(StompJmsMessage copy, AsciiBuffer txid) throws JMSException {
+        copy.onSend();
+        StompFrame frame = copy.getFrame();
+        frame.action(SEND);
+        if( compressionThreshold >= 0 ) {
+            FrameCompression.deflate(frame, compressionThreshold, compressionLevel);
+        }
+        serverAdaptor.addSendHeaders(frame.headerMap(), copy);
+        if (txid != null) {
+            frame.headerMap().put(TRANSACTION, txid);
+        }
+        return frame;
+    }
+
     public void ackMessage(AsciiBuffer consumerId, AsciiBuffer messageId, AsciiBuffer txid, Promise<StompFrame> callback) throws JMSException {
         if( callback!=null && serverAckSubs.get() >0 ) {
             throw new JMSException("Sync acks not allowed when a subscription is using 'ack:auto'.  Causes deadlocks.");
@@ -297,7 +474,7 @@ public class StompChannel {
 
 
     public AsciiBuffer startTransaction() throws JMSException {
-        AsciiBuffer txid = connection.nextId("TX-");
+        AsciiBuffer txid = new AsciiBuffer("TX-"+idCounter.incrementAndGet());
         StompFrame frame = new StompFrame();
         frame.action(BEGIN);
         if (txid != null) {
@@ -323,6 +500,9 @@ public class StompChannel {
         try {
             sendRequest(frame);
         } catch (IOException e) {
+            if( e.getCause() instanceof TransactionRolledBackException ) {
+                throw (TransactionRolledBackException) e.getCause();
+            }
             throw StompJmsExceptionSupport.create(e);
         }
     }
@@ -344,58 +524,26 @@ public class StompChannel {
     }
 
 
+    /**
+     * Sends a frame without waiting for it to be written.  The SEND frames
+     * wait for the send window to open, or fail with a
+     * {@link ResourceAllocationException} cause, so that the producers
+     * don't blow out our memory buffers.  The acks and other control frames
+     * are counted but never held back, so the consumers don't stall behind
+     * the producers.
+     */
     public void sendFrame(final StompFrame frame) throws IOException {
-        try {
-            final int size = frame.size();
-            if( writeBufferRemaining.getAndAdd(-size) > 0 ) {
-                // just send it without blocking...
-                connection.getDispatchQueue().execute(new Task() {
-                    @Override
-                    public void run() {
-                        connection.send(frame, new Callback<Void>(){
-                            @Override
-                            public void onFailure(Throwable value) {
-                                handleException(value);
-                            }
-                            @Override
-                            public void onSuccess(Void value) {
-                                writeBufferRemaining.getAndAdd(size);
-                            }
-                        });
-                    }
-                });
-            } else {
-                // ran out of buffer space.. wait for the write to complete
-                // so that we don't blow out our memory buffers.
-                final Promise<Void> future = new Promise<Void>() {
-                    @Override
-                    public void onSuccess(Void value) {
-                        writeBufferRemaining.getAndAdd(size);
-                        super.onSuccess(value);
-                    }
-                };
-                connection.getDispatchQueue().execute(new Task() {
-                    @Override
-                    public void run() {
-                        connection.send(frame, future);
-                    }
-                });
-                future.await();
-            }
-        } catch (IOException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new IOException(e.getMessage(), e);
+        int size = frame.size();
+        if( frame.action().equals(SEND) ) {
+            window.acquire(size, sendTimeout);
+        } else {
+            window.add(size);
         }
+        submit(frame);
     }
 
-    public void sendRequest(final StompFrame frame, final Promise<StompFrame> future) {
-        connection.getDispatchQueue().execute(new Task() {
-            @Override
-            public void run() {
-                connection.request(frame, future);
-            }
-        });
+    public void sendRequest(final StompFrame frame, final Callback<StompFrame> future) {
+        submit(new Submitted(frame, future));
     }
 
     public void sendRequest(final StompFrame frame) throws IOException {
@@ -412,15 +560,407 @@ public class StompChannel {
         }
     }
 
+    ///////////////////////////////////////////////////////////////////
+    // Outbound frames: the sending threads append them to a lock free
+    // queue, and a single task drains it on the channel's dispatch queue.
+    ///////////////////////////////////////////////////////////////////
+
+    static final int DRAIN_BATCH = 1024;
+
+    /**
+     * A request, it needs its own callback.  The requests wait for their
+     * receipt so they are not counted in the send window.
+     */
+    static class Submitted {
+        final StompFrame frame;
+        final Callback<StompFrame> requestCallback;
+
+        Submitted(StompFrame frame, Callback<StompFrame> requestCallback) {
+            this.frame = frame;
+            this.requestCallback = requestCallback;
+        }
+    }
+
+    // holds StompFrames, which just return their send window credit, and Submitted requests.
+    private final ConcurrentLinkedQueue<Object> outbound = new ConcurrentLinkedQueue<Object>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Task drainOutbound = new Task() {
+        @Override
+        public void run() {
+            drainOutbound();
+        }
+    };
+
+    private void submit(Object frame) {
+        outbound.add(frame);
+        if( drainScheduled.compareAndSet(false, true) ) {
+            queue.execute(drainOutbound);
+        }
+    }
+
+    private void drainOutbound() {
+        // cleared first, so a frame added while draining schedules another run.
+        drainScheduled.set(false);
+        StompFrame held = null;
+        int credit = 0;
+        Object next;
+        for (int i = 0; i < DRAIN_BATCH && (next = outbound.poll()) != null; i++) {
+            if( next instanceof StompFrame ) {
+                if( held!=null ) {
+                    send(held, batched);
+                }
+                held = (StompFrame) next;
+                credit += held.size();
+            } else {
+                if( held!=null ) {
+                    send(held, credit(credit));
+                    held = null;
+                    credit = 0;
+                }
+                Submitted submitted = (Submitted) next;
+                request(submitted.frame, submitted.requestCallback);
+            }
+        }
+        if( held!=null ) {
+            // the connection completes the sends in order, so the last
+            // frame's callback returns the credit of the whole batch.
+            send(held, credit(credit));
+        }
+        if( !outbound.isEmpty() && drainScheduled.compareAndSet(false, true) ) {
+            queue.execute(drainOutbound);
+        }
+    }
+
+    // only reports the frames of a batch the connection could not send,
+    // the last frame of the batch returns the credit.
+    private final Callback<Void> batched = new Callback<Void>() {
+        @Override
+        public void onFailure(Throwable value) {
+            handleException(value);
+        }
+        @Override
+        public void onSuccess(Void value) {
+        }
+    };
+
+    private Callback<Void> credit(final int size) {
+        return new Callback<Void>() {
+            @Override
+            public void onFailure(Throwable value) {
+                // the frames are gone either way.
+                window.release(size);
+                handleException(value);
+            }
+            @Override
+            public void onSuccess(Void value) {
+                window.release(size);
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // Failover: everything below runs on the channel's dispatch queue.
+    ///////////////////////////////////////////////////////////////////
+
+    /**
+     * A frame sent while failover is enabled.  It's kept until the
+     * connection has taken it, or until its receipt arrives for a request,
+     * so that it can be replayed on the next connection.
+     */
+    static class PendingFrame {
+        final long sequence;
+        final StompFrame frame;
+        final Callback<Void> sendCallback;
+        final Callback<StompFrame> requestCallback;
+
+        PendingFrame(long sequence, StompFrame frame, Callback<Void> sendCallback, Callback<StompFrame> requestCallback) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.sendCallback = sendCallback;
+            this.requestCallback = requestCallback;
+        }
+
+        void complete() {
+            if( requestCallback!=null ) {
+                requestCallback.onSuccess(null);
+            } else if( sendCallback!=null ) {
+                sendCallback.onSuccess(null);
+            }
+        }
+
+        void fail(Throwable failure) {
+            if( requestCallback!=null ) {
+                requestCallback.onFailure(failure);
+            } else if( sendCallback!=null ) {
+                sendCallback.onFailure(failure);
+            }
+        }
+    }
+
+    private static final Comparator<PendingFrame> SEQUENCE_ORDER = new Comparator<PendingFrame>() {
+        public int compare(PendingFrame a, PendingFrame b) {
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private void send(StompFrame frame, Callback<Void> cb) {
+        if( failover==null ) {
+            connection.send(frame, cb);
+        } else {
+            dispatch(new PendingFrame(frameSequence++, frame, cb, null));
+        }
+    }
+
+    private void request(StompFrame frame, Callback<StompFrame> cb) {
+        if( failover==null ) {
+            connection.request(frame, cb);
+        } else {
+            dispatch(new PendingFrame(frameSequence++, frame, null, cb));
+        }
+    }
+
+    private boolean canFailover(Throwable failure) {
+        return failover!=null && !exhausted && started.get() && !Stomp.isFatal(failure);
+    }
+
+    private void dispatch(final PendingFrame p) {
+        if( reconnecting ) {
+            pending.add(p);
+            return;
+        }
+        StompFrame frame = p.frame;
+        AsciiBuffer action = frame.action();
+        if( action.equals(SUBSCRIBE) ) {
+            subscriptions.put(frame.getHeader(ID), frame);
+        } else if( action.equals(UNSUBSCRIBE) ) {
+            subscriptions.remove(frame.getHeader(ID));
+        } else if( action.equals(BEGIN) ) {
+            transactions.add(frame.getHeader(TRANSACTION));
+        } else if( action.equals(COMMIT) || action.equals(ABORT) ) {
+            AsciiBuffer txid = frame.getHeader(TRANSACTION);
+            transactions.remove(txid);
+            if( rolledBack.remove(txid) ) {
+                // The broker dropped the transaction with the old connection,
+                // so only the one begun again after the reconnect is left to
+                // abort.
+                StompFrame abort = new StompFrame(ABORT);
+                abort.headerMap().put(TRANSACTION, txid);
+                connection.send(abort, null);
+                if( action.equals(COMMIT) ) {
+                    p.fail(new TransactionRolledBackException("The transaction was rolled back by a failover"));
+                } else {
+                    p.complete();
+                }
+                return;
+            }
+        }
+
+        if( p.requestCallback!=null ) {
+            // a replayed request gets a new receipt id.
+            frame.removeHeader(RECEIPT_REQUESTED);
+            connection.request(frame, new Callback<StompFrame>() {
+                @Override
+                public void onSuccess(StompFrame value) {
+                    p.requestCallback.onSuccess(value);
+                }
+                @Override
+                public void onFailure(Throwable value) {
+                    failed(p, value);
+                }
+            });
+        } else {
+            connection.send(frame, new Callback<Void>() {
+                @Override
+                public void onSuccess(Void value) {
+                    if( p.sendCallback!=null ) {
+                        p.sendCallback.onSuccess(value);
+                    }
+                }
+                @Override
+                public void onFailure(Throwable value) {
+                    failed(p, value);
+                }
+            });
+        }
+    }
+
+    private void failed(PendingFrame p, Throwable failure) {
+        if( canFailover(failure) ) {
+            pending.add(p);
+            reconnect();
+        } else {
+            p.fail(failure);
+        }
+    }
+
+    private void reconnect() {
+        if( reconnecting ) {
+            return;
+        }
+        reconnecting = true;
+        reconnectStart = System.nanoTime();
+        // the broker drops the open transactions along with the connection.
+        rolledBack.addAll(transactions);
+        connection.close(null);
+        reconnect(0);
+    }
+
+    private void reconnect(final int attempt) {
+        if( !started.get() ) {
+            reconnectFailed(new ClosedChannelException());
+            return;
+        }
+        createStomp(failover.uri(attempt)).connectCallback(new Callback<CallbackConnection>() {
+            @Override
+            public void onSuccess(CallbackConnection value) {
+                if( started.get() ) {
+                    reconnected(value);
+                } else {
+                    value.close(null);
+                    reconnectFailed(new ClosedChannelException());
+                }
+            }
+            @Override
+            public void onFailure(Throwable value) {
+                if( Stomp.isFatal(value) || failover.isExhausted(attempt + 1) ) {
+                    exhausted = true;
+                    reconnectFailed(value);
+                    handleException(value);
+                } else {
+                    queue.executeAfter(failover.delay(attempt + 1), TimeUnit.MILLISECONDS, new Task() {
+                        @Override
+                        public void run() {
+                            reconnect(attempt + 1);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void reconnectFailed(Throwable failure) {
+        reconnecting = false;
+        ArrayList<PendingFrame> failed = new ArrayList<PendingFrame>(pending);
+        pending.clear();
+        for (PendingFrame p : failed) {
+            p.fail(failure);
+        }
+    }
+
+    private void reconnected(CallbackConnection connection) {
+        this.connection = connection;
+        attach(connection);
+        reconnecting = false;
+
+        // Restore the broker side state, the transactions which were open
+        // are begun again so that the frames sent in them are still valid
+        // until the commit reports the rollback.
+        for (AsciiBuffer txid : transactions) {
+            StompFrame begin = new StompFrame(BEGIN);
+            begin.headerMap().put(TRANSACTION, txid);
+            connection.send(begin, null);
+        }
+        IdentityHashMap<StompFrame, Boolean> replaying = new IdentityHashMap<StompFrame, Boolean>();
+        for (PendingFrame p : pending) {
+            replaying.put(p.frame, Boolean.TRUE);
+        }
+        for (StompFrame subscribe : subscriptions.values()) {
+            if( !replaying.containsKey(subscribe) ) {
+                subscribe.removeHeader(RECEIPT_REQUESTED);
+                connection.send(subscribe, null);
+            }
+        }
+
+        ArrayList<PendingFrame> replay = new ArrayList<PendingFrame>(pending);
+        pending.clear();
+        Collections.sort(replay, SEQUENCE_ORDER);
+        for (PendingFrame p : replay) {
+            if( p.frame.action().equals(ACK) ) {
+                // the broker redelivers the messages acked on the old
+                // connection, there's nothing left to ack on this one.
+                p.complete();
+            } else {
+                dispatch(p);
+            }
+        }
+
+        long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reconnectStart);
+        lastReconnectTime = time;
+        totalReconnectTime += time;
+        reconnectCount++;
+    }
+
+    /**
+     * @return how many SEND frames had to wait for the send window.
+     */
+    public long getBlockedSendCount() {
+        return window.getBlockedCount();
+    }
+
+    /**
+     * @return how long in ms the SEND frames waited for the send window in total.
+     */
+    public long getTotalBlockedSendTime() {
+        return window.getBlockedTime();
+    }
+
+    /**
+     * @return how many SEND frames failed because the send window stayed full.
+     */
+    public long getRejectedSendCount() {
+        return window.getRejectedCount();
+    }
+
+    /**
+     * @return how many times the channel failed over to a new connection.
+     */
+    public long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * @return how long in ms the last failover took, from the failure to
+     * the replay of the pending frames.
+     */
+    public long getLastReconnectTime() {
+        return lastReconnectTime;
+    }
+
+    /**
+     * @return how long in ms the channel spent failing over in total.
+     */
+    public long getTotalReconnectTime() {
+        return totalReconnectTime;
+    }
+
     public void onFrame(StompFrame frame) {
         AsciiBuffer action = frame.action();
         if (action.startsWith(MESSAGE)) {
             try {
-                StompJmsMessage msg = StompTranslator.convert(frame);
+                StompJmsMessage msg = null;
+                AsciiBuffer encoding = frame.getHeader(CONTENT_ENCODING);
+                if( compressionThreshold >= 0 && encoding!=null && FrameCompression.DEFLATE.equals(encoding) ) {
+                    // inflated here rather than in the codec, the vm transport
+                    // hands over the frames without decoding them.
+                    try {
+                        FrameCompression.inflate(frame, MAX_INFLATED_LENGTH);
+                    } catch (IOException e) {
+                        // hand out the raw bytes rather than a garbled body of its real type.
+                        msg = new StompJmsBytesMessage();
+                        handleException(new JMSException("Could not inflate the body of message " + frame.getHeader(MESSAGE_ID) + ": " + e.getMessage()));
+                    }
+                }
+                if( msg == null ) {
+                    msg = StompTranslator.convert(frame);
+                }
                 msg.setFrame(frame);
                 msg.setReadOnlyBody(true);
                 msg.setReadOnlyProperties(true);
-                StompJmsMessageListener l = this.listener;
+                AsciiBuffer subscription = frame.getHeader(SUBSCRIPTION);
+                StompJmsMessageListener l = subscription!=null ? routes.get(subscription) : null;
+                if( l == null ) {
+                    l = this.listener;
+                }
                 if (l != null) {
                     l.onMessage(msg);
                 }
@@ -537,6 +1077,25 @@ public class StompChannel {
         this.listener = listener;
     }
 
+    /**
+     * Delivers the messages of a subscription to the listener, instead of
+     * to the channel's listener.
+     */
+    public void route(AsciiBuffer subscription, StompJmsMessageListener listener) {
+        routes.put(subscription, listener);
+    }
+
+    public void unroute(AsciiBuffer subscription) {
+        routes.remove(subscription);
+    }
+
+    /**
+     * @return true if several sessions share the channel.
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
     public void setExceptionListener(ExceptionListener listener) {
         this.exceptionListener = listener;
     }
@@ -553,7 +1112,8 @@ public class StompChannel {
     }
 
     public AsciiBuffer nextId() {
-        return connection.nextId();
+        // not the connection's ids, they start over after a failover.
+        return new AsciiBuffer(Long.toString(idCounter.incrementAndGet()));
     }
 
     public String getConnectedHostId() {
@@ -600,6 +1160,102 @@ public class StompChannel {
         this.disconnectTimeout = disconnectTimeout;
     }
 
+    public int getFramePoolSize() {
+        return framePoolSize;
+    }
+
+    public void setFramePoolSize(int framePoolSize) {
+        this.framePoolSize = framePoolSize;
+    }
+
+    public boolean isFramePoolDebug() {
+        return framePoolDebug;
+    }
+
+    public void setFramePoolDebug(boolean framePoolDebug) {
+        this.framePoolDebug = framePoolDebug;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public long getHeartBeatSendInterval() {
+        return heartBeatSendInterval;
+    }
+
+    public void setHeartBeatSendInterval(long heartBeatSendInterval) {
+        this.heartBeatSendInterval = heartBeatSendInterval;
+    }
+
+    public long getHeartBeatReceiveInterval() {
+        return heartBeatReceiveInterval;
+    }
+
+    public void setHeartBeatReceiveInterval(long heartBeatReceiveInterval) {
+        this.heartBeatReceiveInterval = heartBeatReceiveInterval;
+    }
+
+    public int getAutoFlushSize() {
+        return autoFlushSize;
+    }
+
+    public void setAutoFlushSize(int autoFlushSize) {
+        this.autoFlushSize = autoFlushSize;
+    }
+
+    public long getAutoFlushDelay() {
+        return autoFlushDelay;
+    }
+
+    public void setAutoFlushDelay(long autoFlushDelay) {
+        this.autoFlushDelay = autoFlushDelay;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    public boolean isCumulativeReceipts() {
+        return cumulativeReceipts;
+    }
+
+    public void setCumulativeReceipts(boolean cumulativeReceipts) {
+        this.cumulativeReceipts = cumulativeReceipts;
+    }
+
     public SSLContext getSslContext() {
         return sslContext;
     }
@@ -607,4 +1263,36 @@ public class StompChannel {
     public void setSslContext(SSLContext sslContext) {
         this.sslContext = sslContext;
     }
+
+    public long getSendHighWatermark() {
+        return sendHighWatermark;
+    }
+
+    public void setSendHighWatermark(long sendHighWatermark) {
+        this.sendHighWatermark = sendHighWatermark;
+    }
+
+    public long getSendLowWatermark() {
+        return sendLowWatermark;
+    }
+
+    public void setSendLowWatermark(long sendLowWatermark) {
+        this.sendLowWatermark = sendLowWatermark;
+    }
+
+    public long getSendTimeout() {
+        return sendTimeout;
+    }
+
+    public void setSendTimeout(long sendTimeout) {
+        this.sendTimeout = sendTimeout;
+    }
+
+    public int getAsyncSendWindow() {
+        return asyncSendWindow;
+    }
+
+    public void setAsyncSendWindow(int asyncSendWindow) {
+        this.asyncSendWindow = asyncSendWindow;
+    }
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+/**
+ * <p>
+ * How the consumers batch their acks.  Batching is off until one of the
+ * limits is set, then a consumer holds its acks until it has that many
+ * messages or bytes to ack, the delay is up, or it has no more messages
+ * buffered.  A 'client' subscription acks the batch with one ACK of its
+ * last message, the broker takes it to cover the earlier ones.
+ * </p>
+ * <p>
+ * The acks of a CLIENT_ACKNOWLEDGE consumer are held until acknowledge()
+ * sends them with a single ACK.  Only the flushes ask for a receipt, when
+ * receipts are enabled, and a consumer of an AUTO_ACKNOWLEDGE session can
+ * ack its messages once the listener returned, or on the next receive, to
+ * get them at least once.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class StompJmsAckBatch {
+
+    int maxMessages;
+    long maxBytes;
+    long maxDelay;
+    boolean receipts = true;
+    boolean individual;
+    boolean atLeastOnce;
+
+    public StompJmsAckBatch() {
+    }
+
+    public StompJmsAckBatch(StompJmsAckBatch other) {
+        this.maxMessages = other.maxMessages;
+        this.maxBytes = other.maxBytes;
+        this.maxDelay = other.maxDelay;
+        this.receipts = other.receipts;
+        this.individual = other.individual;
+        this.atLeastOnce = other.atLeastOnce;
+    }
+
+    public boolean isEnabled() {
+        return maxMessages > 0 || maxBytes > 0 || maxDelay > 0;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Flushes the acks once this many messages wait for one, 0 for no limit.
+     */
+    public void setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Flushes the acks once the messages waiting for one add up to this
+     * many bytes, 0 for no limit.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Flushes the acks at most this many ms after the first of them, 0 to
+     * only flush when a limit is reached or the consumer is idle.
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public boolean isReceipts() {
+        return receipts;
+    }
+
+    /**
+     * Asks for a receipt on the last ACK of a flush and waits for it,
+     * true by default.  The DUPS_OK_ACKNOWLEDGE and SERVER_AUTO_ACKNOWLEDGE
+     * consumers never do.
+     */
+    public void setReceipts(boolean receipts) {
+        this.receipts = receipts;
+    }
+
+    public boolean isIndividual() {
+        return individual;
+    }
+
+    /**
+     * Subscribes with 'client-individual' acks, a flush then sends an ACK
+     * for every message of the batch, back to back.  The consumers of
+     * CLIENT_ACKNOWLEDGE and transacted sessions keep 'client' acks, which
+     * is what acknowledge() means for them.
+     */
+    public void setIndividual(boolean individual) {
+        this.individual = individual;
+    }
+
+    public boolean isAtLeastOnce() {
+        return atLeastOnce;
+    }
+
+    /**
+     * Lets the AUTO_ACKNOWLEDGE consumers ack a message once the listener
+     * returned, or when the next message is received, instead of before
+     * handing it to the application.
+     */
+    public void setAtLeastOnce(boolean atLeastOnce) {
+        this.atLeastOnce = atLeastOnce;
+    }
+
+    @Override
+    public String toString() {
+        return "StompJmsAckBatch{" +
+                "maxMessages=" + maxMessages +
+                ", maxBytes=" + maxBytes +
+                ", maxDelay=" + maxDelay +
+                ", receipts=" + receipts +
+                ", individual=" + individual +
+                ", atLeastOnce=" + atLeastOnce +
+                '}';
+    }
+}
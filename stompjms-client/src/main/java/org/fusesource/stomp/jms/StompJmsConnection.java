@@ -14,9 +14,11 @@ import jakarta.jms.*;
 import jakarta.jms.IllegalStateException;
 import javax.net.ssl.SSLContext;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 /**
  * Implementation of a JMS Connection
@@ -46,8 +48,28 @@ public class StompJmsConnection implements Connection, TopicConnection, QueueCon
     final SSLContext sslContext;
     StompChannel channel;
     long disconnectTimeout = 10000;
+    int framePoolSize;
+    boolean framePoolDebug;
+    int compressionThreshold = -1;
+    int compressionLevel = Deflater.BEST_SPEED;
+    int spillThreshold = -1;
+    String spillDirectory;
+    long heartBeatSendInterval;
+    long heartBeatReceiveInterval;
+    int autoFlushSize;
+    long autoFlushDelay;
+    boolean useVirtualThreads;
+    boolean cumulativeReceipts;
+    int multiplexedConnections;
+    long sendHighWatermark;
+    long sendLowWatermark;
+    long sendTimeout = -1;
+    int asyncSendWindow = 100;
+    // the channels the sessions share when multiplexing.
+    final ArrayList<StompChannel> shared = new ArrayList<StompChannel>();
 
     StompJmsPrefetch prefetch = new StompJmsPrefetch();
+    StompJmsAckBatch ackBatch = new StompJmsAckBatch();
 
     /**
      * @param brokerURI
@@ -79,6 +101,14 @@ public class StompJmsConnection implements Connection, TopicConnection, QueueCon
                     channel.close();
                     channel = null;
                 }
+                ArrayList<StompChannel> channels;
+                synchronized (this) {
+                    channels = new ArrayList<StompChannel>(shared);
+                    shared.clear();
+                }
+                for (StompChannel c : channels) {
+                    c.close();
+                }
             } catch (Exception e) {
                 throw StompJmsExceptionSupport.create(e);
             }
@@ -337,12 +367,31 @@ public class StompJmsConnection implements Connection, TopicConnection, QueueCon
         rc.setOmitHost(omitHost);
         rc.setSslContext(sslContext);
         rc.setDisconnectTimeout(disconnectTimeout);
+        rc.setFramePoolSize(framePoolSize);
+        rc.setFramePoolDebug(framePoolDebug);
+        rc.setCompressionThreshold(compressionThreshold);
+        rc.setCompressionLevel(compressionLevel);
+        rc.setSpillThreshold(spillThreshold);
+        rc.setSpillDirectory(spillDirectory);
+        rc.setHeartBeatSendInterval(heartBeatSendInterval);
+        rc.setHeartBeatReceiveInterval(heartBeatReceiveInterval);
+        rc.setAutoFlushSize(autoFlushSize);
+        rc.setAutoFlushDelay(autoFlushDelay);
+        rc.setUseVirtualThreads(useVirtualThreads);
+        rc.setCumulativeReceipts(cumulativeReceipts);
+        rc.setSendHighWatermark(sendHighWatermark);
+        rc.setSendLowWatermark(sendLowWatermark);
+        rc.setSendTimeout(sendTimeout);
+        rc.setAsyncSendWindow(asyncSendWindow);
         rc.setExceptionListener(this.exceptionListener);
         rc.setChannelId(clientId + "-" + clientNumber++);
         return rc;
     }
 
     protected StompChannel getChannel() throws JMSException {
+        if( isMultiplexed() ) {
+            return sharedChannel(false);
+        }
         StompChannel rc;
         synchronized (this) {
             if(channel == null) {
@@ -356,6 +405,9 @@ public class StompJmsConnection implements Connection, TopicConnection, QueueCon
 
     protected StompChannel createChannel(StompJmsSession s) throws JMSException {
         checkClosed();
+        if( isMultiplexed() ) {
+            return sharedChannel(true);
+        }
         StompChannel rc;
         synchronized (this) {
             if(channel != null) {
@@ -370,7 +422,42 @@ public class StompJmsConnection implements Connection, TopicConnection, QueueCon
         return rc;
     }
 
+    /**
+     * @param session true if a session is going to use the channel.
+     * @return the shared channel with the fewest sessions, a new one
+     * until there are multiplexedConnections of them.
+     */
+    private StompChannel sharedChannel(boolean session) throws JMSException {
+        StompChannel rc = null;
+        synchronized (this) {
+            if( shared.size() < multiplexedConnections && (session || shared.isEmpty()) ) {
+                rc = createChannel();
+                rc.shared = true;
+                shared.add(rc);
+            } else {
+                for (StompChannel c : shared) {
+                    if( rc == null || c.sessions < rc.sessions ) {
+                        rc = c;
+                    }
+                }
+            }
+            if( session ) {
+                rc.sessions++;
+            }
+        }
+        rc.connect();
+        return rc;
+    }
+
     protected void removeSession(StompJmsSession s, StompChannel channel) throws JMSException {
+        if( channel!=null && channel.shared ) {
+            // it's closed along with the connection.
+            synchronized (this) {
+                this.sessions.remove(s);
+                channel.sessions--;
+            }
+            return;
+        }
         synchronized (this) {
             this.sessions.remove(s);
             if( channel!=null && this.channel==null ) {
@@ -395,6 +482,10 @@ public class StompJmsConnection implements Connection, TopicConnection, QueueCon
         }
     }
 
+    boolean isClosed() {
+        return closed.get();
+    }
+
     private void connect() throws JMSException {
         if (connected.compareAndSet(false, true)) {
             getChannel();
@@ -475,6 +566,14 @@ public class StompJmsConnection implements Connection, TopicConnection, QueueCon
         this.prefetch = prefetch;
     }
 
+    public StompJmsAckBatch getAckBatch() {
+        return ackBatch;
+    }
+
+    public void setAckBatch(StompJmsAckBatch ackBatch) {
+        this.ackBatch = ackBatch;
+    }
+
     public long getDisconnectTimeout() {
         return disconnectTimeout;
     }
@@ -483,6 +582,233 @@ public class StompJmsConnection implements Connection, TopicConnection, QueueCon
         this.disconnectTimeout = disconnectTimeout;
     }
 
+    public int getFramePoolSize() {
+        return framePoolSize;
+    }
+
+    public void setFramePoolSize(int framePoolSize) {
+        this.framePoolSize = framePoolSize;
+    }
+
+    public boolean isFramePoolDebug() {
+        return framePoolDebug;
+    }
+
+    public void setFramePoolDebug(boolean framePoolDebug) {
+        this.framePoolDebug = framePoolDebug;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public long getHeartBeatSendInterval() {
+        return heartBeatSendInterval;
+    }
+
+    public void setHeartBeatSendInterval(long heartBeatSendInterval) {
+        this.heartBeatSendInterval = heartBeatSendInterval;
+    }
+
+    public long getHeartBeatReceiveInterval() {
+        return heartBeatReceiveInterval;
+    }
+
+    public void setHeartBeatReceiveInterval(long heartBeatReceiveInterval) {
+        this.heartBeatReceiveInterval = heartBeatReceiveInterval;
+    }
+
+    public int getAutoFlushSize() {
+        return autoFlushSize;
+    }
+
+    public void setAutoFlushSize(int autoFlushSize) {
+        this.autoFlushSize = autoFlushSize;
+    }
+
+    public long getAutoFlushDelay() {
+        return autoFlushDelay;
+    }
+
+    public void setAutoFlushDelay(long autoFlushDelay) {
+        this.autoFlushDelay = autoFlushDelay;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    public boolean isCumulativeReceipts() {
+        return cumulativeReceipts;
+    }
+
+    public void setCumulativeReceipts(boolean cumulativeReceipts) {
+        this.cumulativeReceipts = cumulativeReceipts;
+    }
+
+    public int getMultiplexedConnections() {
+        return multiplexedConnections;
+    }
+
+    /**
+     * @see StompJmsConnectionFactory#setMultiplexedConnections(int)
+     */
+    public void setMultiplexedConnections(int multiplexedConnections) {
+        this.multiplexedConnections = multiplexedConnections;
+    }
+
+    boolean isMultiplexed() {
+        return multiplexedConnections > 0;
+    }
+
+    public long getSendHighWatermark() {
+        return sendHighWatermark;
+    }
+
+    public void setSendHighWatermark(long sendHighWatermark) {
+        this.sendHighWatermark = sendHighWatermark;
+    }
+
+    public long getSendLowWatermark() {
+        return sendLowWatermark;
+    }
+
+    public void setSendLowWatermark(long sendLowWatermark) {
+        this.sendLowWatermark = sendLowWatermark;
+    }
+
+    public long getSendTimeout() {
+        return sendTimeout;
+    }
+
+    public void setSendTimeout(long sendTimeout) {
+        this.sendTimeout = sendTimeout;
+    }
+
+    public int getAsyncSendWindow() {
+        return asyncSendWindow;
+    }
+
+    public void setAsyncSendWindow(int asyncSendWindow) {
+        this.asyncSendWindow = asyncSendWindow;
+    }
+
+    /**
+     * @return how many sends waited for the send window of their channel.
+     */
+    public long getBlockedSendCount() {
+        long rc = 0;
+        for (StompChannel c : channels()) {
+            rc += c.getBlockedSendCount();
+        }
+        return rc;
+    }
+
+    /**
+     * @return the time in ms the sends waited for the send windows in total.
+     */
+    public long getTotalBlockedSendTime() {
+        long rc = 0;
+        for (StompChannel c : channels()) {
+            rc += c.getTotalBlockedSendTime();
+        }
+        return rc;
+    }
+
+    /**
+     * @return how many sends failed because the send window of their
+     * channel stayed full.
+     */
+    public long getRejectedSendCount() {
+        long rc = 0;
+        for (StompChannel c : channels()) {
+            rc += c.getRejectedSendCount();
+        }
+        return rc;
+    }
+
+    /**
+     * @return how many times the channels of the connection failed over
+     * to a new broker connection.
+     */
+    public long getReconnectCount() {
+        long rc = 0;
+        for (StompChannel c : channels()) {
+            rc += c.getReconnectCount();
+        }
+        return rc;
+    }
+
+    /**
+     * @return the longest time in ms the last failover of a channel took.
+     */
+    public long getLastReconnectTime() {
+        long rc = 0;
+        for (StompChannel c : channels()) {
+            rc = Math.max(rc, c.getLastReconnectTime());
+        }
+        return rc;
+    }
+
+    /**
+     * @return the time in ms the channels spent failing over in total.
+     */
+    public long getTotalReconnectTime() {
+        long rc = 0;
+        for (StompChannel c : channels()) {
+            rc += c.getTotalReconnectTime();
+        }
+        return rc;
+    }
+
+    private List<StompChannel> channels() {
+        ArrayList<StompChannel> rc = new ArrayList<StompChannel>();
+        synchronized (this) {
+            if( channel!=null ) {
+                rc.add(channel);
+            }
+            rc.addAll(shared);
+        }
+        for (StompJmsSession s : sessions) {
+            if( s.channel!=null && !s.channel.shared ) {
+                rc.add(s.channel);
+            }
+        }
+        return rc;
+    }
+
     /*
      * New Methods from switching to jakarta.jms.
      */
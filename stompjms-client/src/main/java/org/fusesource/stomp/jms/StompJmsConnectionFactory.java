@@ -11,6 +11,7 @@
 package org.fusesource.stomp.jms;
 
 
+import org.fusesource.stomp.client.Stomp;
 import org.fusesource.stomp.jms.jndi.JNDIStorable;
 import org.fusesource.stomp.jms.util.PropertyUtil;
 
@@ -21,6 +22,7 @@ import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.zip.Deflater;
 
 /**
  * Jms ConnectionFactory implementation
@@ -39,7 +41,25 @@ public class StompJmsConnectionFactory extends JNDIStorable implements Connectio
     String tempQueuePrefix = "/temp-queue/";
     String tempTopicPrefix = "/temp-topic/";
     long disconnectTimeout = 10000;
+    int framePoolSize;
+    boolean framePoolDebug;
+    int compressionThreshold = -1;
+    int compressionLevel = Deflater.BEST_SPEED;
+    int spillThreshold = -1;
+    String spillDirectory;
+    long heartBeatSendInterval;
+    long heartBeatReceiveInterval;
+    int autoFlushSize;
+    long autoFlushDelay;
+    boolean useVirtualThreads = Stomp.isVirtualThreadsDefault();
+    boolean cumulativeReceipts;
+    int multiplexedConnections;
+    long sendHighWatermark;
+    long sendLowWatermark;
+    long sendTimeout = -1;
+    int asyncSendWindow = 100;
     StompJmsPrefetch prefetch = new StompJmsPrefetch();
+    StompJmsAckBatch ackBatch = new StompJmsAckBatch();
 
     /**
      * Constructor
@@ -301,6 +321,216 @@ public class StompJmsConnectionFactory extends JNDIStorable implements Connectio
         this.disconnectTimeout = disconnectTimeout;
     }
 
+    public int getFramePoolSize() {
+        return framePoolSize;
+    }
+
+    public void setFramePoolSize(int framePoolSize) {
+        this.framePoolSize = framePoolSize;
+    }
+
+    public boolean isFramePoolDebug() {
+        return framePoolDebug;
+    }
+
+    public void setFramePoolDebug(boolean framePoolDebug) {
+        this.framePoolDebug = framePoolDebug;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Message bodies of at least this many bytes are sent deflated.  The
+     * consuming client inflates them again, which it only does when its
+     * threshold is set too.  Set to -1 (the default) to disable compression.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel the {@link Deflater} compression level, 0-9.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Received message bodies larger than this many bytes are spilled to a
+     * memory mapped temp file instead of being held on the heap.  The
+     * BytesMessages read them straight from the file, the other message
+     * types copy them onto the heap when read.  Set to -1 (the default) to
+     * disable spilling.
+     *
+     * @see org.fusesource.stomp.client.Stomp#setSpillThreshold(int)
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @param spillDirectory the directory the spill files are created in,
+     * defaults to the temp directory.
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public long getHeartBeatSendInterval() {
+        return heartBeatSendInterval;
+    }
+
+    /**
+     * @see org.fusesource.stomp.client.Stomp#setHeartBeatSendInterval(long)
+     */
+    public void setHeartBeatSendInterval(long heartBeatSendInterval) {
+        this.heartBeatSendInterval = heartBeatSendInterval;
+    }
+
+    public long getHeartBeatReceiveInterval() {
+        return heartBeatReceiveInterval;
+    }
+
+    /**
+     * @see org.fusesource.stomp.client.Stomp#setHeartBeatReceiveInterval(long)
+     */
+    public void setHeartBeatReceiveInterval(long heartBeatReceiveInterval) {
+        this.heartBeatReceiveInterval = heartBeatReceiveInterval;
+    }
+
+    public int getAutoFlushSize() {
+        return autoFlushSize;
+    }
+
+    /**
+     * @see org.fusesource.stomp.client.Stomp#setAutoFlushSize(int)
+     */
+    public void setAutoFlushSize(int autoFlushSize) {
+        this.autoFlushSize = autoFlushSize;
+    }
+
+    public long getAutoFlushDelay() {
+        return autoFlushDelay;
+    }
+
+    /**
+     * @see org.fusesource.stomp.client.Stomp#setAutoFlushDelay(long)
+     */
+    public void setAutoFlushDelay(long autoFlushDelay) {
+        this.autoFlushDelay = autoFlushDelay;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Runs the blocking transport tasks and the session dispatch threads
+     * on virtual threads so that thousands of sessions don't need
+     * thousands of platform threads.  Ignored on JVMs without virtual
+     * thread support.
+     *
+     * @see org.fusesource.stomp.client.Stomp#setUseVirtualThreads(boolean)
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    public boolean isCumulativeReceipts() {
+        return cumulativeReceipts;
+    }
+
+    /**
+     * @see org.fusesource.stomp.client.Stomp#setCumulativeReceipts(boolean)
+     */
+    public void setCumulativeReceipts(boolean cumulativeReceipts) {
+        this.cumulativeReceipts = cumulativeReceipts;
+    }
+
+    public int getMultiplexedConnections() {
+        return multiplexedConnections;
+    }
+
+    /**
+     * Lets the sessions of a connection share this many broker connections
+     * instead of opening one each.  Their transactions and subscriptions
+     * are kept apart by their ids, and their consumers are flow controlled
+     * with the broker's prefetch credit instead of by suspending the shared
+     * socket, so server auto acknowledged consumers send acks on a shared
+     * connection.  0, the default, gives every session its own connection.
+     */
+    public void setMultiplexedConnections(int multiplexedConnections) {
+        this.multiplexedConnections = multiplexedConnections;
+    }
+
+    public long getSendHighWatermark() {
+        return sendHighWatermark;
+    }
+
+    /**
+     * The size in bytes of the SEND frames a channel holds before its
+     * producers have to wait for them to be written.  0, the default, uses
+     * the write buffer size of the connection.
+     */
+    public void setSendHighWatermark(long sendHighWatermark) {
+        this.sendHighWatermark = sendHighWatermark;
+    }
+
+    public long getSendLowWatermark() {
+        return sendLowWatermark;
+    }
+
+    /**
+     * The size in bytes the held frames have to be written down to before
+     * the waiting producers may send again.  0, the default, is half the
+     * high watermark.
+     */
+    public void setSendLowWatermark(long sendLowWatermark) {
+        this.sendLowWatermark = sendLowWatermark;
+    }
+
+    public long getSendTimeout() {
+        return sendTimeout;
+    }
+
+    /**
+     * How long in ms an asynchronous send waits for the channel to get
+     * below its low watermark before it fails with a
+     * ResourceAllocationException.  0 fails the send right away, -1, the
+     * default, waits for as long as it takes.  The producers waiting on a
+     * channel get to send in the order they started waiting.
+     */
+    public void setSendTimeout(long sendTimeout) {
+        this.sendTimeout = sendTimeout;
+    }
+
+    public int getAsyncSendWindow() {
+        return asyncSendWindow;
+    }
+
+    /**
+     * How many sends with a CompletionListener a channel lets wait for
+     * their receipt at the same time, 100 by default.  Once they are all
+     * waiting, the next one waits for a receipt for up to the send timeout.
+     */
+    public void setAsyncSendWindow(int asyncSendWindow) {
+        this.asyncSendWindow = asyncSendWindow;
+    }
+
     public StompJmsPrefetch getPrefetch() {
         return prefetch;
     }
@@ -309,6 +539,19 @@ public class StompJmsConnectionFactory extends JNDIStorable implements Connectio
         this.prefetch = prefetch;
     }
 
+    public StompJmsAckBatch getAckBatch() {
+        return ackBatch;
+    }
+
+    /**
+     * How the consumers batch their acks, it's off by default.
+     *
+     * @see StompJmsAckBatch
+     */
+    public void setAckBatch(StompJmsAckBatch ackBatch) {
+        this.ackBatch = ackBatch;
+    }
+
     public SSLContext getSslContext() {
         return sslContext;
     }
@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+
+package org.fusesource.stomp.jms;
+
+import jakarta.jms.ExceptionListener;
+import jakarta.jms.JMSException;
+import jakarta.jms.Session;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>
+ * A connection kept by a {@link PooledStompJmsConnectionFactory} along
+ * with its idle sessions.  Each of those sessions has its own STOMP
+ * connection to the broker, so handing out an idle one saves the TCP and
+ * CONNECT handshake that creating a session costs.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StompJmsConnectionPool implements ExceptionListener {
+
+    /**
+     * A pooled session and the anonymous producer the pooled producers
+     * created on it share.
+     */
+    static class SessionHolder {
+        final StompJmsSession session;
+        final int key;
+        StompJmsMessageProducer producer;
+        long lastUsed;
+
+        SessionHolder(StompJmsSession session, int key) {
+            this.session = session;
+            this.key = key;
+        }
+
+        StompJmsMessageProducer producer() throws JMSException {
+            if( producer == null ) {
+                producer = (StompJmsMessageProducer) session.createProducer(null);
+            }
+            return producer;
+        }
+    }
+
+    final StompJmsConnection connection;
+    final CopyOnWriteArrayList<PooledStompJmsConnection> handles = new CopyOnWriteArrayList<PooledStompJmsConnection>();
+    private final HashMap<Integer, ArrayDeque<SessionHolder>> idle = new HashMap<Integer, ArrayDeque<SessionHolder>>();
+    private final int maxSessions;
+    private final long blockTimeout;
+    private int idleSessions;
+    private int borrowedSessions;
+    int references;
+    long lastUsed = System.currentTimeMillis();
+    volatile boolean expired;
+
+    StompJmsConnectionPool(StompJmsConnection connection, int maxSessions, long blockTimeout) {
+        this.connection = connection;
+        this.maxSessions = maxSessions;
+        this.blockTimeout = blockTimeout;
+        connection.setExceptionListener(this);
+    }
+
+    boolean isValid() {
+        return !expired && !connection.isClosed();
+    }
+
+    /**
+     * Hands out an idle session with the same mode, or creates one.  Once
+     * the connection has as many sessions as allowed, idle sessions of
+     * other modes are closed to make room, and failing that the caller
+     * waits for a session to be returned.
+     */
+    SessionHolder borrowSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        int key = transacted ? Session.SESSION_TRANSACTED : acknowledgeMode;
+        ArrayList<SessionHolder> closing = new ArrayList<SessionHolder>();
+        try {
+            synchronized (this) {
+                long deadline = blockTimeout < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + blockTimeout;
+                while (true) {
+                    if( !isValid() ) {
+                        throw new jakarta.jms.IllegalStateException("The pooled connection has failed");
+                    }
+                    ArrayDeque<SessionHolder> sessions = idle.get(key);
+                    while (sessions != null && !sessions.isEmpty()) {
+                        // the most recently used one is the least likely to be stale.
+                        SessionHolder holder = sessions.pollLast();
+                        idleSessions--;
+                        if( !holder.session.closed.get() ) {
+                            borrowedSessions++;
+                            return holder;
+                        }
+                    }
+                    if( maxSessions <= 0 || borrowedSessions + idleSessions < maxSessions ) {
+                        break;
+                    }
+                    SessionHolder other = removeOldestIdle();
+                    if( other!=null ) {
+                        closing.add(other);
+                        break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if( remaining <= 0 ) {
+                        throw new jakarta.jms.IllegalStateException("All the " + maxSessions + " sessions of the pooled connection are in use");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw StompJmsExceptionSupport.create(e);
+                    }
+                }
+                borrowedSessions++;
+            }
+        } finally {
+            close(closing);
+        }
+
+        try {
+            return new SessionHolder((StompJmsSession) connection.createSession(transacted, acknowledgeMode), key);
+        } catch (JMSException e) {
+            synchronized (this) {
+                borrowedSessions--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param reusable false if the session has state which prevents handing
+     * it out again.
+     */
+    void returnSession(SessionHolder holder, boolean reusable) {
+        synchronized (this) {
+            borrowedSessions--;
+            notifyAll();
+            if( reusable && isValid() && !holder.session.closed.get() ) {
+                holder.lastUsed = System.currentTimeMillis();
+                ArrayDeque<SessionHolder> sessions = idle.get(holder.key);
+                if( sessions == null ) {
+                    sessions = new ArrayDeque<SessionHolder>();
+                    idle.put(holder.key, sessions);
+                }
+                sessions.addLast(holder);
+                idleSessions++;
+                return;
+            }
+        }
+        try {
+            holder.session.close();
+        } catch (JMSException ignore) {
+        }
+    }
+
+    private SessionHolder removeOldestIdle() {
+        SessionHolder rc = null;
+        for (ArrayDeque<SessionHolder> sessions : idle.values()) {
+            SessionHolder first = sessions.peekFirst();
+            if( first!=null && (rc == null || first.lastUsed < rc.lastUsed) ) {
+                rc = first;
+            }
+        }
+        if( rc!=null ) {
+            idle.get(rc.key).pollFirst();
+            idleSessions--;
+        }
+        return rc;
+    }
+
+    /**
+     * Removes the sessions which have been idle since before the given time.
+     */
+    synchronized void evictSessions(long idleSince, List<SessionHolder> rc) {
+        for (ArrayDeque<SessionHolder> sessions : idle.values()) {
+            for (Iterator<SessionHolder> i = sessions.iterator(); i.hasNext(); ) {
+                SessionHolder holder = i.next();
+                if( holder.lastUsed < idleSince ) {
+                    i.remove();
+                    idleSessions--;
+                    rc.add(holder);
+                }
+            }
+        }
+    }
+
+    synchronized int getIdleSessions() {
+        return idleSessions;
+    }
+
+    synchronized int getBorrowedSessions() {
+        return borrowedSessions;
+    }
+
+    static void close(List<SessionHolder> sessions) {
+        for (SessionHolder holder : sessions) {
+            try {
+                holder.session.close();
+            } catch (JMSException ignore) {
+            }
+        }
+    }
+
+    void close() {
+        try {
+            connection.close();
+        } catch (JMSException ignore) {
+        }
+    }
+
+    public void onException(JMSException exception) {
+        // don't hand the connection out anymore, the borrowers get to know.
+        expired = true;
+        for (PooledStompJmsConnection handle : handles) {
+            ExceptionListener l = handle.exceptionListener;
+            if( l!=null ) {
+                l.onException(exception);
+            }
+        }
+    }
+}
@@ -11,7 +11,7 @@
 package org.fusesource.stomp.jms;
 
 import org.fusesource.hawtbuf.AsciiBuffer;
-import org.fusesource.stomp.codec.StompFrame;
+import org.fusesource.stomp.codec.HeaderCache;
 import org.fusesource.stomp.jms.jndi.JNDIStorable;
 
 import jakarta.jms.InvalidDestinationException;
@@ -65,7 +65,7 @@ public class StompJmsDestination extends JNDIStorable implements Externalizable,
 
     public AsciiBuffer toBuffer() {
         if (buffer == null) {
-            buffer = StompFrame.encodeHeader(toString());
+            buffer = HeaderCache.DEFAULT.encode(toString());
         }
         return buffer;
     }
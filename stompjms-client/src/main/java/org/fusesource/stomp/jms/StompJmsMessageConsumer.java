@@ -43,6 +43,9 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
     final MessageQueue messageQueue;
     final Lock lock = new ReentrantLock();
     final AtomicBoolean suspendedConnection = new AtomicBoolean();
+    final AckBatcher ackBatcher;
+    // the message last received in at least once mode, it's acked on the next receive.
+    StompJmsMessage delivered;
 
     protected StompJmsMessageConsumer(final AsciiBuffer id, StompJmsSession s, StompJmsDestination destination, String selector) throws JMSException {
         this.id = id;
@@ -55,12 +58,40 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
         } else {
             this.messageQueue = new MessageQueue(session.consumerMessageBufferSize);
         }
+        if( session.ackBatch.isEnabled() && session.acknowledgementMode!=Session.SESSION_TRANSACTED && !tcpFlowControl() ) {
+            this.ackBatcher = new AckBatcher(this, session.ackBatch, individualAcks());
+        } else {
+            this.ackBatcher = null;
+        }
+    }
+
+    /**
+     * @return true if the consumer subscribes with 'client-individual'
+     * instead of cumulative 'client' acks.
+     */
+    public boolean individualAcks() {
+        switch( session.acknowledgementMode ) {
+            case Session.CLIENT_ACKNOWLEDGE:
+            case Session.SESSION_TRANSACTED:
+                return false;
+            default:
+                return session.ackBatch.isIndividual() && !tcpFlowControl();
+        }
+    }
+
+    /**
+     * @return true if the messages of an AUTO_ACKNOWLEDGE session are acked
+     * after the application got them.
+     */
+    boolean ackAfterDelivery() {
+        return session.acknowledgementMode==Session.AUTO_ACKNOWLEDGE && session.ackBatch.isAtLeastOnce();
     }
 
     public boolean tcpFlowControl() {
         // Then the STOMP client does not need to issue acks to the server, we suspend
-        // TCP reads to avoid memory overruns.
-        return session.acknowledgementMode==StompJmsSession.SERVER_AUTO_ACKNOWLEDGE;
+        // TCP reads to avoid memory overruns, unless other sessions share the
+        // connection.
+        return session.acknowledgementMode==StompJmsSession.SERVER_AUTO_ACKNOWLEDGE && !session.connection.isMultiplexed();
     }
 
     public void init() throws JMSException {
@@ -82,6 +113,11 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
      */
     public void close() throws JMSException {
         if(closed.compareAndSet(false, true)) {
+            ackDelivered();
+            if( ackBatcher!=null && !ackBatcher.held && session.channel!=null ) {
+                // the broker gets the acks before the unsubscribe.
+                ackBatcher.flush(false);
+            }
             this.session.remove(this);
             if( suspendedConnection.compareAndSet(true, false) ) {
                 session.channel.connection().resume();
@@ -113,7 +149,8 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
     public Message receive() throws JMSException {
         checkClosed();
         try {
-            return copy(ack(this.messageQueue.dequeue(-1)));
+            ackDelivered();
+            return received(this.messageQueue.dequeue(-1));
         } catch (Exception e) {
             throw StompJmsExceptionSupport.create(e);
         }
@@ -128,7 +165,8 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
     public Message receive(long timeout) throws JMSException {
         checkClosed();
         try {
-            return copy(ack(this.messageQueue.dequeue(timeout)));
+            ackDelivered();
+            return received(this.messageQueue.dequeue(timeout));
         } catch (InterruptedException e) {
             throw StompJmsExceptionSupport.create(e);
         }
@@ -141,10 +179,45 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
      */
     public Message receiveNoWait() throws JMSException {
         checkClosed();
-        Message result = copy(ack(this.messageQueue.dequeueNoWait()));
+        ackDelivered();
+        Message result = received(this.messageQueue.dequeueNoWait());
         return result;
     }
 
+    private StompJmsMessage received(StompJmsMessage message) throws JMSException {
+        if( message!=null && ackAfterDelivery() ) {
+            delivered = message;
+            return message.copy();
+        }
+        return copy(ack(message));
+    }
+
+    /**
+     * Acks the message received before, in at least once mode.
+     */
+    private void ackDelivered() {
+        StompJmsMessage message = delivered;
+        if( message!=null ) {
+            delivered = null;
+            ack(message);
+            message.getFrame().release();
+        }
+    }
+
+    /**
+     * Hands a message to the listener.  In at least once mode it's only
+     * acked once the listener returned.
+     */
+    private void deliver(MessageListener listener, StompJmsMessage message) throws JMSException {
+        if( ackAfterDelivery() ) {
+            listener.onMessage(message.copy());
+            ack(message);
+            message.getFrame().release();
+        } else {
+            listener.onMessage(copy(ack(message)));
+        }
+    }
+
     /**
      * @param listener
      * @throws JMSException
@@ -168,12 +241,32 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
         if( message == null ) {
             return null;
         }
-        return message.copy();
+        StompJmsMessage rc = message.copy();
+        switch( session.acknowledgementMode ) {
+            case Session.CLIENT_ACKNOWLEDGE:
+            case Session.SESSION_TRANSACTED:
+                // the original is still needed for the ack or a rollback.
+                break;
+            default:
+                // it's been acked and the app only sees the copy, so the
+                // received frame can be recycled if the connection pools them.
+                message.getFrame().release();
+        }
+        return rc;
     }
 
     StompJmsMessage ack(final StompJmsMessage message) {
         if( message!=null ) {
             if( message.getAcknowledgeCallback()!=null ) {
+                if( ackBatcher!=null ) {
+                    // held until acknowledge() flushes it.
+                    try {
+                        ackBatcher.add(message);
+                    } catch (JMSException e) {
+                        session.connection.onException(e);
+                        throw new RuntimeException(e);
+                    }
+                }
                 // Message has been received by the app.. expand the credit window
                 // so that we receive more messages.
                 StompFrame frame = session.channel.serverAdaptor.createCreditFrame(this, message.getFrame());
@@ -199,6 +292,23 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
                     session.channel.connection().resume();
                 }
             }
+        } else if( ackBatcher!=null ) {
+            try {
+                if( ackBatcher.held ) {
+                    // acknowledge(), the message was added when it was received.
+                    ackBatcher.flush(true);
+                } else {
+                    ackBatcher.add(message);
+                    if( this.messageQueue.isEmpty() ) {
+                        // nothing else to ack soon, so the broker may be holding
+                        // back messages until it gets these acks.
+                        ackBatcher.flush(true);
+                    }
+                }
+            } catch (JMSException e) {
+                session.connection.onException(e);
+                throw new RuntimeException(e);
+            }
         } else {
             try {
                 StompChannel channel = session.channel;
@@ -223,7 +333,10 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
                         ack.onSuccess(null);
                         break;
                     case StompJmsSession.SERVER_AUTO_ACKNOWLEDGE:
-                        throw new IllegalStateException("This should never get called.");
+                        // only when multiplexed, the ack just returns the credit.
+                        channel.ackMessage(id,  message.getMessageID(), null, null);
+                        ack.onSuccess(null);
+                        break;
                 }
                 ack.await();
 
@@ -272,7 +385,7 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
                     StompJmsMessage message;
                     while( session.isStarted() && (message=messageQueue.dequeueNoWait()) !=null ) {
                         try {
-                            messageListener.onMessage(copy(ack(message)));
+                            deliver(messageListener, message);
                         } catch (Exception e) {
                             session.connection.onException(e);
                         }
@@ -333,7 +446,7 @@ public class StompJmsMessageConsumer implements MessageConsumer, StompJmsMessage
                 for (StompJmsMessage m : drain) {
                     final StompJmsMessage copy;
                     try {
-                        listener.onMessage(copy(ack(m)));
+                        deliver(listener, m);
                     } catch (Exception e) {
                         session.connection.onException(e);
                     }
@@ -240,19 +240,66 @@ public class StompJmsMessageProducer implements MessageProducer {
         throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
     }
 
-    public void send(Message m, CompletionListener cl) {
-        throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
+    /**
+     * @param message
+     * @param completionListener
+     * @throws JMSException
+     * @see jakarta.jms.MessageProducer#send(jakarta.jms.Message, jakarta.jms.CompletionListener)
+     */
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        send(this.destination, message, this.deliveryMode, this.priority, this.timeToLive, completionListener);
     }
 
-    public void send(Destination d, Message m, CompletionListener cl) {
-        throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
+    /**
+     * @param destination
+     * @param message
+     * @param completionListener
+     * @throws JMSException
+     * @see jakarta.jms.MessageProducer#send(jakarta.jms.Destination, jakarta.jms.Message, jakarta.jms.CompletionListener)
+     */
+    public void send(Destination destination, Message message, CompletionListener completionListener) throws JMSException {
+        send(destination, message, this.deliveryMode, this.priority, this.timeToLive, completionListener);
     }
 
-    public void send(Message m, int i1, int i2, long l, CompletionListener cl) {
-        throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
+    /**
+     * @param message
+     * @param deliveryMode
+     * @param priority
+     * @param timeToLive
+     * @param completionListener
+     * @throws JMSException
+     * @see jakarta.jms.MessageProducer#send(jakarta.jms.Message, int, int, long, jakarta.jms.CompletionListener)
+     */
+    public void send(Message message, int deliveryMode, int priority, long timeToLive, CompletionListener completionListener) throws JMSException {
+        send(this.destination, message, deliveryMode, priority, timeToLive, completionListener);
     }
 
-    public void send(Destination d, Message m, int i1, int i2, long l, CompletionListener cl) {
-        throw new UnsupportedOperationException("Please contact the maintainer to request implementation of this method.");
+    /**
+     * Sends the message without waiting for the broker's receipt, the
+     * listener learns whether the broker took it.  The channel lets a
+     * window of these sends wait for their receipt at the same time.
+     *
+     * @param destination
+     * @param message
+     * @param deliveryMode
+     * @param priority
+     * @param timeToLive
+     * @param completionListener
+     * @throws JMSException
+     * @see jakarta.jms.MessageProducer#send(jakarta.jms.Destination, jakarta.jms.Message, int, int, long, jakarta.jms.CompletionListener)
+     */
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+                     CompletionListener completionListener) throws JMSException {
+        if (completionListener == null) {
+            throw new IllegalArgumentException("The CompletionListener is null");
+        }
+        if (destination == null) {
+            throw new InvalidDestinationException("Don't understand null destinations");
+        }
+        if (!this.flexibleDestination && !destination.equals(this.destination)) {
+            throw new UnsupportedOperationException("This producer can only send messages to: "
+                    + this.destination.getName());
+        }
+        this.session.send(destination, message, deliveryMode, priority, timeToLive, disableMessageId, completionListener);
     }
 }
@@ -87,7 +87,7 @@ public class StompJmsQueueBrowser implements QueueBrowser, Enumeration {
                 if (message == null) {
                     browseDone.set(true);
                 } else {
-                    AsciiBuffer browser = message.getFrame().headerMap().get(BROWSER);
+                    AsciiBuffer browser = message.getFrame().getHeader(BROWSER);
                     if (browser!=null && END.equals(browser)) {
                         browseDone.set(true);
                     } else {
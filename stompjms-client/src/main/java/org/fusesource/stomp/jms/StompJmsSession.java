@@ -14,12 +14,15 @@ import org.apache.activemq.apollo.filter.FilterException;
 import org.apache.activemq.apollo.selector.SelectorParser;
 import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.hawtbuf.ByteArrayOutputStream;
+import org.fusesource.stomp.client.Callback;
+import org.fusesource.stomp.client.Stomp;
 import org.fusesource.stomp.codec.StompFrame;
 import org.fusesource.stomp.jms.message.*;
 
 import jakarta.jms.*;
 import jakarta.jms.IllegalStateException;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +32,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import static org.fusesource.hawtbuf.Buffer.ascii;
 import static org.fusesource.stomp.client.Constants.AUTO;
 import static org.fusesource.stomp.client.Constants.CLIENT;
+import static org.fusesource.stomp.client.Constants.INDIVIDUAL;
 
 /**
  * JMS Session implementation
@@ -50,7 +54,18 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
     long consumerMessageBufferSize = 1024*64;
     LinkedBlockingQueue<StompJmsMessage> stoppedMessages = new LinkedBlockingQueue<StompJmsMessage>(10000);
     StompChannel channel;
+    // tells apart the message ids of the sessions sharing a channel.
+    AsciiBuffer channelSessionId;
     StompJmsPrefetch prefetch;
+    StompJmsAckBatch ackBatch;
+    // the asynchronous sends whose CompletionListener has not run yet,
+    // guarded by the session's monitor.
+    int pendingCompletions;
+    // the same sends in the order they were made, the consumers may have
+    // moved them to another channel so their receipts can come in out of
+    // order.
+    final ArrayDeque<Completion> completions = new ArrayDeque<Completion>();
+    volatile Thread completionThread;
 
     /**
      * Constructor
@@ -63,6 +78,7 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
         this.acknowledgementMode = acknowledgementMode;
         this.forceAsyncSend = forceAsyncSend;
         this.prefetch = new StompJmsPrefetch(connection.prefetch);
+        this.ackBatch = new StompJmsAckBatch(connection.ackBatch);
     }
 
     /////////////////////////////////////////////////////////////////////////
@@ -132,10 +148,17 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
         if (!getTransacted()) {
             throw new jakarta.jms.IllegalStateException("Not a transacted session");
         }
+        awaitCompletions();
         for (StompJmsMessageConsumer c : consumers.values()) {
             c.commit();
         }
-        getChannel().commitTransaction(currentTransactionId);
+        try {
+            getChannel().commitTransaction(currentTransactionId);
+        } catch (TransactionRolledBackException e) {
+            // a failover lost the transaction, carry on in a new one.
+            this.currentTransactionId = getChannel().startTransaction();
+            throw e;
+        }
         this.currentTransactionId = getChannel().startTransaction();
     }
 
@@ -148,6 +171,7 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
         if (!getTransacted()) {
             throw new jakarta.jms.IllegalStateException("Not a transacted session");
         }
+        awaitCompletions();
         for (StompJmsMessageConsumer c : consumers.values()) {
             c.rollback();
         }
@@ -174,11 +198,19 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
      * @see jakarta.jms.Session#close()
      */
     public void close() throws JMSException {
+        if( !closed.get() ) {
+            awaitCompletions();
+        }
         if (closed.compareAndSet(false, true)) {
             stop();
             for (StompJmsMessageConsumer c : new ArrayList<StompJmsMessageConsumer>(this.consumers.values())) {
                 c.close();
             }
+            if( channel!=null && channel.isShared() && currentTransactionId!=null ) {
+                // the broker only drops it with the connection.
+                channel.rollbackTransaction(currentTransactionId);
+                currentTransactionId = null;
+            }
             this.connection.removeSession(this, channel);
             channel = null;
         }
@@ -597,11 +629,16 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
         if(consumer.tcpFlowControl()) {
             getChannel().serverAckSubs.incrementAndGet();
         }
+        getChannel().route(consumer.getId(), this);
 
         AsciiBuffer mode;
-        if (this.acknowledgementMode == StompJmsSession.SERVER_AUTO_ACKNOWLEDGE) {
+        if (consumer.tcpFlowControl()) {
             mode = AUTO;
+        } else if (consumer.individualAcks()) {
+            mode = INDIVIDUAL;
         } else {
+            // a shared connection can't be suspended for one consumer, the
+            // acks hand the broker the credit for more messages instead.
             mode = CLIENT;
         }
 
@@ -626,6 +663,7 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
             getChannel().unsubscribe(consumer.getId(), false);
         }
         this.consumers.remove(consumer.getId());
+        getChannel().unroute(consumer.getId());
         if(consumer.tcpFlowControl()) {
             getChannel().serverAckSubs.decrementAndGet();
         }
@@ -650,12 +688,17 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
 
     protected void send(Destination dest, Message msg, int deliveryMode, int priority, long timeToLive, boolean disableMsgId)
             throws JMSException {
+        send(dest, msg, deliveryMode, priority, timeToLive, disableMsgId, null);
+    }
+
+    protected void send(Destination dest, Message msg, int deliveryMode, int priority, long timeToLive, boolean disableMsgId,
+                        CompletionListener completionListener) throws JMSException {
         StompJmsDestination destination = StompJmsMessageTransformation.transformDestination(connection, dest);
-        send(destination, msg, deliveryMode, priority, timeToLive, disableMsgId);
+        send(destination, msg, deliveryMode, priority, timeToLive, disableMsgId, completionListener);
     }
 
     private void send(StompJmsDestination destination, Message original, int deliveryMode, int priority,
-                      long timeToLive, boolean disableMsgId) throws JMSException {
+                      long timeToLive, boolean disableMsgId, CompletionListener completionListener) throws JMSException {
 
         original.setJMSDeliveryMode(deliveryMode);
         original.setJMSPriority(priority);
@@ -695,9 +738,9 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
         // delimited.  And if there are no consumers, then 
         // we know the TCP connection will not be getting flow controlled
         // by slow consumers, so it's safe to us it too. 
+        StompChannel target;
         if( consumers.isEmpty() || getTransacted()) {
-            StompChannel channel = getChannel();
-            channel.sendMessage(copy, currentTransactionId, sync);
+            target = getChannel();
         } else {
             // Non transacted session, with consumers.. they might end up
             // flow controlling the channel so lets publish the message
@@ -705,9 +748,115 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
             if( !disableMsgId ) {
                 copy.setMessageID(msgId);
             }
-            this.connection.getChannel().sendMessage(copy, currentTransactionId, sync);
+            target = this.connection.getChannel();
+        }
+        if( completionListener!=null ) {
+            // the receipt tells the listener the broker has the message.
+            Completion completion = new Completion(original, completionListener);
+            synchronized (this) {
+                pendingCompletions++;
+                completions.add(completion);
+            }
+            try {
+                target.sendMessage(copy, currentTransactionId, completion);
+            } catch (JMSException e) {
+                synchronized (this) {
+                    if( completions.removeLastOccurrence(completion) ) {
+                        completed();
+                    }
+                }
+                throw e;
+            }
+        } else {
+            target.sendMessage(copy, currentTransactionId, sync);
+        }
+    }
+
+    /**
+     * The receipt of an asynchronous send.  The listener runs on the
+     * session's thread, so the listeners of the session run one at a time,
+     * and only once the receipts of all the sends made before it came in,
+     * so they run in the order of the sends.
+     */
+    class Completion extends Callback<StompFrame> implements Runnable {
+        final Message message;
+        final CompletionListener listener;
+        boolean done;
+        Throwable failure;
+
+        Completion(Message message, CompletionListener listener) {
+            this.message = message;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSuccess(StompFrame value) {
+            complete(null);
+        }
+
+        @Override
+        public void onFailure(Throwable value) {
+            complete(value);
+        }
+
+        private void complete(Throwable failure) {
+            synchronized (StompJmsSession.this) {
+                this.failure = failure;
+                this.done = true;
+                runCompletions();
+            }
+        }
+
+        public void run() {
+            completionThread = Thread.currentThread();
+            try {
+                if( failure == null ) {
+                    listener.onCompletion(message);
+                } else {
+                    listener.onException(message, StompJmsExceptionSupport.create(failure));
+                }
+            } finally {
+                completionThread = null;
+                completed();
+            }
+        }
+    }
+
+    /**
+     * Hands the completed sends at the head of the queue to the session's
+     * thread.
+     */
+    private synchronized void runCompletions() {
+        Completion next;
+        while( (next = completions.peek())!=null && next.done ) {
+            completions.poll();
+            getExecutor().execute(next);
+        }
+    }
+
+    private synchronized void completed() {
+        if( --pendingCompletions == 0 ) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the CompletionListeners of the asynchronous sends to run.
+     */
+    private void awaitCompletions() throws JMSException {
+        if( Thread.currentThread() == completionThread ) {
+            throw new IllegalStateException("Not allowed in a CompletionListener of the session");
+        }
+        synchronized (this) {
+            while( pendingCompletions > 0 ) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JMSException("Interrupted");
+                }
+            }
         }
-        
     }
 
     protected void checkClosed() throws IllegalStateException {
@@ -787,6 +936,9 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
         if(this.channel == null) {
             checkClosed();
             this.channel = this.connection.createChannel(this);
+            if( this.channel.isShared() ) {
+                this.channelSessionId = this.channel.nextId();
+            }
         }
         return this.channel;
     }
@@ -801,9 +953,11 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
 
     protected void stop() throws JMSException {
         started.set(false);
-        if(executor!=null) {
-            executor.shutdown();
-            executor = null;
+        synchronized (this) {
+            if(executor!=null) {
+                executor.shutdown();
+                executor = null;
+            }
         }
         for (StompJmsMessageConsumer consumer : consumers.values()) {
             consumer.stop();
@@ -820,9 +974,18 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
 
     ExecutorService executor;
 
-    Executor getExecutor() {
+    // the completions ask for it on the channel's dispatch queue.
+    synchronized Executor getExecutor() {
         if( executor ==null ) {
-            executor = Executors.newSingleThreadExecutor();
+            ThreadFactory factory = null;
+            if( connection.isUseVirtualThreads() ) {
+                factory = Stomp.createVirtualThreadFactory("Stomp JMS Session ");
+            }
+            if( factory!=null ) {
+                executor = Executors.newSingleThreadExecutor(factory);
+            } else {
+                executor = Executors.newSingleThreadExecutor();
+            }
         }
         return executor;
     }
@@ -850,12 +1013,16 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
             session = connection.getChannel().sessionId();
         }
         AsciiBuffer id = ascii(Long.toString(nextMessageSwquence++));
-        ByteArrayOutputStream out = new ByteArrayOutputStream(3+session.length() + 1 + id.length());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(3+session.length() + 1 + id.length() + 12);
         out.write('I');
         out.write('D');
         out.write(':');
         out.write(session);
         out.write('-');
+        if( channel!=null && channelSessionId!=null ) {
+            out.write(channelSessionId);
+            out.write('-');
+        }
         out.write(id);
         return out.toBuffer().ascii();
     }
@@ -873,6 +1040,14 @@ public class StompJmsSession implements Session, QueueSession, TopicSession, Sto
         this.prefetch = prefetch;
     }
 
+    public StompJmsAckBatch getAckBatch() {
+        return ackBatch;
+    }
+
+    public void setAckBatch(StompJmsAckBatch ackBatch) {
+        this.ackBatch = ackBatch;
+    }
+
     /*
      * New Methods from switching to jakarta.jms.
      */
@@ -11,6 +11,7 @@ package org.fusesource.stomp.jms;
 
 import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.stomp.codec.StompFrame;
+import org.fusesource.stomp.jms.message.StompJmsMessage;
 
 import jakarta.jms.JMSException;
 import jakarta.jms.TemporaryQueue;
@@ -74,6 +75,13 @@ public class StompServerAdaptor {
         }
     }
 
+    /**
+     * Called before a message is sent.  Note that the frame encoder adds a
+     * content-length header to all frames with a body.
+     */
+    public void addSendHeaders(Map<AsciiBuffer, AsciiBuffer> headerMap, StompJmsMessage message) throws JMSException {
+    }
+
     public StompFrame createUnsubscribeFrame(AsciiBuffer consumerId, boolean persistent) throws JMSException {
         if (persistent) {
             throw new JMSException("Server does not support un-subscribing durable subscriptions over STOMP");
@@ -30,20 +30,26 @@ public class TxMessageQueue extends MessageQueue {
     }
 
     public void commit() {
-        synchronized (this) {
+        lock.lock();
+        try {
             removed.clear();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void rollback() {
-        synchronized (this) {
+        lock.lock();
+        try {
             for (QueueEntry entry : removed) {
                 entry.message.setJMSRedelivered(true);
                 list.addFirst(entry);
                 size += entry.size;
             }
             removed.clear();
-            this.notify();
+            changed.signal();
+        } finally {
+            lock.unlock();
         }
     }
 
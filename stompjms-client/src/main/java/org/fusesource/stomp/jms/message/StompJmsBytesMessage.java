@@ -14,6 +14,7 @@ import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.ByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.stomp.codec.StompFrame;
 import org.fusesource.stomp.jms.StompJmsExceptionSupport;
 
 import jakarta.jms.*;
@@ -742,6 +743,13 @@ public class StompJmsBytesMessage extends StompJmsMessage implements BytesMessag
     private void initializeReading() throws JMSException {
         checkWriteOnlyBody();
         if (dataIn == null) {
+            StompFrame frame = getFrame();
+            if (frame != null && frame.mappedContent() != null) {
+                // read the spilled body straight from its file.
+                dataIn = new DataInputStream(frame.contentStream());
+                this.length = frame.contentLength();
+                return;
+            }
             Buffer buffer = getContent();
             if (buffer==null) {
                 buffer = new Buffer(0);
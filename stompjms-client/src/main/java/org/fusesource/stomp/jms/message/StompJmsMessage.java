@@ -15,6 +15,7 @@ import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.stomp.jms.StompJmsConnection;
 import org.fusesource.stomp.jms.StompJmsDestination;
 import org.fusesource.stomp.jms.StompJmsExceptionSupport;
+import org.fusesource.stomp.codec.HeaderCache;
 import org.fusesource.stomp.codec.StompFrame;
 import org.fusesource.stomp.jms.util.TypeConversionSupport;
 import org.fusesource.stomp.jms.util.PropertyExpression;
@@ -49,6 +50,8 @@ public class StompJmsMessage implements jakarta.jms.Message {
         RESERVED_HEADER_NAMES.add(TRANSFORMATION);
         RESERVED_HEADER_NAMES.add(SUBSCRIPTION);
         RESERVED_HEADER_NAMES.add(CONTENT_LENGTH);
+        RESERVED_HEADER_NAMES.add(CONTENT_ENCODING);
+        RESERVED_HEADER_NAMES.add(AMQ_MESSAGE_TYPE);
         RESERVED_HEADER_NAMES.add(JMSX_DELIVERY_COUNT);
     }
 
@@ -189,7 +192,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     }
 
     private String getStringHeader(AsciiBuffer key) {
-        AsciiBuffer buffer = getHeaderMap().get(key);
+        AsciiBuffer buffer = getHeader(key);
         if( buffer == null ) {
             return null;
         } else {
@@ -205,7 +208,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     }
 
     private byte[] getBytesHeader(AsciiBuffer key) {
-        AsciiBuffer buffer = getHeaderMap().get(key);
+        AsciiBuffer buffer = getHeader(key);
         if( buffer == null ) {
             return null;
         } else {
@@ -221,7 +224,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     }
 
     private Integer getIntegerHeader(AsciiBuffer key) {
-        AsciiBuffer buffer = getHeaderMap().get(key);
+        AsciiBuffer buffer = getHeader(key);
         if( buffer == null ) {
             return null;
         } else {
@@ -237,7 +240,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     }
 
     private Long getLongHeader(AsciiBuffer key) {
-        AsciiBuffer buffer = getHeaderMap().get(key);
+        AsciiBuffer buffer = getHeader(key);
         if( buffer == null ) {
             return null;
         } else {
@@ -253,7 +256,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     }
 
     private Boolean getBooleanHeader(AsciiBuffer key) {
-        AsciiBuffer buffer = getHeaderMap().get(key);
+        AsciiBuffer buffer = getHeader(key);
         if( buffer == null ) {
             return null;
         } else {
@@ -269,7 +272,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     }
 
     private StompJmsDestination getDestinationHeader(AsciiBuffer key) throws JMSException {
-        AsciiBuffer buffer = getHeaderMap().get(key);
+        AsciiBuffer buffer = getHeader(key);
         if( buffer == null ) {
             return null;
         } else {
@@ -285,7 +288,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     }
 
     public AsciiBuffer getMessageID() {
-        return getHeaderMap().get(MESSAGE_ID);
+        return getHeader(MESSAGE_ID);
     }
 
     public String getJMSMessageID() {
@@ -427,7 +430,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     }
 
     public int getRedeliveryCounter() {
-        AsciiBuffer value = getHeaderMap().get(JMSX_DELIVERY_COUNT);
+        AsciiBuffer value = getHeader(JMSX_DELIVERY_COUNT);
         if( value == null ) {
             return 0;
         }
@@ -485,7 +488,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
     public void setProperty(String name, Object value) throws IOException {
         lazyCreateProperties();
         properties.put(name, value);
-        getHeaderMap().put(encodeHeader(name), encodeHeader(value.toString()));
+        getHeaderMap().put(HeaderCache.DEFAULT.encode(name), encodeHeader(value.toString()));
     }
 
     public void removeProperty(String name) throws IOException {
@@ -499,7 +502,7 @@ public class StompJmsMessage implements jakarta.jms.Message {
                 properties = new HashMap<String, Object>(getHeaderMap().size());
                 for (Map.Entry<AsciiBuffer, AsciiBuffer> entry: getHeaderMap().entrySet()){
                     if( !RESERVED_HEADER_NAMES.contains(entry.getKey()) ) {
-                        properties.put(decodeHeader(entry.getKey()), decodeHeader(entry.getValue()));
+                        properties.put(HeaderCache.DEFAULT.decode(entry.getKey()), decodeHeader(entry.getValue()));
                     }
                 }
             } else {
@@ -872,13 +875,17 @@ public class StompJmsMessage implements jakarta.jms.Message {
      * @return the consumerId
      */
     public AsciiBuffer getConsumerId() {
-        return getHeaderMap().get(SUBSCRIPTION);
+        return getHeader(SUBSCRIPTION);
     }
 
     protected Map<AsciiBuffer, AsciiBuffer> getHeaderMap() {
         return this.frame.headerMap(REVERSED_HEADER_NAMES);
     }
 
+    protected AsciiBuffer getHeader(AsciiBuffer key) {
+        return this.frame.getHeader(key, REVERSED_HEADER_NAMES);
+    }
+
     /**
      * @return the transactionId
      */
@@ -20,7 +20,6 @@ import org.fusesource.stomp.jms.message.*;
 import jakarta.jms.JMSException;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.util.Map;
 
 import static org.fusesource.stomp.client.Constants.CONTENT_TYPE;
 import static org.fusesource.stomp.client.Constants.TRANSFORMATION;
@@ -69,8 +68,7 @@ public class StompTranslator {
 //    }
 
     public static StompJmsMessage convert(StompFrame frame) throws JMSException {
-        Map<AsciiBuffer, AsciiBuffer> headers = frame.headerMap(StompJmsMessage.REVERSED_HEADER_NAMES);
-        AsciiBuffer type = headers.get(TRANSFORMATION);
+        AsciiBuffer type = frame.getHeader(TRANSFORMATION);
         if (type != null) {
             switch (StompJmsMessage.JmsMsgType.valueOf(type.toString())) {
                 case BYTES:
@@ -92,7 +90,7 @@ public class StompTranslator {
         }
 
         //TODO add more cases
-        type = headers.get(CONTENT_TYPE);
+        type = frame.getHeader(CONTENT_TYPE);
         if (type != null ) {
             String contentType = type.ascii().toString();
             if( contentType.startsWith("text") ||
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks that the AsyncConnection futures get completed by the frames
+ * the connection sends and receives.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class AsyncConnectionTest extends TestCase {
+
+    DispatchQueue queue = createQueue("test");
+    RecordingTransport transport = new RecordingTransport(queue);
+    AsyncConnection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final CountDownLatch latch = new CountDownLatch(1);
+        queue.execute(new Task() {
+            public void run() {
+                connection = new AsyncConnection(new CallbackConnection(transport, new StompFrame(CONNECTED)));
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testSend() throws Exception {
+        connection.send(new StompFrame(SEND)).get(5, TimeUnit.SECONDS);
+        assertEquals(1, transport.offered.size());
+    }
+
+    public void testRequest() throws Exception {
+        CompletableFuture<StompFrame> future = connection.request(new StompFrame(SUBSCRIBE));
+        AsciiBuffer id = sent(0).getHeader(RECEIPT_REQUESTED);
+        assertNotNull(id);
+        assertFalse(future.isDone());
+
+        deliver(receipt(id));
+        assertEquals(id, future.get(5, TimeUnit.SECONDS).getHeader(RECEIPT_ID));
+    }
+
+    public void testReceive() throws Exception {
+        // frames are kept until asked for
+        deliver(message("1"));
+        CompletableFuture<StompFrame> first = connection.receive();
+        CompletableFuture<StompFrame> second = connection.receive();
+        assertEquals(ascii("1"), first.get(5, TimeUnit.SECONDS).getHeader(MESSAGE_ID));
+        assertFalse(second.isDone());
+
+        // and futures are kept until a frame arrives.
+        deliver(message("2"));
+        assertEquals(ascii("2"), second.get(5, TimeUnit.SECONDS).getHeader(MESSAGE_ID));
+    }
+
+    public void testPipelining() throws Exception {
+        int count = 1000;
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            futures[i] = connection.request(new StompFrame(SEND)).thenCompose(new Function<StompFrame, CompletableFuture<Void>>() {
+                public CompletableFuture<Void> apply(StompFrame receipt) {
+                    assertTrue(queue.isExecuting());
+                    return connection.send(new StompFrame(ACK));
+                }
+            });
+        }
+        assertEquals(count, sent().length);
+        for (Object frame : sent()) {
+            deliver(receipt(((StompFrame) frame).getHeader(RECEIPT_REQUESTED)));
+        }
+        CompletableFuture.allOf(futures).get(5, TimeUnit.SECONDS);
+        assertEquals(count * 2, sent().length);
+    }
+
+    public void testFailure() throws Exception {
+        CompletableFuture<StompFrame> request = connection.request(new StompFrame(SUBSCRIBE));
+        CompletableFuture<StompFrame> receive = connection.receive();
+        sent(0);
+        final IOException error = new IOException("boom");
+        queue.execute(new Task() {
+            public void run() {
+                transport.listener.onTransportFailure(error);
+            }
+        });
+        assertFailed(error, request);
+        assertFailed(error, receive);
+        assertFailed(error, connection.receive());
+        assertFailed(error, connection.request(new StompFrame(SUBSCRIBE)));
+    }
+
+    private void assertFailed(Throwable expected, CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected a failure");
+        } catch (ExecutionException e) {
+            assertSame(expected, e.getCause());
+        }
+    }
+
+    private StompFrame receipt(AsciiBuffer id) {
+        StompFrame frame = new StompFrame(RECEIPT);
+        frame.addHeader(RECEIPT_ID, id);
+        return frame;
+    }
+
+    private StompFrame message(String id) {
+        StompFrame frame = new StompFrame(MESSAGE);
+        frame.addHeader(MESSAGE_ID, ascii(id));
+        return frame;
+    }
+
+    private void deliver(final StompFrame frame) {
+        queue.execute(new Task() {
+            public void run() {
+                transport.listener.onTransportCommand(frame);
+            }
+        });
+    }
+
+    private StompFrame sent(int index) throws Exception {
+        return (StompFrame) sent()[index];
+    }
+
+    private Object[] sent() throws Exception {
+        final Object[] rc = new Object[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        queue.execute(new Task() {
+            public void run() {
+                rc[0] = transport.offered.toArray();
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return (Object[]) rc[0];
+    }
+
+    private static AsciiBuffer ascii(String value) {
+        return new AsciiBuffer(value);
+    }
+}
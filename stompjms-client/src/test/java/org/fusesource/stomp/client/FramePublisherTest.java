@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks that the frame publisher only reads from the transport while
+ * its subscriber has demand.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FramePublisherTest extends TestCase {
+
+    DispatchQueue queue = createQueue("test");
+    RecordingTransport transport = new RecordingTransport(queue);
+    FutureConnection connection;
+    int reading;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        onQueue(new Task() {
+            public void run() {
+                connection = new FutureConnection(new CallbackConnection(transport, new StompFrame(CONNECTED)));
+                reading = transport.readSuspends;
+            }
+        });
+    }
+
+    public void testDemand() throws Exception {
+        // frames received before anything subscribed are not lost.
+        deliver(message("1"));
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        connection.publisher().subscribe(subscriber);
+        onQueue(new Task() {
+            public void run() {
+                assertEquals(reading + 1, transport.readSuspends);
+            }
+        });
+
+        subscriber.subscription.request(2);
+        onQueue(new Task() {
+            public void run() {
+                assertEquals(reading, transport.readSuspends);
+            }
+        });
+        deliver(message("2"));
+        deliver(message("3"));
+        onQueue(new Task() {
+            public void run() {
+                // the demand has been used up.
+                assertEquals(reading + 1, transport.readSuspends);
+            }
+        });
+        assertEquals(2, subscriber.ids().size());
+        assertEquals("1", subscriber.ids().get(0));
+        assertEquals("2", subscriber.ids().get(1));
+
+        subscriber.subscription.request(1);
+        onQueue(new Task() {
+            public void run() {
+            }
+        });
+        assertEquals(3, subscriber.ids().size());
+        assertEquals("3", subscriber.ids().get(2));
+
+        connection.close().await(5, TimeUnit.SECONDS);
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testSingleSubscriber() throws Exception {
+        RecordingSubscriber first = new RecordingSubscriber();
+        RecordingSubscriber second = new RecordingSubscriber();
+        connection.publisher().subscribe(first);
+        connection.publisher().subscribe(second);
+        assertTrue(second.completed.await(5, TimeUnit.SECONDS));
+        assertTrue(second.error instanceof IllegalStateException);
+
+        // once cancelled, another subscriber can take over.
+        deliver(message("1"));
+        first.subscription.cancel();
+        RecordingSubscriber third = new RecordingSubscriber();
+        connection.publisher().subscribe(third);
+        onQueue(new Task() {
+            public void run() {
+            }
+        });
+        third.subscription.request(Long.MAX_VALUE);
+        onQueue(new Task() {
+            public void run() {
+                assertEquals(reading, transport.readSuspends);
+            }
+        });
+        assertEquals(0, first.ids().size());
+        assertEquals(1, third.ids().size());
+    }
+
+    public void testPendingReceives() throws Exception {
+        Future<StompFrame> pending = connection.receive();
+        onQueue(new Task() {
+            public void run() {
+            }
+        });
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        connection.publisher().subscribe(subscriber);
+        // the subscriber gets the frames now, so the receive would never complete.
+        try {
+            pending.await(5, TimeUnit.SECONDS);
+            fail("expected the receive to fail");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            connection.receive().await(5, TimeUnit.SECONDS);
+            fail("expected the receive to fail");
+        } catch (IllegalStateException expected) {
+        }
+
+        subscriber.subscription.request(1);
+        deliver(message("1"));
+        onQueue(new Task() {
+            public void run() {
+            }
+        });
+        assertEquals(1, subscriber.ids().size());
+    }
+
+    public void testFailure() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        connection.publisher().subscribe(subscriber);
+        final StompFrame error = new StompFrame(ERROR);
+        error.addHeader(MESSAGE_HEADER, new AsciiBuffer("boom"));
+        deliver(error);
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertNotNull(subscriber.error);
+    }
+
+    private StompFrame message(String id) {
+        StompFrame frame = new StompFrame(MESSAGE);
+        frame.addHeader(MESSAGE_ID, new AsciiBuffer(id));
+        return frame;
+    }
+
+    private void deliver(final StompFrame frame) {
+        queue.execute(new Task() {
+            public void run() {
+                transport.listener.onTransportCommand(frame);
+            }
+        });
+    }
+
+    private void onQueue(final Task task) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        queue.execute(new Task() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        if( failure[0] instanceof Error ) {
+            throw (Error) failure[0];
+        } else if( failure[0]!=null ) {
+            throw new Exception(failure[0]);
+        }
+    }
+
+    class RecordingSubscriber implements Flow.Subscriber<StompFrame> {
+        final ArrayList<String> received = new ArrayList<String>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(StompFrame item) {
+            synchronized (received) {
+                received.add(item.getHeader(MESSAGE_ID).toString());
+            }
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        ArrayList<String> ids() {
+            synchronized (received) {
+                return new ArrayList<String>(received);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.hawtdispatch.transport.DefaultTransportListener;
+import org.fusesource.hawtdispatch.transport.Transport;
+import org.fusesource.hawtdispatch.transport.TransportServerListener;
+import org.fusesource.stomp.codec.StompFrame;
+import org.fusesource.stomp.codec.StompProtocolCodec;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.hawtbuf.Buffer.ascii;
+import static org.fusesource.hawtdispatch.Dispatch.NOOP;
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks that the heart-beat intervals offered in the CONNECT frame are
+ * negotiated with the ones in the CONNECTED frame, that the client sends
+ * keep alives when the server asks for them, and that it fails the
+ * connection once the server goes silent.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class HeartBeatTest extends TestCase {
+
+    DispatchQueue queue = createQueue("broker");
+    VmTransportServer server;
+    volatile String serverHeartBeat;
+    volatile StompFrame connect;
+    volatile int keepAlives;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = VmTransportServer.bind("heart-beat");
+        server.setDispatchQueue(queue);
+        server.setTransportServerListener(new TransportServerListener() {
+            public void onAccept(final Transport transport) throws Exception {
+                transport.setDispatchQueue(queue);
+                transport.setTransportListener(new DefaultTransportListener() {
+                    public void onTransportConnected() {
+                        transport.resumeRead();
+                    }
+
+                    public void onTransportCommand(Object command) {
+                        if( command == StompProtocolCodec.KEEP_ALIVE ) {
+                            keepAlives++;
+                            return;
+                        }
+                        StompFrame frame = (StompFrame) command;
+                        if( frame.action().equals(CONNECT) ) {
+                            connect = frame;
+                            StompFrame connected = new StompFrame(CONNECTED);
+                            connected.addHeader(ascii("version"), V1_1);
+                            if( serverHeartBeat!=null ) {
+                                connected.addHeader(HEART_BEAT, ascii(serverHeartBeat));
+                            }
+                            transport.offer(connected);
+                        }
+                    }
+                });
+                transport.start(NOOP);
+            }
+
+            public void onAcceptError(Exception error) {
+            }
+        });
+        server.start(NOOP);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(NOOP);
+        super.tearDown();
+    }
+
+    public void testInterval() {
+        // the larger of the two sides, unless either side does not want them.
+        assertEquals(200, CallbackConnection.heartBeatInterval(100, 200));
+        assertEquals(300, CallbackConnection.heartBeatInterval(300, 200));
+        assertEquals(0, CallbackConnection.heartBeatInterval(0, 200));
+        assertEquals(0, CallbackConnection.heartBeatInterval(100, 0));
+    }
+
+    public void testOffered() throws Exception {
+        Stomp stomp = new Stomp("vm://heart-beat");
+        stomp.setHeartBeatSendInterval(100);
+        stomp.setHeartBeatReceiveInterval(200);
+        FutureConnection connection = stomp.connectFuture().await(5, TimeUnit.SECONDS);
+        assertEquals(ascii("100,200"), connect.getHeader(HEART_BEAT));
+        connection.close().await(5, TimeUnit.SECONDS);
+
+        // nothing offered unless asked for.
+        connection = new Stomp("vm://heart-beat").connectFuture().await(5, TimeUnit.SECONDS);
+        assertNull(connect.getHeader(HEART_BEAT));
+        connection.close().await(5, TimeUnit.SECONDS);
+    }
+
+    public void testKeepAlive() throws Exception {
+        // the server wants one every 200 ms, more often than we offered.
+        serverHeartBeat = "0,200";
+        Stomp stomp = new Stomp("vm://heart-beat");
+        stomp.setHeartBeatSendInterval(50);
+        FutureConnection connection = stomp.connectFuture().await(5, TimeUnit.SECONDS);
+        Thread.sleep(1000);
+        onQueue(new Task() {
+            public void run() {
+                assertTrue("keep alives: " + keepAlives, keepAlives >= 3);
+            }
+        });
+        connection.close().await(5, TimeUnit.SECONDS);
+    }
+
+    public void testDisabled() throws Exception {
+        // the server does not want any, so none are sent.
+        serverHeartBeat = "0,0";
+        Stomp stomp = new Stomp("vm://heart-beat");
+        stomp.setHeartBeatSendInterval(50);
+        stomp.setHeartBeatReceiveInterval(50);
+        FutureConnection connection = stomp.connectFuture().await(5, TimeUnit.SECONDS);
+        // a silent server is fine.
+        assertNull(connection.receive().await(500, TimeUnit.MILLISECONDS));
+        onQueue(new Task() {
+            public void run() {
+                assertEquals(0, keepAlives);
+            }
+        });
+        connection.close().await(5, TimeUnit.SECONDS);
+    }
+
+    public void testSilentServer() throws Exception {
+        // the server promises one every 100 ms but never sends anything.
+        serverHeartBeat = "100,0";
+        Stomp stomp = new Stomp("vm://heart-beat");
+        stomp.setHeartBeatReceiveInterval(100);
+        FutureConnection connection = stomp.connectFuture().await(5, TimeUnit.SECONDS);
+        long start = System.currentTimeMillis();
+        try {
+            connection.receive().await(5, TimeUnit.SECONDS);
+            fail("expected the connection to fail");
+        } catch (ProtocolException e) {
+            assertTrue(e.getMessage().contains("heart-beat"));
+        }
+        // not before the read interval is up.
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+
+    private void onQueue(final Task task) throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.execute(new Task() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if( failure[0] instanceof Error ) {
+            throw (Error) failure[0];
+        }
+        if( failure[0] instanceof RuntimeException ) {
+            throw (RuntimeException) failure[0];
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks the watermarks and policies which bound the frames a connection
+ * holds while its transport is full.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class OverflowTest extends TestCase {
+
+    DispatchQueue queue = createQueue("test");
+    RecordingTransport transport = new RecordingTransport(queue);
+    CallbackConnection connection;
+    ArrayList<String> sent = new ArrayList<String>();
+    ArrayList<String> failed = new ArrayList<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        connection = new CallbackConnection(transport, new StompFrame(CONNECTED));
+        transport.full = true;
+    }
+
+    public void testWatermarks() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                final int[] refills = new int[1];
+                connection.refiller(new Runnable() {
+                    public void run() {
+                        refills[0]++;
+                    }
+                });
+                int size = frame("a", false).size();
+                connection.overflowWatermarks(size * 3, size);
+                send("a", false);
+                send("b", false);
+                assertTrue(connection.isWritable());
+                send("c", false);
+                assertFalse(connection.isWritable());
+                assertEquals(3, connection.getOverflowSize());
+                assertEquals(size * 3, connection.getOverflowBytes());
+
+                transport.full = false;
+                transport.listener.onRefill();
+                assertTrue(connection.isWritable());
+                assertEquals(1, refills[0]);
+                assertEquals(0, connection.getOverflowBytes());
+                assertEquals(3, sent.size());
+            }
+        });
+    }
+
+    public void testFail() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                connection.overflowWatermarks(2500, 0);
+                connection.setOverflowPolicy(OverflowPolicy.FAIL);
+                send("a", true);
+                send("b", false);
+                send("c", true);
+                assertEquals(2, connection.getOverflowSize());
+                assertEquals("[c]", failed.toString());
+            }
+        });
+    }
+
+    public void testDropOldest() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                connection.overflowWatermarks(2500, 0);
+                connection.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+                send("a", false);
+                send("b", true);
+                send("c", false);
+                assertEquals("[a]", failed.toString());
+                send("d", true);
+                assertEquals("[a, c]", failed.toString());
+                // nothing left to drop, persistent frames are kept anyway
+                send("e", true);
+                // and non-persistent ones are dropped.
+                send("f", false);
+                assertEquals("[a, c, f]", failed.toString());
+                assertFalse(connection.isWritable());
+
+                transport.full = false;
+                transport.listener.onRefill();
+                assertEquals("[b, d, e]", sent.toString());
+                assertTrue(connection.isWritable());
+            }
+        });
+    }
+
+    public void testDiscardedWithoutCallback() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                connection.overflowWatermarks(2500, 0);
+                connection.setOverflowPolicy(OverflowPolicy.FAIL);
+                connection.send(frame("a", false), null);
+                connection.send(frame("b", false), null);
+                // nobody to tell, but it's counted.
+                connection.send(frame("c", false), null);
+                assertEquals(1, connection.getOverflowDiscarded());
+
+                connection.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+                send("d", true);
+                assertEquals(2, connection.getOverflowDiscarded());
+                assertTrue(failed.isEmpty());
+            }
+        });
+    }
+
+    public void testCorked() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                connection.overflowWatermarks(2500, 0);
+                connection.setOverflowPolicy(OverflowPolicy.FAIL);
+                connection.cork();
+                send("a", false);
+                send("b", false);
+                send("c", false);
+                send("d", false);
+                // the whole batch is held.
+                assertTrue(failed.isEmpty());
+                assertEquals(4, connection.getOverflowSize());
+                assertFalse(connection.isWritable());
+                assertEquals(0, connection.getOverflowDiscarded());
+
+                transport.full = false;
+                connection.uncork();
+                assertEquals("[a, b, c, d]", sent.toString());
+                assertTrue(connection.isWritable());
+            }
+        });
+    }
+
+    public void testRequestRefused() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                connection.overflowWatermarks(2500, 0);
+                connection.setOverflowPolicy(OverflowPolicy.FAIL);
+                send("a", true);
+                send("b", false);
+                request("c", true);
+                // the request fails instead of waiting for a receipt.
+                assertEquals("[c]", failed.toString());
+                assertEquals(0, connection.receipts.size());
+            }
+        });
+    }
+
+    public void testRequestDropped() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                connection.overflowWatermarks(2500, 0);
+                connection.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+                request("a", false);
+                send("b", true);
+                send("c", true);
+                assertEquals("[a]", failed.toString());
+                assertEquals(0, connection.receipts.size());
+            }
+        });
+    }
+
+    private void request(final String id, boolean persistent) {
+        connection.request(frame(id, persistent), new Callback<StompFrame>() {
+            public void onSuccess(StompFrame value) {
+                sent.add(id);
+            }
+
+            public void onFailure(Throwable value) {
+                assertTrue(value instanceof IOException);
+                failed.add(id);
+            }
+        });
+    }
+
+    private StompFrame frame(String id, boolean persistent) {
+        StompFrame frame = new StompFrame(SEND);
+        frame.addHeader(MESSAGE_ID, new AsciiBuffer(id));
+        if( persistent ) {
+            frame.addHeader(PERSISTENT, TRUE);
+        }
+        frame.content(new Buffer(new byte[1000]));
+        return frame;
+    }
+
+    private void send(final String id, boolean persistent) {
+        connection.send(frame(id, persistent), new Callback<Void>() {
+            public void onSuccess(Void value) {
+                sent.add(id);
+            }
+
+            public void onFailure(Throwable value) {
+                assertTrue(value instanceof IOException);
+                failed.add(id);
+            }
+        });
+    }
+
+    private void onQueue(final Task task) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        queue.execute(new Task() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        if( failure[0] instanceof Error ) {
+            throw (Error) failure[0];
+        } else if( failure[0]!=null ) {
+            throw new Exception(failure[0]);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks the sequence indexed tracking of requests waiting for receipts.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ReceiptRingTest extends TestCase {
+
+    public void testRing() {
+        ReceiptRing ring = new ReceiptRing(2);
+        ArrayList<Callback<StompFrame>> callbacks = new ArrayList<Callback<StompFrame>>();
+        for (int i = 0; i < 10; i++) {
+            Callback<StompFrame> cb = new Promise<StompFrame>();
+            callbacks.add(cb);
+            // grows while keeping the outstanding requests.
+            assertEquals(i + 1, ring.add(cb));
+        }
+        assertEquals(10, ring.size());
+
+        assertNull(ring.remove(0));
+        assertNull(ring.remove(11));
+        assertSame(callbacks.get(4), ring.remove(5));
+        assertNull(ring.remove(5));
+        assertSame(callbacks.get(0), ring.remove(1));
+        assertEquals(8, ring.size());
+
+        ArrayList<Callback<StompFrame>> removed = new ArrayList<Callback<StompFrame>>();
+        assertEquals(4, ring.removeUpTo(6, removed));
+        assertEquals(callbacks.subList(1, 4), removed.subList(0, 3));
+        assertSame(callbacks.get(5), removed.get(3));
+        assertEquals(0, ring.removeUpTo(6, removed));
+
+        // the ring wraps around as the oldest requests complete.
+        for (int i = 0; i < 100; i++) {
+            long sequence = ring.add(new Promise<StompFrame>());
+            assertNotNull(ring.remove(sequence));
+        }
+        assertEquals(4, ring.clear().size());
+        assertEquals(0, ring.size());
+    }
+
+    public void testLostReceipt() {
+        ReceiptRing ring = new ReceiptRing(4);
+        Callback<StompFrame> lost = new Promise<StompFrame>();
+        assertEquals(1, ring.add(lost));
+        // the receipt of the first request never comes, the ring must not
+        // keep growing behind it.
+        for (int i = 0; i < 10000; i++) {
+            long sequence = ring.add(new Promise<StompFrame>());
+            assertNotNull(ring.remove(sequence));
+        }
+        assertEquals(4, ring.capacity());
+        assertEquals(1, ring.size());
+
+        // it's still there when its receipt shows up late.
+        assertSame(lost, ring.remove(1));
+        assertNull(ring.remove(1));
+        assertEquals(0, ring.size());
+
+        // and the cumulative receipts still complete it first.
+        ring.add(lost);
+        for (int i = 0; i < 10; i++) {
+            ring.add(new Promise<StompFrame>());
+            ring.remove(ring.add(new Promise<StompFrame>()));
+        }
+        assertEquals(11, ring.size());
+        ArrayList<Callback<StompFrame>> removed = new ArrayList<Callback<StompFrame>>();
+        assertEquals(11, ring.removeUpTo(Long.MAX_VALUE, removed));
+        assertSame(lost, removed.get(0));
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.clear().size());
+    }
+
+    public void testIds() {
+        assertEquals(new AsciiBuffer("receipt-1"), ReceiptRing.id(1));
+        assertEquals(new AsciiBuffer("receipt-1234567890"), ReceiptRing.id(1234567890L));
+        assertEquals(1234567890L, ReceiptRing.sequence(new AsciiBuffer("receipt-1234567890")));
+        assertEquals(42, ReceiptRing.sequence(new Buffer(new AsciiBuffer("xreceipt-42y").data, 1, 10)));
+        assertEquals(-1, ReceiptRing.sequence(new AsciiBuffer("")));
+        assertEquals(-1, ReceiptRing.sequence(new AsciiBuffer("receipt-")));
+        assertEquals(-1, ReceiptRing.sequence(new AsciiBuffer("receipt-012")));
+        assertEquals(-1, ReceiptRing.sequence(new AsciiBuffer("sub-1")));
+        assertEquals(-1, ReceiptRing.sequence(new AsciiBuffer("receipt-12345678901234567890")));
+        // the ids the application draws from nextId() are never ours.
+        assertEquals(-1, ReceiptRing.sequence(new AsciiBuffer("1")));
+        assertEquals(-1, ReceiptRing.sequence(new AsciiBuffer("42")));
+    }
+
+    public void testCumulativeReceipts() throws Exception {
+        final DispatchQueue queue = createQueue("test");
+        final RecordingTransport transport = new RecordingTransport(queue);
+        final ArrayList<Promise<StompFrame>> requests = new ArrayList<Promise<StompFrame>>();
+        onQueue(queue, new Task() {
+            public void run() {
+                CallbackConnection connection = new CallbackConnection(transport, new StompFrame(CONNECTED));
+                connection.setCumulativeReceipts(true);
+                for (int i = 0; i < 4; i++) {
+                    Promise<StompFrame> request = new Promise<StompFrame>();
+                    requests.add(request);
+                    connection.request(new StompFrame(SEND), request);
+                }
+                StompFrame receipt = new StompFrame(RECEIPT);
+                receipt.addHeader(RECEIPT_ID, ((StompFrame) transport.offered.get(2)).getHeader(RECEIPT_REQUESTED));
+                transport.listener.onTransportCommand(receipt);
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(requests.get(i).await(5, TimeUnit.SECONDS));
+        }
+        assertNull(requests.get(3).value);
+    }
+
+    private void onQueue(DispatchQueue queue, final Task task) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        queue.execute(new Task() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        if( failure[0] instanceof Error ) {
+            throw (Error) failure[0];
+        } else if( failure[0]!=null ) {
+            throw new Exception(failure[0]);
+        }
+    }
+}
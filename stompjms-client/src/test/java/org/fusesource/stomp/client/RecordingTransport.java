@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.hawtdispatch.transport.ProtocolCodec;
+import org.fusesource.hawtdispatch.transport.Transport;
+import org.fusesource.hawtdispatch.transport.TransportListener;
+
+import java.net.SocketAddress;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * A transport which records the commands offered to it instead of
+ * writing them anywhere.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class RecordingTransport implements Transport {
+    final ArrayList<Object> offered = new ArrayList<Object>();
+    final DispatchQueue queue;
+    TransportListener listener;
+    int readSuspends;
+    boolean full;
+
+    public RecordingTransport(DispatchQueue queue) {
+        this.queue = queue;
+    }
+
+    public boolean full() {
+        return full;
+    }
+
+    public boolean offer(Object command) {
+        if( full ) {
+            return false;
+        }
+        offered.add(command);
+        return true;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return queue;
+    }
+
+    public TransportListener getTransportListener() {
+        return listener;
+    }
+
+    public void setTransportListener(TransportListener listener) {
+        this.listener = listener;
+    }
+
+    public void start(Runnable onComplete) {
+    }
+
+    public void stop(Runnable onComplete) {
+    }
+
+    public void start(Task onComplete) {
+    }
+
+    public void stop(Task onComplete) {
+        if( onComplete!=null ) {
+            onComplete.run();
+        }
+    }
+
+    public void flush() {
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+    }
+
+    public void suspendRead() {
+        readSuspends++;
+    }
+
+    public void resumeRead() {
+        readSuspends--;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    public SocketAddress getLocalAddress() {
+        return null;
+    }
+
+    public void drainInbound() {
+    }
+
+    public boolean isClosed() {
+        return false;
+    }
+
+    public boolean isConnected() {
+        return true;
+    }
+
+    public ProtocolCodec getProtocolCodec() {
+        return null;
+    }
+
+    public void setProtocolCodec(ProtocolCodec protocolCodec) {
+    }
+
+    public Executor getBlockingExecutor() {
+        return null;
+    }
+
+    public void setBlockingExecutor(Executor blockingExecutor) {
+    }
+
+    public ReadableByteChannel getReadChannel() {
+        return null;
+    }
+
+    public WritableByteChannel getWriteChannel() {
+        return null;
+    }
+}
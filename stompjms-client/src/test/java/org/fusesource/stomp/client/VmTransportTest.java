@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.hawtdispatch.transport.DefaultTransportListener;
+import org.fusesource.hawtdispatch.transport.Transport;
+import org.fusesource.hawtdispatch.transport.TransportServerListener;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.hawtbuf.Buffer.ascii;
+import static org.fusesource.hawtdispatch.Dispatch.NOOP;
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks that frames are exchanged as objects with an in-process acceptor,
+ * and that the transport fills up and refills like a socket would.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class VmTransportTest extends TestCase {
+
+    DispatchQueue queue = createQueue("broker");
+    VmTransportServer server;
+    final ArrayList<Transport> accepted = new ArrayList<Transport>();
+    final ArrayList<Object> received = new ArrayList<Object>();
+    final CountDownLatch failed = new CountDownLatch(1);
+    boolean reading = true;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = VmTransportServer.bind("test");
+        server.setDispatchQueue(queue);
+        server.setTransportServerListener(new TransportServerListener() {
+            public void onAccept(final Transport transport) throws Exception {
+                accepted.add(transport);
+                transport.setDispatchQueue(queue);
+                transport.setTransportListener(new DefaultTransportListener() {
+                    public void onTransportConnected() {
+                        if( reading ) {
+                            transport.resumeRead();
+                        }
+                    }
+
+                    public void onTransportCommand(Object command) {
+                        received.add(command);
+                        StompFrame frame = (StompFrame) command;
+                        if( frame.action().equals(CONNECT) ) {
+                            StompFrame connected = new StompFrame(CONNECTED);
+                            connected.addHeader(ascii("version"), V1_1);
+                            connected.addHeader(SERVER, ascii("test/1.0"));
+                            transport.offer(connected);
+                        } else if( frame.getHeader(RECEIPT_REQUESTED)!=null ) {
+                            StompFrame receipt = new StompFrame(RECEIPT);
+                            receipt.addHeader(RECEIPT_ID, frame.getHeader(RECEIPT_REQUESTED));
+                            transport.offer(receipt);
+                        }
+                    }
+
+                    public void onTransportFailure(IOException error) {
+                        failed.countDown();
+                    }
+                });
+                transport.start(NOOP);
+            }
+
+            public void onAcceptError(Exception error) {
+            }
+        });
+        server.start(NOOP);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(NOOP);
+        super.tearDown();
+    }
+
+    public void testRequest() throws Exception {
+        BlockingConnection connection = new Stomp("vm://test").connectBlocking();
+        final StompFrame send = new StompFrame(SEND);
+        send.addHeader(DESTINATION, ascii("/queue/test"));
+        send.addHeader(RECEIPT_REQUESTED, ascii("r1"));
+        StompFrame receipt = connection.request(send);
+        assertEquals(RECEIPT, receipt.action());
+        connection.close();
+
+        onQueue(new Task() {
+            public void run() {
+                // the broker got the very frame the client sent.
+                assertEquals(2, received.size());
+                assertEquals(CONNECT, ((StompFrame) received.get(0)).action());
+                assertSame(send, received.get(1));
+            }
+        });
+    }
+
+    public void testUnbound() throws Exception {
+        try {
+            new Stomp("vm://missing").connectBlocking();
+            fail("expected the connection to fail");
+        } catch (Exception expected) {
+        }
+    }
+
+    public void testFull() throws Exception {
+        reading = false;
+        final DispatchQueue client = createQueue("client");
+        final VmTransport transport = VmTransportServer.connect(new URI("vm://test"));
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch refilled = new CountDownLatch(1);
+        transport.setDispatchQueue(client);
+        transport.setTransportListener(new DefaultTransportListener() {
+            public void onTransportConnected() {
+                connected.countDown();
+            }
+
+            public void onRefill() {
+                refilled.countDown();
+            }
+        });
+        transport.start(NOOP);
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        final StompFrame frame = new StompFrame(SEND);
+        frame.content(ascii("0123456789"));
+        final int[] sent = new int[1];
+        onQueue(client, new Task() {
+            public void run() {
+                while( transport.offer(frame) ) {
+                    sent[0]++;
+                }
+                assertTrue(transport.full());
+                // full once the unprocessed frames add up to the write buffer size.
+                int size = transport.getProtocolCodec().getWriteBufferSize();
+                assertTrue(sent[0] * frame.size() >= size);
+                assertTrue((sent[0] - 1) * frame.size() < size);
+            }
+        });
+        onQueue(new Task() {
+            public void run() {
+                assertTrue(received.isEmpty());
+                accepted.get(0).resumeRead();
+            }
+        });
+        assertTrue(refilled.await(5, TimeUnit.SECONDS));
+        onQueue(new Task() {
+            public void run() {
+                assertEquals(sent[0], received.size());
+            }
+        });
+        onQueue(client, new Task() {
+            public void run() {
+                assertFalse(transport.full());
+            }
+        });
+        transport.stop(NOOP);
+    }
+
+    public void testStop() throws Exception {
+        reading = false;
+        final DispatchQueue client = createQueue("client");
+        final VmTransport transport = VmTransportServer.connect(new URI("vm://test"));
+        final ArrayList<Object> delivered = new ArrayList<Object>();
+        final CountDownLatch connected = new CountDownLatch(1);
+        transport.setDispatchQueue(client);
+        transport.setTransportListener(new DefaultTransportListener() {
+            public void onTransportConnected() {
+                connected.countDown();
+            }
+
+            public void onTransportCommand(Object command) {
+                delivered.add(command);
+            }
+        });
+        transport.start(NOOP);
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        onQueue(client, new Task() {
+            public void run() {
+                assertTrue(transport.offer(new StompFrame(SEND)));
+            }
+        });
+        // frames wait on the client's suspended reads.
+        onQueue(new Task() {
+            public void run() {
+                assertTrue(accepted.get(0).offer(new StompFrame(MESSAGE)));
+            }
+        });
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        client.execute(new Task() {
+            public void run() {
+                transport.stop(new Task() {
+                    public void run() {
+                        stopped.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        onQueue(client, new Task() {
+            public void run() {
+                assertTrue(delivered.isEmpty());
+            }
+        });
+        // the broker learns about it even though it is not reading.
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        onQueue(new Task() {
+            public void run() {
+                assertTrue(received.isEmpty());
+            }
+        });
+    }
+
+    private void onQueue(Task task) throws InterruptedException {
+        onQueue(queue, task);
+    }
+
+    private static void onQueue(DispatchQueue queue, final Task task) throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.execute(new Task() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if( failure[0] instanceof Error ) {
+            throw (Error) failure[0];
+        }
+        if( failure[0] instanceof RuntimeException ) {
+            throw (RuntimeException) failure[0];
+        }
+    }
+}
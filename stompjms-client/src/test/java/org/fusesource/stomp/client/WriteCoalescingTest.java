@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.client;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks that corked and auto flushed frames are held back and then
+ * offered to the transport together.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class WriteCoalescingTest extends TestCase {
+
+    DispatchQueue queue = createQueue("test");
+    RecordingTransport transport = new RecordingTransport(queue);
+    CallbackConnection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        connection = new CallbackConnection(transport, new StompFrame(CONNECTED));
+    }
+
+    public void testCork() throws Exception {
+        final ArrayList<Integer> done = new ArrayList<Integer>();
+        onQueue(new Task() {
+            public void run() {
+                connection.cork();
+                connection.cork();
+                for (int i = 0; i < 3; i++) {
+                    final int id = i;
+                    connection.send(new StompFrame(SEND), new Callback<Void>() {
+                        public void onSuccess(Void value) {
+                            done.add(id);
+                        }
+                        public void onFailure(Throwable value) {
+                        }
+                    });
+                }
+                connection.uncork();
+                assertTrue(connection.isCorked());
+                assertEquals(0, transport.offered.size());
+                assertTrue(done.isEmpty());
+                connection.uncork();
+                assertFalse(connection.isCorked());
+                assertEquals(3, transport.offered.size());
+                assertEquals(3, done.size());
+            }
+        });
+    }
+
+    public void testAutoFlush() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                connection.autoFlush(1024 * 64, 0, TimeUnit.MICROSECONDS);
+                // a lone frame goes out right away
+                connection.send(new StompFrame(SEND), null);
+                assertEquals(1, transport.offered.size());
+                // the ones that follow it are held back.
+                connection.send(new StompFrame(SEND), null);
+                connection.send(new StompFrame(SEND), null);
+                assertEquals(1, transport.offered.size());
+            }
+        });
+        // and get written once the queued tasks have run.
+        onQueue(new Task() {
+            public void run() {
+                assertEquals(3, transport.offered.size());
+                assertFalse(connection.isCorked());
+
+                // a full batch is written without waiting.
+                StompFrame large = new StompFrame(SEND);
+                large.content(new Buffer(new byte[1024 * 32]));
+                connection.send(new StompFrame(SEND), null);
+                connection.send(large, null);
+                assertEquals(4, transport.offered.size());
+                connection.send(large, null);
+                assertEquals(6, transport.offered.size());
+            }
+        });
+    }
+
+    public void testAutoFlushDelay() throws Exception {
+        onQueue(new Task() {
+            public void run() {
+                connection.autoFlush(1024 * 64, 50, TimeUnit.MILLISECONDS);
+                connection.send(new StompFrame(SEND), null);
+                connection.send(new StompFrame(SEND), null);
+            }
+        });
+        onQueue(new Task() {
+            public void run() {
+                assertEquals(1, transport.offered.size());
+            }
+        });
+        Thread.sleep(200);
+        onQueue(new Task() {
+            public void run() {
+                assertEquals(2, transport.offered.size());
+            }
+        });
+    }
+
+    private void onQueue(final Task task) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        queue.execute(new Task() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        if( failure[0] instanceof Error ) {
+            throw (Error) failure[0];
+        } else if( failure[0]!=null ) {
+            throw new Exception(failure[0]);
+        }
+    }
+}
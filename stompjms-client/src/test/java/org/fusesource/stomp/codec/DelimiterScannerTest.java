@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <p>
+ * Run the main method to benchmark the scanner against a byte at a time
+ * scan over 1 KB to 64 KB text bodies.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class DelimiterScannerTest extends TestCase {
+
+    public void testMatchesBytewiseScan() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            byte[] data = new byte[random.nextInt(40)];
+            for (int i = 0; i < data.length; i++) {
+                // bias towards the interesting bytes.
+                switch (random.nextInt(6)) {
+                    case 0: data[i] = 0; break;
+                    case 1: data[i] = '\n'; break;
+                    case 2: data[i] = (byte) 0x80; break;
+                    case 3: data[i] = 1; break;
+                    default: data[i] = (byte) random.nextInt(256);
+                }
+            }
+            int start = data.length == 0 ? 0 : random.nextInt(data.length);
+            int end = start + random.nextInt(data.length - start + 1);
+            for (byte value : new byte[]{0, '\n', ':', (byte) 0x80, (byte) 0xFF}) {
+                assertEquals(indexOfBytewise(data, start, end, value),
+                        DelimiterScanner.indexOf(data, start, end, value));
+            }
+        }
+    }
+
+    public void testEveryPosition() throws Exception {
+        for (int length = 0; length < 20; length++) {
+            for (int pos = 0; pos < length; pos++) {
+                byte[] data = new byte[length];
+                Arrays.fill(data, (byte) 'a');
+                data[pos] = 0;
+                assertEquals(pos, DelimiterScanner.indexOf(data, 0, length, (byte) 0));
+                assertEquals(-1, DelimiterScanner.indexOf(data, pos + 1, length, (byte) 0));
+                assertEquals(-1, DelimiterScanner.indexOf(data, 0, pos, (byte) 0));
+            }
+        }
+    }
+
+    static byte[] textBody(int size) {
+        byte[] data = new byte[size + 1];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (' ' + random.nextInt(95));
+        }
+        return data;
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = new int[]{1024, 4 * 1024, 16 * 1024, 64 * 1024};
+        long bytesPerRun = 1024L * 1024 * 512;
+        for (int pass = 0; pass < 3; pass++) {
+            boolean warmup = pass < 2;
+            for (int size : sizes) {
+                byte[] body = textBody(size);
+                long iterations = bytesPerRun / size;
+                long bytewise = time(body, iterations, false);
+                long swar = time(body, iterations, true);
+                if (!warmup) {
+                    System.out.println(String.format("%6d byte bodies: bytewise %7.1f MB/s, swar %7.1f MB/s, speedup %.2fx",
+                            size, rate(bytesPerRun, bytewise), rate(bytesPerRun, swar), (double) bytewise / swar));
+                }
+            }
+        }
+    }
+
+    static int sink;
+
+    private static long time(byte[] body, long iterations, boolean swar) {
+        long start = System.nanoTime();
+        int rc = 0;
+        for (long i = 0; i < iterations; i++) {
+            if (swar) {
+                rc += DelimiterScanner.indexOf(body, 0, body.length, (byte) 0);
+            } else {
+                rc += indexOfBytewise(body, 0, body.length, (byte) 0);
+            }
+        }
+        sink += rc;
+        return System.nanoTime() - start;
+    }
+
+    private static double rate(long bytes, long nanos) {
+        return (bytes / (1024.0 * 1024.0)) / (nanos / 1000000000.0);
+    }
+
+    /**
+     * The plain byte at a time scan the results are checked against.
+     */
+    static int indexOfBytewise(byte[] array, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
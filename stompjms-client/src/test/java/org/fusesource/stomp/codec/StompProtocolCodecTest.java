@@ -0,0 +1,542 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.codec;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.ByteArrayOutputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.fusesource.hawtbuf.Buffer.ascii;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class StompProtocolCodecTest extends TestCase {
+
+    /**
+     * Hands out the data a few bytes at a time so that the codec has to
+     * suspend and resume decoding at arbitrary positions.
+     */
+    static class ChunkedChannel implements ReadableByteChannel {
+        final byte[] data;
+        final int chunk;
+        int pos;
+
+        ChunkedChannel(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        public int read(ByteBuffer dst) {
+            int size = Math.min(Math.min(chunk, dst.remaining()), data.length - pos);
+            dst.put(data, pos, size);
+            pos += size;
+            return size;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    static class TestCodec extends StompProtocolCodec {
+        TestCodec(ReadableByteChannel channel, int readBufferSize) {
+            this.readChannel = channel;
+            this.readBufferSize = readBufferSize;
+            this.nextDecodeAction = initialDecodeAction();
+        }
+
+        int maxReadBufferSize;
+
+        @Override
+        public Object read() throws IOException {
+            Object rc = super.read();
+            if (readBuffer != null) {
+                maxReadBufferSize = Math.max(maxReadBufferSize, readBuffer.capacity());
+            }
+            return rc;
+        }
+    }
+
+    static class EncodingCodec extends StompProtocolCodec {
+        EncodingCodec(int writeBufferSize) {
+            this.nextWriteBuffer = new DataByteArrayOutputStream(writeBufferSize);
+        }
+
+        List<ByteBuffer> flushed() {
+            return writeBuffer;
+        }
+
+        Buffer written() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (ByteBuffer buffer : writeBuffer) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            out.write(nextWriteBuffer.getData(), 0, nextWriteBuffer.position());
+            return out.toBuffer();
+        }
+    }
+
+    static List<StompFrame> decode(String data, int chunk, int readBufferSize) throws IOException {
+        ChunkedChannel channel = new ChunkedChannel(ascii(data).toByteArray(), chunk);
+        return decode(channel, new TestCodec(channel, readBufferSize));
+    }
+
+    static List<StompFrame> decode(ChunkedChannel channel, TestCodec codec) throws IOException {
+        ArrayList<StompFrame> rc = new ArrayList<StompFrame>();
+        while (channel.pos < channel.data.length) {
+            Object frame;
+            while ((frame = codec.read()) != null) {
+                rc.add((StompFrame) frame);
+            }
+        }
+        return rc;
+    }
+
+    public void testDecodeIndexedHeaders() throws Exception {
+        String data = "MESSAGE\n" +
+                "destination:/queue/a\n" +
+                "message-id:ID:1\n" +
+                "destination:/queue/b\n" +
+                "subscription:0\n" +
+                "\n" +
+                "hello\u0000\n" +
+                "MESSAGE\n" +
+                "content-length:5\n" +
+                "message-id:ID:2\n" +
+                "\n" +
+                "w\u0000rld\u0000\n";
+
+        for (int chunk : new int[]{1, 3, 7, 1000}) {
+            List<StompFrame> frames = decode(data, chunk, 16);
+            assertEquals(2, frames.size());
+
+            StompFrame first = frames.get(0);
+            assertEquals(MESSAGE, first.action());
+            assertEquals(ascii("ID:1"), first.getHeader(MESSAGE_ID));
+            assertEquals(ascii("/queue/a"), first.getHeader(DESTINATION));
+            assertEquals(ascii("/queue/b"), first.getHeader(DESTINATION, Collections.singleton(DESTINATION)));
+            assertNull(first.getHeader(CONTENT_LENGTH));
+            assertEquals("hello", first.contentAsString());
+
+            StompFrame second = frames.get(1);
+            assertEquals(ascii("ID:2"), second.getHeader(MESSAGE_ID));
+            assertEquals(new Buffer(new byte[]{'w', 0, 'r', 'l', 'd'}), second.content());
+        }
+    }
+
+    public void testIndexedFrameMaterializes() throws Exception {
+        String data = "MESSAGE\n" +
+                "destination:/queue/a\n" +
+                "foo:bar\n" +
+                "destination:/queue/b\n" +
+                "\n" +
+                "\u0000\n";
+        StompFrame frame = decode(data, 5, 16).get(0);
+        String encoded = frame.toString();
+
+        StompFrame copy = frame.clone();
+        assertEquals(encoded, copy.toString());
+        assertEquals(frame.size(), frame.toBuffer().length());
+
+        Map<AsciiBuffer, AsciiBuffer> map = frame.headerMap(Collections.singleton(DESTINATION));
+        assertEquals(2, map.size());
+        assertEquals(ascii("/queue/b"), map.get(DESTINATION));
+        assertEquals(ascii("bar"), map.get(ascii("foo")));
+
+        // the clone keeps the original header order.
+        assertEquals(3, copy.headerList().size());
+        assertEquals(ascii("/queue/a"), copy.getHeader(DESTINATION));
+    }
+
+    public void testHeaderTable() throws Exception {
+        StompFrame frame = new StompFrame(SEND);
+        List<StompFrame.HeaderEntry> list = frame.headerList();
+        for (int i = 0; i < 20; i++) {
+            list.add(new StompFrame.HeaderEntry(ascii("key" + i), ascii("value" + i)));
+        }
+        list.add(new StompFrame.HeaderEntry(DESTINATION, ascii("/queue/a")));
+        list.add(new StompFrame.HeaderEntry(DESTINATION, ascii("/queue/b")));
+        list.add(new StompFrame.HeaderEntry(ascii("key3"), ascii("again")));
+        assertEquals(23, list.size());
+        assertEquals(ascii("value3"), frame.getHeader(ascii("key3")));
+        assertEquals(ascii("/queue/a"), frame.getHeader(DESTINATION));
+        assertEquals(ascii("/queue/b"), frame.getHeader(DESTINATION, Collections.singleton(DESTINATION)));
+
+        // the map view drops the repeated headers which are not used.
+        Map<AsciiBuffer, AsciiBuffer> map = frame.headerMap(Collections.singleton(DESTINATION));
+        assertEquals(21, map.size());
+        assertEquals(21, list.size());
+        assertEquals(ascii("/queue/b"), map.get(DESTINATION));
+        assertEquals(ascii("value3"), map.get(ascii("key3")));
+        assertEquals(ascii("value19"), map.put(ascii("key19"), ascii("changed")));
+        assertEquals(ascii("value5"), map.remove(ascii("key5")));
+        assertNull(map.get(ascii("key5")));
+        assertEquals(ascii("changed"), map.get(ascii("key19")));
+        assertEquals(ascii("value18"), map.get(ascii("key18")));
+
+        // both views keep the insertion order.
+        assertEquals(ascii("key0"), list.get(0).getKey());
+        assertEquals(ascii("key6"), list.get(5).getKey());
+        Iterator<Map.Entry<AsciiBuffer, AsciiBuffer>> entries = map.entrySet().iterator();
+        assertEquals(ascii("key0"), entries.next().getKey());
+        entries.next().setValue(ascii("one"));
+        assertEquals(ascii("one"), frame.getHeader(ascii("key1")));
+        entries.remove();
+        assertFalse(map.containsKey(ascii("key1")));
+        assertEquals(19, list.size());
+        assertEquals(frame.size(), frame.toBuffer().length());
+        assertTrue(frame.toString().startsWith("SEND\nkey0:value0\nkey2:value2\nkey3:value3\n"));
+    }
+
+    public void testWellKnownNamesAreInterned() throws Exception {
+        AsciiBuffer custom = StompProtocolCodec.registerHeaderName("customerId");
+        String data = "MESSAGE\n" +
+                "destination:/queue/a\n" +
+                "customerId:42\n" +
+                "other:1\n" +
+                "\n" +
+                "\u0000\n";
+        StompFrame frame = decode(data, 4, 16).get(0);
+        assertSame(MESSAGE, frame.action());
+
+        List<StompFrame.HeaderEntry> headers = frame.clone().headerList();
+        assertSame(DESTINATION, headers.get(0).getKey());
+        assertSame(custom, headers.get(1).getKey());
+        assertEquals(ascii("other"), headers.get(2).getKey());
+
+        assertEquals(ascii("42"), frame.getHeader(ascii("customerId")));
+        assertEquals(data.substring(0, data.length() - 2), frame.toBuffer(false).ascii().toString());
+    }
+
+    public void testEncodeAddsContentLength() throws Exception {
+        StompFrame frame = new StompFrame(SEND);
+        frame.addHeader(DESTINATION, ascii("/queue/a"));
+        frame.addHeader(CONTENT_LENGTH, ascii("999"));
+        frame.content(ascii("hello"));
+        assertEquals("SEND\ndestination:/queue/a\ncontent-length:5\n\nhello\u0000\n", frame.toBuffer().ascii().toString());
+        assertEquals(frame.size(), frame.toBuffer().length());
+
+        // the cached size has to follow changes to the frame.
+        frame.content(new Buffer(new byte[12345]));
+        frame.headerList().add(new StompFrame.HeaderEntry(ascii("foo"), ascii("bar")));
+        assertEquals(frame.size(), frame.toBuffer().length());
+
+        StompFrame decoded = decode(frame.toBuffer().ascii().toString(), 100, 64).get(0);
+        assertEquals(ascii("12345"), decoded.getHeader(CONTENT_LENGTH));
+        assertEquals(frame.content(), decoded.content());
+        assertEquals(frame.size(), decoded.size());
+
+        // frames without a body don't need a content-length
+        assertEquals("ACK\n\n\u0000\n", new StompFrame(ACK).toBuffer().ascii().toString());
+    }
+
+    public void testLargeBodyIsWrittenSeparately() throws Exception {
+        StompFrame small = new StompFrame(SEND);
+        small.addHeader(DESTINATION, ascii("/queue/a"));
+        small.content(ascii("hi"));
+        StompFrame large = small.clone();
+        byte[] body = new byte[4096];
+        large.content(new Buffer(body));
+
+        EncodingCodec codec = new EncodingCodec(1024);
+        codec.encode(small);
+        codec.encode(large);
+        codec.encode(small);
+
+        // the large body was not copied into a write buffer.
+        assertEquals(2, codec.flushed().size());
+        assertSame(body, codec.flushed().get(1).array());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(small.toBuffer());
+        expected.write(large.toBuffer());
+        expected.write(small.toBuffer());
+        assertEquals(expected.toBuffer(), codec.written());
+    }
+
+    public void testSpilledBody() throws Exception {
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        StompFrame frame = new StompFrame(MESSAGE);
+        frame.addHeader(MESSAGE_ID, ascii("ID:1"));
+        frame.content(new Buffer(body));
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(frame.toBuffer());
+        data.write(new StompFrame(RECEIPT).toBuffer());
+
+        ChunkedChannel channel = new ChunkedChannel(data.toBuffer().toByteArray(), 1000);
+        TestCodec codec = new TestCodec(channel, 1024);
+        codec.spill_threshold = 1024;
+        List<StompFrame> frames = decode(channel, codec);
+        assertEquals(2, frames.size());
+        assertEquals(RECEIPT, frames.get(1).action());
+
+        // the body never had to fit into the read buffer.
+        assertTrue(codec.maxReadBufferSize <= 1024);
+
+        StompFrame decoded = frames.get(0);
+        assertNotNull(decoded.mappedContent());
+        assertEquals(body.length, decoded.contentLength());
+        assertEquals(frame.size(), decoded.size());
+        InputStream is = decoded.contentStream();
+        for (int i = 0; i < body.length; i++) {
+            assertEquals(body[i] & 0xFF, is.read());
+        }
+        assertEquals(-1, is.read());
+        assertEquals(new Buffer(body), decoded.content());
+        assertNull(decoded.mappedContent());
+    }
+
+    public void testMaxTextBodyLength() throws Exception {
+        ChunkedChannel channel = new ChunkedChannel(ascii("SEND\n\n0123456789\u0000\n").toByteArray(), 3);
+        TestCodec codec = new TestCodec(channel, 64);
+        codec.max_data_length = 5;
+        try {
+            decode(channel, codec);
+            fail("Expected the data length to be exceeded");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testCompression() throws Exception {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item\",\"tags\":[\"a\",\"b\"]},");
+        }
+        Buffer body = new Buffer(json.toString().getBytes("UTF-8"));
+        StompFrame frame = new StompFrame(MESSAGE);
+        frame.addHeader(MESSAGE_ID, ascii("ID:1"));
+        frame.content(body);
+
+        assertFalse(FrameCompression.deflate(frame.clone(), body.length + 1, 6));
+        assertTrue(FrameCompression.deflate(frame, 1024, 6));
+        assertEquals(FrameCompression.DEFLATE, frame.getHeader(CONTENT_ENCODING));
+        assertTrue(frame.contentLength() < body.length / 4);
+        // already compressed.
+        assertFalse(FrameCompression.deflate(frame, 1024, 6));
+
+        // left alone unless the receiving codec is asked to inflate it.
+        StompFrame decoded = decode(frame.toBuffer().ascii().toString(), 100, 64).get(0);
+        assertEquals(FrameCompression.DEFLATE, decoded.getHeader(CONTENT_ENCODING));
+        assertEquals(frame.content(), decoded.content());
+
+        ChunkedChannel channel = new ChunkedChannel(frame.toBuffer().toByteArray(), 100);
+        TestCodec codec = new TestCodec(channel, 64);
+        codec.inflate_bodies = true;
+        decoded = decode(channel, codec).get(0);
+        assertEquals(body, decoded.content());
+        assertNull(decoded.getHeader(CONTENT_ENCODING));
+        assertEquals(ascii("ID:1"), decoded.getHeader(MESSAGE_ID));
+
+        // bodies which don't get smaller are sent as is.
+        byte[] random = new byte[4096];
+        new java.util.Random(1).nextBytes(random);
+        assertFalse(FrameCompression.deflate(new StompFrame(SEND).content(new Buffer(random)), 0, 6));
+
+        // a body which inflates too big, or not at all, is passed on as
+        // received without failing the frames after it.
+        Buffer truncated = new Buffer(frame.content().data, frame.content().offset, frame.content().length / 2);
+        StompFrame[] bad = new StompFrame[]{frame, frame.clone().content(truncated)};
+        int[] limits = new int[]{body.length - 1, codec.max_data_length};
+        for (int i = 0; i < bad.length; i++) {
+            channel = new ChunkedChannel(ascii(bad[i].toBuffer().ascii().toString() + "MESSAGE\n\nhi\u0000\n").toByteArray(), 100);
+            codec = new TestCodec(channel, 64);
+            codec.inflate_bodies = true;
+            codec.max_data_length = limits[i];
+            List<StompFrame> frames = decode(channel, codec);
+            assertEquals(2, frames.size());
+            assertEquals(FrameCompression.DEFLATE, frames.get(0).getHeader(CONTENT_ENCODING));
+            assertEquals(bad[i].content(), frames.get(0).content());
+            assertEquals("hi", frames.get(1).contentAsString());
+        }
+    }
+
+    public void testHeartBeats() throws Exception {
+        String data = "\n\nCONNECTED\nheart-beat:1000,0\n\n\u0000\n\r\n\nMESSAGE\n\nhi\u0000\n\n";
+        for (int chunk : new int[]{1, 3, 100}) {
+            List<StompFrame> frames = decode(data, chunk, 16);
+            assertEquals(2, frames.size());
+            assertEquals(ascii("1000,0"), frames.get(0).getHeader(HEART_BEAT));
+            assertEquals(MESSAGE, frames.get(1).action());
+            assertEquals("hi", frames.get(1).contentAsString());
+        }
+
+        EncodingCodec codec = new EncodingCodec(64);
+        codec.encode(StompProtocolCodec.KEEP_ALIVE);
+        codec.encode(new StompFrame(DISCONNECT));
+        codec.encode(StompProtocolCodec.KEEP_ALIVE);
+        assertEquals("\nDISCONNECT\n\n\u0000\n\n", codec.written().ascii().toString());
+    }
+
+    public void testHeaderEscaping() throws Exception {
+        String[] values = new String[]{"", "plain", "a:b", "line\nbreak", "back\\slash", "\u00e9t\u00e9", "\u00e9:", "trailing\\"};
+        String[] encoded = new String[]{"", "plain", "a\\cb", "line\\nbreak", "back\\\\slash", "\u00c3\u00a9t\u00c3\u00a9", "\u00c3\u00a9\\c", "trailing\\\\"};
+        for (int i = 0; i < values.length; i++) {
+            AsciiBuffer buffer = StompFrame.encodeHeader(values[i]);
+            assertEquals(encoded[i], buffer.toString());
+            assertEquals(values[i], StompFrame.decodeHeader(buffer));
+        }
+        // unknown escapes are passed through.
+        assertEquals("a\\x", StompFrame.decodeHeader(ascii("a\\x")));
+    }
+
+    public void testHeaderCache() throws Exception {
+        HeaderCache cache = new HeaderCache(16, 8);
+        AsciiBuffer name = cache.encode("name");
+        assertSame(name, cache.encode("name"));
+        assertEquals(ascii("a\\cb"), cache.encode("a:b"));
+        assertNotSame(cache.encode("too long to cache"), cache.encode("too long to cache"));
+
+        String decoded = cache.decode(new AsciiBuffer("x\\cy"));
+        assertEquals("x:y", decoded);
+        assertSame(decoded, cache.decode(new AsciiBuffer("x\\cy")));
+    }
+
+    public void testFramePool() throws Exception {
+        String data = "MESSAGE\nmessage-id:ID:1\n\nfirst\u0000\n" +
+                "MESSAGE\nmessage-id:ID:2\nfoo:bar\n\nsecond\u0000\n";
+        ChunkedChannel channel = new ChunkedChannel(ascii(data).toByteArray(), 1000);
+        TestCodec codec = new TestCodec(channel, 1024);
+        codec.frame_pool = new FramePool(10, false);
+
+        StompFrame first = (StompFrame) codec.read();
+        StompFrame copy = first.clone();
+        first.release();
+        assertEquals(1, codec.frame_pool.size());
+        try {
+            first.action();
+            fail("Expected the released frame to be unusable");
+        } catch (IllegalStateException expected) {
+        }
+
+        StompFrame second = (StompFrame) codec.read();
+        assertSame(first, second);
+        assertEquals(ascii("ID:2"), second.getHeader(MESSAGE_ID));
+        assertEquals("second", second.contentAsString());
+
+        // the clone was not affected by the reuse of the original.
+        assertEquals(ascii("ID:1"), copy.getHeader(MESSAGE_ID));
+        assertEquals("first", copy.contentAsString());
+    }
+
+    public void testFramePoolDebug() throws Exception {
+        String data = "MESSAGE\nmessage-id:ID:1\n\n\u0000\nMESSAGE\nmessage-id:ID:2\n\n\u0000\n";
+        ChunkedChannel channel = new ChunkedChannel(ascii(data).toByteArray(), 1000);
+        TestCodec codec = new TestCodec(channel, 1024);
+        codec.frame_pool = new FramePool(10, true);
+
+        StompFrame first = (StompFrame) codec.read();
+        first.release();
+        assertEquals(0, codec.frame_pool.size());
+        assertNotSame(first, codec.read());
+        try {
+            first.getHeader(MESSAGE_ID);
+            fail("Expected the released frame to be unusable");
+        } catch (IllegalStateException expected) {
+            assertNotNull(expected.getCause());
+        }
+        try {
+            first.addHeader(MESSAGE_ID, ascii("ID:3"));
+            fail("Expected the released frame to be unusable");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            first.release();
+            fail("Expected the second release to fail");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testFramePoolDebugMutators() throws Exception {
+        String data = "MESSAGE\nmessage-id:ID:1\n\n\u0000\n";
+        ChunkedChannel channel = new ChunkedChannel(ascii(data).toByteArray(), 1000);
+        TestCodec codec = new TestCodec(channel, 1024);
+        codec.frame_pool = new FramePool(10, true);
+
+        StompFrame frame = (StompFrame) codec.read();
+        frame.release();
+        // none of them may touch the recycled frame.
+        try {
+            frame.clearHeaders();
+            fail("Expected clearHeaders to fail");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.setHeaders(new ArrayList<StompFrame.HeaderEntry>());
+            fail("Expected setHeaders to fail");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.setHeaders(new HeaderIndex(StompProtocolCodec.HEADER_NAMES, 10));
+            fail("Expected setHeaders to fail");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.action(SEND);
+            fail("Expected action to fail");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.content(ascii("body"));
+            fail("Expected content to fail");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.removeHeader(MESSAGE_ID);
+            fail("Expected removeHeader to fail");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testMaxHeaderLength() throws Exception {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            value.append("0123456789");
+        }
+        TestCodec codec = new TestCodec(new ChunkedChannel(ascii("SEND\nfoo:" + value + "\n\n\u0000\n").toByteArray(), 64), 64);
+        codec.max_header_length = 512;
+        try {
+            while (codec.read() == null) {
+            }
+            fail("Expected the header length to be exceeded");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testInvalidContentLength() throws Exception {
+        try {
+            decode("SEND\ncontent-length:12a\n\n\u0000\n", 1000, 64);
+            fail("Expected the content length to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+}
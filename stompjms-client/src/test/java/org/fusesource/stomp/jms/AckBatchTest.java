@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+
+import jakarta.jms.Connection;
+import jakarta.jms.Message;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.MessageProducer;
+import jakarta.jms.Session;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Checks that the consumers batch their acks, that the lazy modes don't
+ * wait for receipts, that CLIENT_ACKNOWLEDGE acks only at acknowledge(),
+ * and that the at least once mode acks a message only once the next one
+ * is received.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class AckBatchTest extends TestCase {
+
+    FakeBroker broker;
+    StompJmsConnectionFactory factory;
+    Connection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        broker = new FakeBroker();
+        factory = new StompJmsConnectionFactory();
+        factory.setBrokerURI(broker.uri());
+        factory.setOmitHost(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if( connection!=null ) {
+            connection.close();
+        }
+        broker.shutdown();
+        super.tearDown();
+    }
+
+    private MessageConsumer consumer(int messages) throws Exception {
+        return consumer(messages, Session.AUTO_ACKNOWLEDGE);
+    }
+
+    private MessageConsumer consumer(int messages, int mode) throws Exception {
+        connection = factory.createConnection();
+        connection.start();
+        Session session = connection.createSession(false, mode);
+        MessageConsumer consumer = session.createConsumer(session.createQueue("test"));
+        Session producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = producerSession.createProducer(producerSession.createQueue("test"));
+        for (int i = 0; i < messages; i++) {
+            producer.send(producerSession.createTextMessage("m" + i));
+        }
+        // all buffered, so only the last receive finds the consumer idle.
+        long deadline = System.currentTimeMillis() + 5000;
+        while( ((StompJmsMessageConsumer) consumer).getMessageQueueSize() < messages && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(10);
+        }
+        return consumer;
+    }
+
+    public void testCumulative() throws Exception {
+        factory.getAckBatch().setMaxMessages(10);
+        factory.getAckBatch().setReceipts(false);
+        MessageConsumer consumer = consumer(100);
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(consumer.receive(5000));
+        }
+
+        // one ack of the last message of each batch of 10.
+        List<String> acks = acks(10);
+        assertEquals(10, acks.size());
+        for (int i = 0; i < 10; i++) {
+            assertNull(header(acks.get(i), "receipt"));
+        }
+        assertEquals("fake-100", header(acks.get(9), "message-id"));
+    }
+
+    public void testIndividual() throws Exception {
+        factory.getAckBatch().setMaxMessages(5);
+        factory.getAckBatch().setIndividual(true);
+        MessageConsumer consumer = consumer(5);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(consumer.receive(5000));
+        }
+
+        List<String> acks = acks(5);
+        assertEquals(5, acks.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("fake-" + (i + 1), header(acks.get(i), "message-id"));
+            // only the flush asks for a receipt.
+            assertEquals(i == 4, header(acks.get(i), "receipt") != null);
+        }
+        for (String frame : broker.frames()) {
+            if( frame.startsWith("SUBSCRIBE") ) {
+                assertEquals("client-individual", header(frame, "ack"));
+            }
+        }
+    }
+
+    public void testDupsOk() throws Exception {
+        assertLazyBatches(Session.DUPS_OK_ACKNOWLEDGE);
+    }
+
+    public void testServerAuto() throws Exception {
+        factory.setMultiplexedConnections(1);
+        assertLazyBatches(StompJmsSession.SERVER_AUTO_ACKNOWLEDGE);
+    }
+
+    private void assertLazyBatches(int mode) throws Exception {
+        factory.getAckBatch().setMaxMessages(10);
+        MessageConsumer consumer = consumer(100, mode);
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(consumer.receive(5000));
+        }
+
+        // batched, and never waiting for a receipt even when idle.
+        List<String> acks = acks(10);
+        assertEquals(10, acks.size());
+        for (String ack : acks) {
+            assertNull(header(ack, "receipt"));
+        }
+        assertEquals("fake-100", header(acks.get(9), "message-id"));
+    }
+
+    public void testClientAcknowledge() throws Exception {
+        factory.getAckBatch().setMaxMessages(5);
+        MessageConsumer consumer = consumer(20, Session.CLIENT_ACKNOWLEDGE);
+        Message last = null;
+        for (int i = 0; i < 20; i++) {
+            last = consumer.receive(5000);
+            assertNotNull(last);
+        }
+        // the limit does not ack what the application did not acknowledge.
+        Thread.sleep(200);
+        assertTrue(acks(0).isEmpty());
+
+        last.acknowledge();
+        List<String> acks = acks(1);
+        assertEquals(1, acks.size());
+        assertEquals("fake-20", header(acks.get(0), "message-id"));
+        assertNotNull(header(acks.get(0), "receipt"));
+
+        // nothing left to ack.
+        last.acknowledge();
+        Thread.sleep(200);
+        assertEquals(1, acks(1).size());
+    }
+
+    public void testAtLeastOnce() throws Exception {
+        factory.getAckBatch().setAtLeastOnce(true);
+        MessageConsumer consumer = consumer(1);
+        assertNotNull(consumer.receive(5000));
+        Thread.sleep(200);
+        assertTrue(acks(0).isEmpty());
+
+        // acked once the application is back for the next one.
+        assertNull(consumer.receiveNoWait());
+        List<String> acks = acks(1);
+        assertEquals(1, acks.size());
+        assertEquals("fake-1", header(acks.get(0), "message-id"));
+    }
+
+    private List<String> acks(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while( true ) {
+            ArrayList<String> rc = new ArrayList<String>();
+            for (String frame : broker.frames()) {
+                if( frame.startsWith("ACK") ) {
+                    rc.add(frame);
+                }
+            }
+            if( rc.size() >= expected || System.currentTimeMillis() > deadline ) {
+                return rc;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static String header(String frame, String name) {
+        for (String line : frame.split("\n")) {
+            if( line.isEmpty() ) {
+                break;
+            }
+            if( line.startsWith(name + ":") ) {
+                return line.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+
+import jakarta.jms.CompletionListener;
+import jakarta.jms.Connection;
+import jakarta.jms.Message;
+import jakarta.jms.MessageProducer;
+import jakarta.jms.ResourceAllocationException;
+import jakarta.jms.Session;
+import jakarta.jms.TextMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Checks that the sends with a CompletionListener don't wait for their
+ * receipt, and that the listener learns which messages the broker took.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class AsyncSendTest extends TestCase {
+
+    FakeBroker broker;
+    StompJmsConnectionFactory factory;
+    Connection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        broker = new FakeBroker();
+        factory = new StompJmsConnectionFactory();
+        factory.setBrokerURI(broker.uri());
+        factory.setOmitHost(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if( connection!=null ) {
+            connection.close();
+        }
+        broker.shutdown();
+        super.tearDown();
+    }
+
+    public void testCompletion() throws Exception {
+        connection = factory.createConnection();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(session.createQueue("test"));
+        final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            producer.send(session.createTextMessage("m" + i), new CompletionListener() {
+                public void onCompletion(Message message) {
+                    try {
+                        completed.add(((TextMessage) message).getText());
+                    } catch (Exception e) {
+                    }
+                    done.countDown();
+                }
+
+                public void onException(Message message, Exception exception) {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // completed in the order they were sent.
+        for (int i = 0; i < 500; i++) {
+            assertEquals("m" + i, completed.get(i));
+        }
+        for (String frame : broker.frames()) {
+            if( frame.startsWith("SEND") ) {
+                assertTrue(frame.contains("\nreceipt:"));
+            }
+        }
+    }
+
+    public void testConsumerBetweenSends() throws Exception {
+        connection = factory.createConnection();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(session.createQueue("test"));
+        final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(20);
+        CompletionListener listener = new CompletionListener() {
+            public void onCompletion(Message message) {
+                try {
+                    completed.add(((TextMessage) message).getText());
+                } catch (Exception e) {
+                }
+                done.countDown();
+            }
+
+            public void onException(Message message, Exception exception) {
+                done.countDown();
+            }
+        };
+        // the receipts of the first sends come in last.
+        broker.sendReceipts = false;
+        for (int i = 0; i < 10; i++) {
+            producer.send(session.createTextMessage("m" + i), listener);
+        }
+        // from now on the sends go over the connection's channel.
+        session.createConsumer(session.createQueue("other"));
+        broker.sendReceipts = true;
+        for (int i = 10; i < 20; i++) {
+            producer.send(session.createTextMessage("m" + i), listener);
+        }
+        Thread.sleep(500);
+        int early = completed.size();
+        broker.releaseReceipts();
+        // none of them may complete before the first ones.
+        assertEquals(0, early);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // still completed in the order they were sent.
+        for (int i = 0; i < 20; i++) {
+            assertEquals("m" + i, completed.get(i));
+        }
+    }
+
+    public void testWindow() throws Exception {
+        factory.setAsyncSendWindow(2);
+        factory.setSendTimeout(0);
+        connection = factory.createConnection();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(session.createQueue("test"));
+        broker.sendReceipts = false;
+
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(2);
+        CompletionListener listener = new CompletionListener() {
+            public void onCompletion(Message message) {
+                done.countDown();
+            }
+
+            public void onException(Message message, Exception exception) {
+                try {
+                    failed.add(((TextMessage) message).getText());
+                } catch (Exception e) {
+                }
+                done.countDown();
+            }
+        };
+        producer.send(session.createTextMessage("m0"), listener);
+        producer.send(session.createTextMessage("m1"), listener);
+        try {
+            producer.send(session.createTextMessage("m2"), listener);
+            fail("expected the window to be full");
+        } catch (ResourceAllocationException expected) {
+        }
+
+        // the broker goes away without confirming them.
+        broker.shutdown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, failed.size());
+        assertTrue(failed.contains("m0"));
+        assertTrue(failed.contains("m1"));
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.transport.DefaultTransportListener;
+import org.fusesource.hawtdispatch.transport.Transport;
+import org.fusesource.hawtdispatch.transport.TransportServerListener;
+import org.fusesource.stomp.client.BlockingConnection;
+import org.fusesource.stomp.client.Stomp;
+import org.fusesource.stomp.client.VmTransportServer;
+import org.fusesource.stomp.codec.FrameCompression;
+import org.fusesource.stomp.codec.StompFrame;
+
+import jakarta.jms.BytesMessage;
+import jakarta.jms.Connection;
+import jakarta.jms.ExceptionListener;
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.Session;
+import jakarta.jms.TextMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fusesource.hawtbuf.Buffer.ascii;
+import static org.fusesource.hawtdispatch.Dispatch.NOOP;
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks that deflated message bodies are inflated by the consuming
+ * channel, also over the vm transport which never decodes the frames, and
+ * that the bodies with any other content-encoding are left alone.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class CompressionTest extends TestCase {
+
+    DispatchQueue queue = createQueue("broker");
+    VmTransportServer server;
+    final ArrayList<Object[]> subscriptions = new ArrayList<Object[]>();
+    final AtomicInteger messageIds = new AtomicInteger();
+    final List<StompFrame> sent = Collections.synchronizedList(new ArrayList<StompFrame>());
+    final List<JMSException> failures = Collections.synchronizedList(new ArrayList<JMSException>());
+    // the broker cuts the bodies it delivers in half.
+    volatile boolean truncate;
+    Connection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = VmTransportServer.bind("compression");
+        server.setDispatchQueue(queue);
+        server.setTransportServerListener(new TransportServerListener() {
+            public void onAccept(final Transport transport) throws Exception {
+                transport.setDispatchQueue(queue);
+                transport.setTransportListener(new DefaultTransportListener() {
+                    public void onTransportConnected() {
+                        transport.resumeRead();
+                    }
+
+                    public void onTransportCommand(Object command) {
+                        serve(transport, (StompFrame) command);
+                    }
+                });
+                transport.start(NOOP);
+            }
+
+            public void onAcceptError(Exception error) {
+            }
+        });
+        server.start(NOOP);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if( connection!=null ) {
+            connection.close();
+        }
+        server.stop(NOOP);
+        super.tearDown();
+    }
+
+    private void serve(Transport transport, StompFrame frame) {
+        AsciiBuffer action = frame.action();
+        if( action.equals(CONNECT) ) {
+            StompFrame connected = new StompFrame(CONNECTED);
+            connected.addHeader(ascii("version"), V1_1);
+            connected.addHeader(SERVER, ascii("vm/1.0"));
+            transport.offer(connected);
+            return;
+        }
+        if( action.equals(SUBSCRIBE) ) {
+            subscriptions.add(new Object[]{transport, frame.getHeader(DESTINATION), frame.getHeader(ID)});
+        } else if( action.equals(SEND) ) {
+            sent.add(frame);
+            for (Object[] sub : subscriptions) {
+                if( sub[1].equals(frame.getHeader(DESTINATION)) ) {
+                    StompFrame message = frame.clone();
+                    message.action(MESSAGE);
+                    message.removeHeader(RECEIPT_REQUESTED);
+                    message.addHeader(SUBSCRIPTION, (AsciiBuffer) sub[2]);
+                    message.addHeader(MESSAGE_ID, ascii("vm-" + messageIds.incrementAndGet()));
+                    if( truncate ) {
+                        Buffer content = message.content();
+                        message.content(new Buffer(content.data, content.offset, content.length / 2));
+                    }
+                    ((Transport) sub[0]).offer(message);
+                }
+            }
+        }
+        AsciiBuffer receipt = frame.getHeader(RECEIPT_REQUESTED);
+        if( receipt!=null ) {
+            StompFrame reply = new StompFrame(RECEIPT);
+            reply.addHeader(RECEIPT_ID, receipt);
+            transport.offer(reply);
+        }
+    }
+
+    private Session session(String uri) throws Exception {
+        StompJmsConnectionFactory factory = new StompJmsConnectionFactory();
+        factory.setBrokerURI(uri);
+        factory.setOmitHost(true);
+        factory.setCompressionThreshold(1024);
+        connection = factory.createConnection();
+        connection.setExceptionListener(new ExceptionListener() {
+            public void onException(JMSException exception) {
+                failures.add(exception);
+            }
+        });
+        connection.start();
+        return connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    }
+
+    private static String body() {
+        StringBuilder rc = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            rc.append("{\"id\":").append(i).append(",\"name\":\"item\"},");
+        }
+        return rc.toString();
+    }
+
+    public void testVmTransport() throws Exception {
+        Session session = session("vm://compression");
+        MessageConsumer consumer = session.createConsumer(session.createQueue("test"));
+        String body = body();
+        session.createProducer(session.createQueue("test")).send(session.createTextMessage(body));
+
+        Message message = consumer.receive(5000);
+        assertTrue(message instanceof TextMessage);
+        assertEquals(body, ((TextMessage) message).getText());
+        // it went over the vm transport deflated.
+        assertEquals(FrameCompression.DEFLATE, sent.get(0).getHeader(CONTENT_ENCODING));
+        assertTrue(sent.get(0).contentLength() < body.length());
+        assertTrue(failures.isEmpty());
+    }
+
+    public void testInvalidBody() throws Exception {
+        truncate = true;
+        Session session = session("vm://compression");
+        MessageConsumer consumer = session.createConsumer(session.createQueue("test"));
+        session.createProducer(session.createQueue("test")).send(session.createTextMessage(body()));
+
+        // only the message fails, the raw bytes are handed out.
+        Message message = consumer.receive(5000);
+        assertTrue(message instanceof BytesMessage);
+        assertEquals(1, failures.size());
+        truncate = false;
+        session.createProducer(session.createQueue("test")).send(session.createTextMessage("hello"));
+        assertEquals("hello", ((TextMessage) consumer.receive(5000)).getText());
+        assertEquals(1, failures.size());
+    }
+
+    public void testForeignEncoding() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        try {
+            Session session = session(broker.uri());
+            MessageConsumer consumer = session.createConsumer(session.createQueue("test"));
+
+            // sent by some other client, the body is not ours to decode.
+            BlockingConnection other = new Stomp(broker.uri()).connectBlocking();
+            StompFrame frame = new StompFrame(SEND);
+            frame.addHeader(DESTINATION, ascii("/queue/test"));
+            frame.addHeader(CONTENT_TYPE, ascii("text/plain"));
+            frame.addHeader(CONTENT_ENCODING, ascii("identity"));
+            frame.content(ascii("plain text"));
+            // the receipt makes sure it was delivered before we hang up.
+            other.request(frame);
+            other.close();
+
+            Message message = consumer.receive(5000);
+            assertTrue(message instanceof TextMessage);
+            assertEquals("plain text", ((TextMessage) message).getText());
+            assertTrue(failures.isEmpty());
+        } finally {
+            connection.close();
+            connection = null;
+            broker.shutdown();
+        }
+    }
+}
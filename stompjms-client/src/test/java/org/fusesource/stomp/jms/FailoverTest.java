@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.stomp.client.Failover;
+import org.fusesource.stomp.client.Promise;
+import org.fusesource.stomp.codec.StompFrame;
+
+import jakarta.jms.TransactionRolledBackException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks that a channel using a failover URI reconnects to the next
+ * broker, subscribing again and replaying the requests which did not get
+ * their receipt, and what becomes of the transactions, the acks and the
+ * producers caught by the failover.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FailoverTest extends TestCase {
+
+    public void testParse() throws Exception {
+        Failover failover = Failover.parse(new URI("failover:(tcp://a:61613,tcp://b:61614)?initialReconnectDelay=100&maxReconnectDelay=1000&maxReconnectAttempts=3"));
+        assertEquals(2, failover.getURIs().size());
+        assertEquals(new URI("tcp://a:61613"), failover.uri(0));
+        assertEquals(new URI("tcp://b:61614"), failover.uri(1));
+        assertEquals(new URI("tcp://a:61613"), failover.uri(2));
+
+        assertEquals(0, failover.delay(0));
+        assertEquals(100, failover.delay(1));
+        assertEquals(200, failover.delay(2));
+        assertEquals(800, failover.delay(4));
+        assertEquals(1000, failover.delay(5));
+        assertEquals(1000, failover.delay(50));
+
+        assertFalse(failover.isExhausted(3));
+        assertTrue(failover.isExhausted(4));
+        assertFalse(Failover.parse(new URI("failover:tcp://a:61613")).isExhausted(1000));
+
+        try {
+            Failover.parse(new URI("failover:(tcp://a:61613)?bogus=1"));
+            fail("expected an URISyntaxException");
+        } catch (URISyntaxException expected) {
+        }
+    }
+
+    public void testReplay() throws Exception {
+        FakeBroker a = new FakeBroker();
+        FakeBroker b = new FakeBroker();
+        StompChannel channel = new StompChannel();
+        channel.setBrokerURI(new URI("failover:("+a.uri()+","+b.uri()+")?initialReconnectDelay=10"));
+        channel.setOmitHost(true);
+        try {
+            channel.connect();
+            StompFrame subscribe = new StompFrame(SUBSCRIBE);
+            subscribe.addHeader(ID, new AsciiBuffer("1"));
+            subscribe.addHeader(DESTINATION, new AsciiBuffer("/queue/test"));
+            channel.sendRequest(subscribe);
+
+            a.shutdown();
+            StompFrame send = new StompFrame(SEND);
+            send.addHeader(DESTINATION, new AsciiBuffer("/queue/test"));
+            Promise<StompFrame> receipt = new Promise<StompFrame>();
+            channel.sendRequest(send, receipt);
+            assertNotNull(receipt.await(5, TimeUnit.SECONDS));
+
+            assertEquals("[CONNECT, SUBSCRIBE]", a.received().toString());
+            assertEquals("[CONNECT, SUBSCRIBE, SEND]", b.received().toString());
+            assertEquals(1, channel.getReconnectCount());
+        } finally {
+            channel.close();
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    public void testTransactionRolledBack() throws Exception {
+        FakeBroker a = new FakeBroker();
+        FakeBroker b = new FakeBroker();
+        StompChannel channel = channel("failover:("+a.uri()+","+b.uri()+")?initialReconnectDelay=10");
+        try {
+            AsciiBuffer txid = channel.startTransaction();
+            StompFrame send = send(100);
+            send.addHeader(TRANSACTION, txid);
+            channel.sendFrame(send);
+            awaitReceived(a, "SEND");
+
+            a.shutdown();
+            awaitReconnect(channel);
+            try {
+                channel.commitTransaction(txid);
+                fail("expected the commit to fail");
+            } catch (TransactionRolledBackException expected) {
+            }
+            // begun again so the frames sent in it stay valid, then dropped.
+            awaitReceived(b, "ABORT");
+            assertEquals("[CONNECT, BEGIN, ABORT]", b.received().toString());
+        } finally {
+            channel.close();
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    public void testPendingAck() throws Exception {
+        FakeBroker a = new FakeBroker();
+        FakeBroker b = new FakeBroker();
+        StompChannel channel = channel("failover:("+a.uri()+","+b.uri()+")?initialReconnectDelay=10");
+        try {
+            a.receipts = false;
+            final CountDownLatch acked = new CountDownLatch(1);
+            Promise<StompFrame> ack = new Promise<StompFrame>() {
+                @Override
+                public void onSuccess(StompFrame value) {
+                    super.onSuccess(value);
+                    acked.countDown();
+                }
+            };
+            channel.ackMessage(new AsciiBuffer("1"), new AsciiBuffer("fake-1"), null, ack);
+            awaitReceived(a, "ACK");
+
+            a.shutdown();
+            // completed, the new broker redelivers the message anyway.
+            assertTrue(acked.await(5, TimeUnit.SECONDS));
+            awaitReconnect(channel);
+            assertFalse(b.received().contains("ACK"));
+        } finally {
+            channel.close();
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    public void testProducerBlocked() throws Exception {
+        FakeBroker a = new FakeBroker();
+        FakeBroker b = new FakeBroker();
+        // the first attempt goes to the broker which is gone, the second
+        // one to the next broker a second later.
+        final StompChannel channel = channel("failover:("+a.uri()+","+b.uri()+")?initialReconnectDelay=1000", 2000);
+        try {
+            a.shutdown();
+            final List<Exception> failures = new ArrayList<Exception>();
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread producer = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10; i++) {
+                            channel.sendFrame(send(500));
+                        }
+                    } catch (Exception e) {
+                        failures.add(e);
+                    }
+                    done.countDown();
+                }
+            };
+            producer.start();
+
+            // waits for the window rather than failing.
+            assertFalse(done.await(500, TimeUnit.MILLISECONDS));
+            assertTrue(channel.getBlockedSendCount() > 0);
+            assertEquals(0, channel.getReconnectCount());
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(failures.isEmpty());
+            awaitReceived(b, "SEND", 10);
+        } finally {
+            channel.close();
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    public void testExhausted() throws Exception {
+        FakeBroker a = new FakeBroker();
+        StompChannel channel = channel("failover:("+a.uri()+")?initialReconnectDelay=10&maxReconnectAttempts=2");
+        try {
+            a.sendReceipts = false;
+            Promise<StompFrame> receipt = new Promise<StompFrame>();
+            channel.sendRequest(send(100), receipt);
+            awaitReceived(a, "SEND");
+
+            a.shutdown();
+            try {
+                receipt.await(5, TimeUnit.SECONDS);
+                fail("expected the request to fail");
+            } catch (Exception expected) {
+            }
+            assertEquals(0, channel.getReconnectCount());
+
+            // and it stays down.
+            Promise<StompFrame> next = new Promise<StompFrame>();
+            channel.sendRequest(send(100), next);
+            try {
+                next.await(5, TimeUnit.SECONDS);
+                fail("expected the request to fail");
+            } catch (Exception expected) {
+            }
+        } finally {
+            channel.close();
+            a.shutdown();
+        }
+    }
+
+    private StompChannel channel(String uri) throws Exception {
+        return channel(uri, 0);
+    }
+
+    private StompChannel channel(String uri, long sendHighWatermark) throws Exception {
+        StompChannel channel = new StompChannel();
+        channel.setBrokerURI(new URI(uri));
+        channel.setOmitHost(true);
+        channel.setSendHighWatermark(sendHighWatermark);
+        channel.connect();
+        return channel;
+    }
+
+    private static StompFrame send(int size) {
+        StompFrame send = new StompFrame(SEND);
+        send.addHeader(DESTINATION, new AsciiBuffer("/queue/test"));
+        send.content(new AsciiBuffer(new byte[size]));
+        return send;
+    }
+
+    private static void awaitReceived(FakeBroker broker, String action) throws Exception {
+        awaitReceived(broker, action, 1);
+    }
+
+    private static void awaitReceived(FakeBroker broker, String action, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while( true ) {
+            int received = 0;
+            for (String frame : broker.received()) {
+                if( frame.equals(action) ) {
+                    received++;
+                }
+            }
+            if( received >= count ) {
+                return;
+            }
+            assertTrue("expected " + count + " " + action + " frames: " + broker.received(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitReconnect(StompChannel channel) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while( channel.getReconnectCount() == 0 ) {
+            assertTrue("expected the channel to reconnect", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
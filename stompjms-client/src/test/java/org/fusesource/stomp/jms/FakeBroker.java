@@ -0,0 +1,333 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A bare bones STOMP server for the tests which don't need a real broker.
+ * It answers the CONNECT frames, sends the requested receipts, delivers
+ * the messages sent to a destination to its subscriptions, and records
+ * the frames it receives.  It listens on a TCP
+ * port, or on a Unix domain socket when given a socket file.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FakeBroker extends Thread {
+
+    final ServerSocket server;
+    final ServerSocketChannel unixServer;
+    final File socketFile;
+    final ArrayList<String> received = new ArrayList<String>();
+    final ArrayList<String> frames = new ArrayList<String>();
+    final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+    final AtomicInteger messageIds = new AtomicInteger();
+    final ArrayList<Closeable> sockets = new ArrayList<Closeable>();
+    final AtomicInteger accepted = new AtomicInteger();
+    // guarded by sockets, a connection accepted while shutting down is closed.
+    boolean stopped;
+    // cleared to keep the client's sends waiting for their receipt.
+    volatile boolean sendReceipts = true;
+    // cleared to keep all the client's requests waiting for their receipt.
+    volatile boolean receipts = true;
+    // the receipts held back meanwhile, by the stream they go to.
+    final ArrayList<Object[]> heldReceipts = new ArrayList<Object[]>();
+
+    public FakeBroker() throws IOException {
+        server = new ServerSocket(0);
+        unixServer = null;
+        socketFile = null;
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Listens on a Unix domain socket, which needs Java 16 or later.
+     */
+    public FakeBroker(File socketFile) throws IOException {
+        socketFile.delete();
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            unixServer = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+            unixServer.bind((SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, socketFile.getPath()));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unix domain sockets are not supported", e);
+        }
+        server = null;
+        this.socketFile = socketFile;
+        setDaemon(true);
+        start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    public String uri() {
+        if( socketFile!=null ) {
+            return "unix://" + socketFile.getAbsoluteFile().toURI().getPath();
+        }
+        return "tcp://localhost:" + port();
+    }
+
+    /**
+     * @return the actions of the received frames.
+     */
+    public List<String> received() {
+        synchronized (received) {
+            return new ArrayList<String>(received);
+        }
+    }
+
+    /**
+     * @return the received frames, without their trailing null.
+     */
+    public List<String> frames() {
+        synchronized (received) {
+            return new ArrayList<String>(frames);
+        }
+    }
+
+    /**
+     * Sends the receipts held back while {@link #sendReceipts} or
+     * {@link #receipts} was cleared.
+     */
+    public void releaseReceipts() throws IOException {
+        ArrayList<Object[]> held;
+        synchronized (heldReceipts) {
+            held = new ArrayList<Object[]>(heldReceipts);
+            heldReceipts.clear();
+        }
+        for (Object[] receipt : held) {
+            write((OutputStream) receipt[0], (String) receipt[1]);
+        }
+    }
+
+    /**
+     * @return how many connections were accepted.
+     */
+    public int accepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return how many accepted connections the client has not closed.
+     */
+    public int open() {
+        synchronized (sockets) {
+            return sockets.size();
+        }
+    }
+
+    public void shutdown() throws IOException {
+        if( server!=null ) {
+            server.close();
+        } else {
+            unixServer.close();
+            socketFile.delete();
+        }
+        synchronized (sockets) {
+            stopped = true;
+            for (Closeable socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Closeable socket;
+                final InputStream in;
+                final OutputStream out;
+                if( server!=null ) {
+                    Socket tcp = server.accept();
+                    tcp.setTcpNoDelay(true);
+                    socket = tcp;
+                    in = tcp.getInputStream();
+                    out = tcp.getOutputStream();
+                } else {
+                    SocketChannel unix = unixServer.accept();
+                    socket = unix;
+                    in = Channels.newInputStream(unix);
+                    out = Channels.newOutputStream(unix);
+                }
+                synchronized (sockets) {
+                    if( stopped ) {
+                        // slipped in while the server socket was closing.
+                        socket.close();
+                        return;
+                    }
+                    sockets.add(socket);
+                }
+                accepted.incrementAndGet();
+                Thread serving = new Thread("fake broker connection") {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(new BufferedInputStream(in), out);
+                        } catch (IOException e) {
+                        } finally {
+                            synchronized (sockets) {
+                                sockets.remove(socket);
+                            }
+                            try {
+                                socket.close();
+                            } catch (IOException ignore) {
+                            }
+                        }
+                    }
+                };
+                serving.setDaemon(true);
+                serving.start();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    static class Subscription {
+        final OutputStream out;
+        final String destination;
+        final String id;
+
+        Subscription(OutputStream out, String destination, String id) {
+            this.out = out;
+            this.destination = destination;
+            this.id = id;
+        }
+    }
+
+    private static String header(String[] lines, String name) {
+        for (int i = 1; i < lines.length && lines[i].length() > 0; i++) {
+            if( lines[i].startsWith(name + ":") ) {
+                return lines[i].substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private void serve(InputStream in, OutputStream out) throws IOException {
+        try {
+            read(in, out);
+        } finally {
+            synchronized (subscriptions) {
+                for (int i = subscriptions.size() - 1; i >= 0; i--) {
+                    if( subscriptions.get(i).out == out ) {
+                        subscriptions.remove(i);
+                    }
+                }
+            }
+        }
+    }
+
+    private void read(InputStream in, OutputStream out) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if( c != 0 ) {
+                if( c != '\n' || frame.size() > 0 ) {
+                    frame.write(c);
+                }
+                continue;
+            }
+            String text = frame.toString("UTF-8");
+            String[] lines = text.split("\n", -1);
+            frame.reset();
+            String action = lines[0];
+            synchronized (received) {
+                received.add(action);
+                frames.add(text);
+            }
+            String reply = null;
+            if( action.equals("CONNECT") ) {
+                reply = "CONNECTED\nversion:1.1\nserver:fake/1.0\n\n";
+            } else {
+                String receipt = header(lines, "receipt");
+                if( receipt!=null && receipts && (sendReceipts || !action.equals("SEND")) ) {
+                    reply = "RECEIPT\nreceipt-id:" + receipt + "\n\n";
+                } else if( receipt!=null ) {
+                    synchronized (heldReceipts) {
+                        heldReceipts.add(new Object[]{out, "RECEIPT\nreceipt-id:" + receipt + "\n\n"});
+                    }
+                }
+            }
+            if( action.equals("SUBSCRIBE") ) {
+                synchronized (subscriptions) {
+                    subscriptions.add(new Subscription(out, header(lines, "destination"), header(lines, "id")));
+                }
+            } else if( action.equals("UNSUBSCRIBE") ) {
+                synchronized (subscriptions) {
+                    for (int i = subscriptions.size() - 1; i >= 0; i--) {
+                        Subscription sub = subscriptions.get(i);
+                        if( sub.out == out && sub.id.equals(header(lines, "id")) ) {
+                            subscriptions.remove(i);
+                        }
+                    }
+                }
+            } else if( action.equals("SEND") && header(lines, "transaction") == null ) {
+                deliver(lines, text.substring(text.indexOf("\n\n") + 2));
+            }
+            if( reply!=null ) {
+                write(out, reply);
+            }
+        }
+    }
+
+    private void deliver(String[] lines, String body) throws IOException {
+        String destination = header(lines, "destination");
+        StringBuilder headers = new StringBuilder();
+        for (int i = 1; i < lines.length && lines[i].length() > 0; i++) {
+            if( !lines[i].startsWith("receipt:") ) {
+                headers.append(lines[i]).append('\n');
+            }
+        }
+        ArrayList<Subscription> targets = new ArrayList<Subscription>();
+        synchronized (subscriptions) {
+            for (Subscription sub : subscriptions) {
+                if( sub.destination.equals(destination) ) {
+                    targets.add(sub);
+                }
+            }
+        }
+        for (Subscription sub : targets) {
+            write(sub.out, "MESSAGE\nsubscription:" + sub.id + "\nmessage-id:fake-" + messageIds.incrementAndGet()
+                    + "\n" + headers + "\n" + body);
+        }
+    }
+
+    private static void write(OutputStream out, String frame) throws IOException {
+        synchronized (out) {
+            out.write((frame + "\0").getBytes("UTF-8"));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+
+import jakarta.jms.Connection;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.Session;
+import jakarta.jms.TextMessage;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * <p>
+ * Checks that multiplexed sessions share the broker connections and still
+ * get their own messages and transactions.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class MultiplexedSessionsTest extends TestCase {
+
+    FakeBroker broker;
+    Connection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        broker = new FakeBroker();
+        StompJmsConnectionFactory factory = new StompJmsConnectionFactory();
+        factory.setBrokerURI(broker.uri());
+        factory.setOmitHost(true);
+        factory.setMultiplexedConnections(2);
+        connection = factory.createConnection();
+        connection.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connection.close();
+        broker.shutdown();
+        super.tearDown();
+    }
+
+    public void testRouting() throws Exception {
+        ArrayList<Session> sessions = new ArrayList<Session>();
+        ArrayList<MessageConsumer> consumers = new ArrayList<MessageConsumer>();
+        for (int i = 0; i < 6; i++) {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            sessions.add(session);
+            consumers.add(session.createConsumer(session.createQueue("q" + i)));
+        }
+        for (int i = 0; i < 6; i++) {
+            Session session = sessions.get(i);
+            session.createProducer(session.createQueue("q" + i)).send(session.createTextMessage("m" + i));
+        }
+        for (int i = 0; i < 6; i++) {
+            TextMessage message = (TextMessage) consumers.get(i).receive(5000);
+            assertNotNull(message);
+            assertEquals("m" + i, message.getText());
+        }
+        assertEquals(2, broker.accepted());
+
+        // closing sessions leaves the shared connections open.
+        for (Session session : sessions) {
+            session.close();
+        }
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        session.createProducer(session.createQueue("q0")).send(session.createTextMessage("again"));
+        assertEquals(2, broker.open());
+    }
+
+    public void testTransactions() throws Exception {
+        // one connection, so that all the transactions share it.
+        connection.close();
+        int accepted = broker.accepted();
+        StompJmsConnectionFactory factory = new StompJmsConnectionFactory();
+        factory.setBrokerURI(broker.uri());
+        factory.setOmitHost(true);
+        factory.setMultiplexedConnections(1);
+        connection = factory.createConnection();
+        connection.start();
+
+        Session s1 = connection.createSession(true, Session.SESSION_TRANSACTED);
+        Session s2 = connection.createSession(true, Session.SESSION_TRANSACTED);
+        Session s3 = connection.createSession(true, Session.SESSION_TRANSACTED);
+        s1.createProducer(s1.createQueue("test")).send(s1.createTextMessage("1"));
+        s2.createProducer(s2.createQueue("test")).send(s2.createTextMessage("2"));
+        s3.createProducer(s3.createQueue("test")).send(s3.createTextMessage("3"));
+        s1.commit();
+        s2.rollback();
+        // the open transaction is aborted, the connection stays open.
+        s3.close();
+
+        HashSet<String> begun = new HashSet<String>();
+        String committed = null;
+        ArrayList<String> aborted = new ArrayList<String>();
+        for (String frame : broker.frames()) {
+            String tx = header(frame, "transaction");
+            if( frame.startsWith("BEGIN") ) {
+                assertTrue("transaction ids are unique", begun.add(tx));
+            } else if( frame.startsWith("COMMIT") ) {
+                committed = tx;
+            } else if( frame.startsWith("ABORT") ) {
+                aborted.add(tx);
+            }
+        }
+        assertNotNull(committed);
+        assertEquals(2, aborted.size());
+        assertFalse(aborted.contains(committed));
+        assertEquals(accepted + 1, broker.accepted());
+    }
+
+    public void testServerAutoAckUsesCredit() throws Exception {
+        Session session = connection.createSession(false, StompJmsSession.SERVER_AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(session.createQueue("test"));
+        session.createProducer(session.createQueue("test")).send(session.createTextMessage("hello"));
+        assertNotNull(consumer.receive(5000));
+
+        // the shared socket is never suspended, the acks return the credit.
+        long deadline = System.currentTimeMillis() + 5000;
+        while( !broker.received().contains("ACK") && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(10);
+        }
+        assertTrue(broker.received().contains("ACK"));
+        for (String frame : broker.frames()) {
+            if( frame.startsWith("SUBSCRIBE") ) {
+                assertEquals("client", header(frame, "ack"));
+            }
+        }
+    }
+
+    private static String header(String frame, String name) {
+        for (String line : frame.split("\n")) {
+            if( line.isEmpty() ) {
+                break;
+            }
+            if( line.startsWith(name + ":") ) {
+                return line.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+}
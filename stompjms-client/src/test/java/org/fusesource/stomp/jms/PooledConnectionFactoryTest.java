@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+
+import jakarta.jms.Connection;
+import jakarta.jms.MessageProducer;
+import jakarta.jms.Queue;
+import jakarta.jms.Session;
+
+/**
+ * <p>
+ * Checks that the pooled connection factory reuses its connections and
+ * sessions, and evicts the idle ones.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PooledConnectionFactoryTest extends TestCase {
+
+    FakeBroker broker;
+    PooledStompJmsConnectionFactory factory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        broker = new FakeBroker();
+        StompJmsConnectionFactory cf = new StompJmsConnectionFactory();
+        cf.setBrokerURI(broker.uri());
+        cf.setOmitHost(true);
+        factory = new PooledStompJmsConnectionFactory(cf);
+        factory.setIdleTimeout(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        factory.stop();
+        broker.shutdown();
+        super.tearDown();
+    }
+
+    public void testReuse() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            send("test");
+        }
+        // one broker connection for the pooled connection's only session.
+        assertEquals(1, broker.accepted());
+        assertEquals(1, factory.getConnectionCount());
+        int sends = 0;
+        for (String action : broker.received()) {
+            if( action.equals("SEND") ) {
+                sends++;
+            }
+        }
+        assertEquals(10, sends);
+    }
+
+    public void testConcurrentSessions() throws Exception {
+        Connection c1 = factory.createConnection();
+        Connection c2 = factory.createConnection();
+        Session s1 = c1.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Session s2 = c2.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        assertNotSame(((PooledStompJmsSession) s1).getSession(), ((PooledStompJmsSession) s2).getSession());
+        assertSame(((PooledStompJmsConnection) c1).getConnection(), ((PooledStompJmsConnection) c2).getConnection());
+        // sessions connect to the broker on first use.
+        s1.createProducer(s1.createQueue("test")).send(s1.createTextMessage("hello"));
+        s2.createProducer(s2.createQueue("test")).send(s2.createTextMessage("hello"));
+        c1.close();
+        c2.close();
+
+        for (int i = 0; i < 5; i++) {
+            send("test");
+        }
+        assertEquals(2, broker.accepted());
+    }
+
+    public void testEviction() throws Exception {
+        factory.setMaxSessionsPerConnection(1);
+        factory.setBlockIfSessionPoolIsFullTimeout(100);
+        Connection connection = factory.createConnection();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        try {
+            connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            fail("expected the session pool to be full");
+        } catch (jakarta.jms.IllegalStateException expected) {
+        }
+        session.close();
+        // a different mode makes room by closing the idle session.
+        connection.createSession(false, Session.CLIENT_ACKNOWLEDGE).close();
+        connection.close();
+
+        factory.evict(System.currentTimeMillis() + 1);
+        assertEquals(0, factory.getConnectionCount());
+        send("test");
+        assertEquals(1, factory.getConnectionCount());
+    }
+
+    private void send(String queue) throws Exception {
+        Connection connection = factory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            Queue destination = session.createQueue(queue);
+            MessageProducer producer = session.createProducer(destination);
+            producer.send(session.createTextMessage("hello"));
+            producer.close();
+            session.close();
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+
+import jakarta.jms.ResourceAllocationException;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Checks that the send window closes at its high watermark, opens at its
+ * low watermark, and lets the waiting senders through in order.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class SendWindowTest extends TestCase {
+
+    SendWindow window = new SendWindow();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        window.configure(100, 40);
+    }
+
+    public void testFailFast() throws Exception {
+        window.acquire(60, 0);
+        window.acquire(40, 0);
+        try {
+            window.acquire(1, 0);
+            fail("expected the window to be full");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof ResourceAllocationException);
+        }
+        assertEquals(1, window.getRejectedCount());
+
+        // still closed until it gets down to the low watermark.
+        window.release(50);
+        try {
+            window.acquire(1, 0);
+            fail("expected the window to be closed");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof ResourceAllocationException);
+        }
+        window.release(10);
+        window.acquire(1, 0);
+        assertEquals(41, window.outstanding());
+    }
+
+    public void testBigFrame() throws Exception {
+        // a frame bigger than the window goes through on its own.
+        window.acquire(500, 0);
+        assertEquals(500, window.outstanding());
+    }
+
+    public void testTimeout() throws Exception {
+        window.acquire(100, -1);
+        long start = System.nanoTime();
+        try {
+            window.acquire(1, 200);
+            fail("expected the send to time out");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof ResourceAllocationException);
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(1, window.getBlockedCount());
+        assertTrue(window.getBlockedTime() >= 200);
+
+        // the sender which gave up does not hold up the next one.
+        window.release(100);
+        window.acquire(1, 0);
+    }
+
+    public void testFairness() throws Exception {
+        window.acquire(100, -1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            final int sender = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        window.acquire(60, -1);
+                        order.add(sender);
+                    } catch (IOException e) {
+                    }
+                    done.countDown();
+                }
+            }.start();
+            // let it take its ticket before the next one starts.
+            while( window.getBlockedCount() < i + 1 ) {
+                Thread.sleep(1);
+            }
+        }
+        // only one sender fits in the window at a time.
+        for (int i = 0; i < 5; i++) {
+            window.release(window.outstanding());
+            long deadline = System.currentTimeMillis() + 5000;
+            while( order.size() < i + 1 && System.currentTimeMillis() < deadline ) {
+                Thread.sleep(1);
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+    }
+
+    public void testFail() throws Exception {
+        window.acquire(100, -1);
+        final IOException[] failure = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    window.acquire(1, -1);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+                done.countDown();
+            }
+        }.start();
+        while( window.getBlockedCount() < 1 ) {
+            Thread.sleep(1);
+        }
+        window.fail(new ClosedChannelException());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(failure[0].getCause() instanceof ClosedChannelException);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+import org.fusesource.stomp.jms.message.StompJmsMessage;
+
+import jakarta.jms.BytesMessage;
+import jakarta.jms.Connection;
+import jakarta.jms.Message;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.Session;
+import jakarta.jms.TextMessage;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Checks that the large message bodies a consumer receives are spilled to
+ * a file when the connection factory asks for it, and that a BytesMessage
+ * reads them from there.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class SpillTest extends TestCase {
+
+    FakeBroker broker;
+    Connection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        broker = new FakeBroker();
+        StompJmsConnectionFactory factory = new StompJmsConnectionFactory();
+        factory.setBrokerURI(broker.uri());
+        factory.setOmitHost(true);
+        factory.setSpillThreshold(1024);
+        factory.setSpillDirectory(System.getProperty("java.io.tmpdir"));
+        connection = factory.createConnection();
+        connection.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connection.close();
+        broker.shutdown();
+        super.tearDown();
+    }
+
+    public void testBytesMessage() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(session.createQueue("test"));
+        // the fake broker is not binary safe, so no nulls in the body.
+        byte[] body = new byte[100 * 1024];
+        Arrays.fill(body, (byte) 'x');
+        BytesMessage sent = session.createBytesMessage();
+        sent.writeBytes(body);
+        session.createProducer(session.createQueue("test")).send(sent);
+
+        BytesMessage message = (BytesMessage) consumer.receive(5000);
+        assertNotNull(((StompJmsMessage) message).getFrame().mappedContent());
+        assertEquals(body.length, message.getBodyLength());
+        byte[] data = new byte[body.length];
+        assertEquals(body.length, message.readBytes(data));
+        assertTrue(Arrays.equals(body, data));
+        assertEquals(-1, message.readBytes(data));
+    }
+
+    public void testSmallMessage() throws Exception {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(session.createQueue("test"));
+        session.createProducer(session.createQueue("test")).send(session.createTextMessage("hello"));
+
+        Message message = consumer.receive(5000);
+        assertNull(((StompJmsMessage) message).getFrame().mappedContent());
+        assertEquals("hello", ((TextMessage) message).getText());
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+import org.fusesource.stomp.codec.StompFrame;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.fusesource.hawtbuf.Buffer.ascii;
+import static org.fusesource.stomp.client.Constants.*;
+
+/**
+ * <p>
+ * Checks that the frames several threads send through a channel reach the
+ * broker in the order each thread sent them, and that their send window
+ * credit is all returned.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class StompChannelTest extends TestCase {
+
+    FakeBroker broker;
+    StompChannel channel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        broker = new FakeBroker();
+        channel = new StompChannel();
+        channel.setBrokerURI(new URI(broker.uri()));
+        channel.setOmitHost(true);
+        channel.connect();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        channel.close();
+        broker.shutdown();
+        super.tearDown();
+    }
+
+    public void testOrderAndCredit() throws Exception {
+        final int threads = 4;
+        final int frames = 2000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            final String thread = Integer.toString(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < frames; i++) {
+                            StompFrame frame = new StompFrame(SEND);
+                            frame.addHeader(DESTINATION, ascii("/queue/t" + thread));
+                            frame.addHeader(ascii("seq"), ascii(thread + ":" + i));
+                            if( i % 500 == 499 ) {
+                                // a request can't overtake the frames sent before it.
+                                channel.sendRequest(frame);
+                            } else {
+                                channel.sendFrame(frame);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertNull(failure.get());
+        channel.sendRequest(new StompFrame(SEND));
+
+        HashMap<String, Integer> last = new HashMap<String, Integer>();
+        int received = 0;
+        for (String frame : broker.frames()) {
+            int start = frame.indexOf("\nseq:");
+            if( start < 0 ) {
+                continue;
+            }
+            String[] seq = frame.substring(start + 5, frame.indexOf('\n', start + 5)).split(":");
+            Integer previous = last.put(seq[0], Integer.valueOf(seq[1]));
+            assertEquals(previous == null ? 0 : previous + 1, Integer.parseInt(seq[1]));
+            received++;
+        }
+        assertEquals(threads * frames, received);
+        assertEquals(0, channel.window.outstanding());
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import org.fusesource.stomp.client.UnixTransport;
+
+import jakarta.jms.Connection;
+import jakarta.jms.DeliveryMode;
+import jakarta.jms.MessageProducer;
+import jakarta.jms.Session;
+import jakarta.jms.TextMessage;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Compares the round trip latency of a broker on the same host reached
+ * over tcp://localhost and over a unix:// socket.  Each persistent send
+ * waits for the broker's receipt, so a send is one round trip.  Reports
+ * the mean and the 50th, 99th and 99.9th percentiles for each transport.
+ * </p>
+ * <p>
+ * Run with: java org.fusesource.stomp.jms.UnixSocketBenchmark [messages]
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class UnixSocketBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        if( !UnixTransport.isAvailable() ) {
+            System.out.println("Unix domain sockets are not supported by this JVM, only tcp will be measured.");
+        }
+
+        FakeBroker tcp = new FakeBroker();
+        try {
+            run("tcp", tcp.uri(), messages);
+        } finally {
+            tcp.shutdown();
+        }
+        if( UnixTransport.isAvailable() ) {
+            File socket = File.createTempFile("stomp", ".sock");
+            FakeBroker unix = new FakeBroker(socket);
+            try {
+                run("unix", unix.uri(), messages);
+            } finally {
+                unix.shutdown();
+            }
+        }
+    }
+
+    static void run(String mode, String uri, int messages) throws Exception {
+        StompJmsConnectionFactory factory = new StompJmsConnectionFactory();
+        factory.setBrokerURI(uri);
+        Connection connection = factory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(session.createQueue("latency"));
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            TextMessage message = session.createTextMessage("hello");
+
+            // warm up the JIT and the connection first.
+            for (int i = 0; i < Math.min(messages, 10000); i++) {
+                producer.send(message);
+            }
+            long[] latencies = new long[messages];
+            long total = 0;
+            for (int i = 0; i < messages; i++) {
+                long start = System.nanoTime();
+                producer.send(message);
+                latencies[i] = System.nanoTime() - start;
+                total += latencies[i];
+            }
+            Arrays.sort(latencies);
+            System.out.println(String.format("%-5s %s  mean: %,.1f us, p50: %,.1f us, p99: %,.1f us, p99.9: %,.1f us",
+                    mode, uri, total / 1000.0 / messages, percentile(latencies, 0.5),
+                    percentile(latencies, 0.99), percentile(latencies, 0.999)));
+        } finally {
+            connection.close();
+        }
+    }
+
+    static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1000.0;
+    }
+}
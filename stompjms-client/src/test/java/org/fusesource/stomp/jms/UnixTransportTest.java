@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import junit.framework.TestCase;
+import org.fusesource.stomp.client.UnixTransport;
+
+import jakarta.jms.Connection;
+import jakarta.jms.DeliveryMode;
+import jakarta.jms.MessageProducer;
+import jakarta.jms.Session;
+import java.io.File;
+
+/**
+ * <p>
+ * Checks that a connection factory can reach a broker over a unix://
+ * socket.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class UnixTransportTest extends TestCase {
+
+    public void testSend() throws Exception {
+        if( !UnixTransport.isAvailable() ) {
+            return;
+        }
+        FakeBroker broker = new FakeBroker(File.createTempFile("stomp", ".sock"));
+        try {
+            StompJmsConnectionFactory factory = new StompJmsConnectionFactory();
+            factory.setBrokerURI(broker.uri());
+            Connection connection = factory.createConnection();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(session.createQueue("test"));
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            // waits for the receipt, so the broker has it when send returns.
+            producer.send(session.createTextMessage("hello"));
+            assertTrue(broker.received().contains("SEND"));
+            connection.close();
+        } finally {
+            broker.shutdown();
+        }
+    }
+
+    public void testMissingSocket() throws Exception {
+        if( !UnixTransport.isAvailable() ) {
+            return;
+        }
+        File socket = File.createTempFile("stomp", ".sock");
+        socket.delete();
+        StompJmsConnectionFactory factory = new StompJmsConnectionFactory();
+        factory.setBrokerURI("unix://" + socket.getAbsoluteFile().toURI().getPath());
+        try {
+            factory.createConnection().createSession(false, Session.AUTO_ACKNOWLEDGE)
+                    .createProducer(null);
+            fail("expected the connection to fail");
+        } catch (Exception expected) {
+        }
+    }
+}
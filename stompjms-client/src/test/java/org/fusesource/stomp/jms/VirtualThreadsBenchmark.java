@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2010-2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * The software in this package is published under the terms of the
+ * CDDL license a copy of which has been included with this distribution
+ * in the license.txt file.
+ */
+package org.fusesource.stomp.jms;
+
+import org.fusesource.stomp.client.Stomp;
+import org.fusesource.stomp.codec.StompFrame;
+import org.fusesource.stomp.jms.message.StompJmsMessage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.fusesource.stomp.client.Constants.MESSAGE;
+
+/**
+ * <p>
+ * Compares platform and virtual threads for the threads the JMS layer
+ * blocks in: every session gets a dispatch executor whose thread waits
+ * on its consumer's message queue, and the blocking pool runs tasks
+ * which park.  Reports the live platform thread count, heap used and the
+ * message throughput for each mode.
+ * </p>
+ * <p>
+ * Run with: java org.fusesource.stomp.jms.VirtualThreadsBenchmark [sessions] [messages]
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class VirtualThreadsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        if( !Stomp.isVirtualThreadsAvailable() ) {
+            System.out.println("Virtual threads are not supported by this JVM, only the platform threads will be measured.");
+        }
+        run("platform", false, sessions, messages);
+        if( Stomp.isVirtualThreadsAvailable() ) {
+            run("virtual", true, sessions, messages);
+        }
+    }
+
+    static void run(String mode, boolean virtual, int sessions, int messages) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baseThreads = threads.getThreadCount();
+        long baseHeap = usedHeap();
+
+        // The session dispatch executors, blocked waiting for messages.
+        final MessageQueue[] queues = new MessageQueue[sessions];
+        ExecutorService[] executors = new ExecutorService[sessions];
+        final AtomicLong received = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(sessions);
+        ThreadFactory factory = virtual ? Stomp.createVirtualThreadFactory("Stomp JMS Session ") : null;
+        for (int i = 0; i < sessions; i++) {
+            final MessageQueue queue = new MessageQueue(Long.MAX_VALUE);
+            queue.start();
+            queues[i] = queue;
+            executors[i] = factory != null ? Executors.newSingleThreadExecutor(factory) : Executors.newSingleThreadExecutor();
+            executors[i].execute(new Runnable() {
+                public void run() {
+                    try {
+                        while (queue.dequeue(-1) != null) {
+                            received.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        // The blocking pool, one parked task per session.
+        ThreadPoolExecutor pool = virtual ? Stomp.getVirtualThreadPool() : Stomp.getBlockingThreadPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch parked = new CountDownLatch(sessions);
+        for (int i = 0; i < sessions; i++) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    parked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+        }
+        parked.await();
+
+        int peakThreads = threads.getThreadCount() - baseThreads;
+        long heap = usedHeap() - baseHeap;
+
+        StompFrame frame = new StompFrame(MESSAGE);
+        StompJmsMessage message = new StompJmsMessage();
+        message.setFrame(frame);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            queues[i % sessions].enqueue(message);
+        }
+        while (received.get() < messages) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        release.countDown();
+        for (int i = 0; i < sessions; i++) {
+            queues[i].close();
+            executors[i].shutdown();
+        }
+        done.await();
+
+        System.out.println(String.format("%-8s sessions: %d, platform threads: %d, heap: %,d KB, throughput: %,.0f msg/s",
+                mode, sessions, peakThreads, heap / 1024, messages * 1000000000.0 / elapsed));
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}